@@ -1,15 +1,41 @@
 #include <jni.h>
-#include <android/log.h>
 #include <string>
 #include <vector>
 #include <memory>
+#include <atomic>
+#include <deque>
+#include <list>
+#include <mutex>
+#include <condition_variable>
+#include <chrono>
+#include <algorithm>
+#include <cmath>
 #include <cstring>
+#include <cstdio>
+#include <unistd.h>
+#include <malloc.h>
+#include <dlfcn.h>
+#include <dirent.h>
 #include "llama.h"
 #include "ggml.h"
+#include "ggml-cpu.h"
 
 #define LOG_TAG "LlamaCpp"
+
+// Set per library by add_llama_variant() in CMakeLists.txt
+#ifndef SAAYA_CPU_VARIANT
+#define SAAYA_CPU_VARIANT "baseline"
+#endif
+
+#ifdef __ANDROID__
+#include <android/log.h>
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#else
+// Host (desktop JVM) build: logcat-style lines on stderr
+#define LOGI(...) (fprintf(stderr, "I/" LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#define LOGE(...) (fprintf(stderr, "E/" LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#endif
 
 // Helper to add token to batch
 static void llama_batch_add(
@@ -28,267 +54,3093 @@ static void llama_batch_add(
     batch.n_tokens++;
 }
 
-// Global context holder
-struct LlamaContext {
-    llama_model* model = nullptr;
-    llama_context* ctx = nullptr;
-    llama_sampler* sampler = nullptr;
-    int n_ctx = 2048;
+// Where a user turn starts in the cache, in tokens and in kv_text bytes
+struct TurnStart {
+    size_t message;   // index of the user message in ChatSession::messages
+    size_t token;
+    size_t text;
+};
+
+// Multi-turn conversation kept resident in the session's KV sequence.
+// kv_text is the chat-template formatted transcript whose tokens are in
+// the cache; each turn only the text appended after it is decoded.
+// Messages before first_message have been shifted out of the context.
+struct ChatSession {
+    std::string system_prompt;
+    std::vector<std::pair<std::string, std::string>> messages; // role, content
+    size_t first_message = 0;
+    std::vector<llama_token> tokens;  // tokens currently in the KV cache
+    std::string kv_text;              // formatted text those tokens encode
+    std::vector<TurnStart> turns;     // cached user turns, oldest first
+    
+    // The system prompt formatted on its own and tokenized, made once per
+    // system prompt (see ensure_prefix); full prefills start from it
+    bool prefix_valid = false;
+    std::string prefix_for;
+    std::string prefix_text;
+    std::vector<llama_token> prefix_tokens;
+    
+    // Forget what is cached, keep the transcript (next turn re-prefills it)
+    void invalidate() {
+        tokens.clear();
+        kv_text.clear();
+        turns.clear();
+    }
+};
+
+// Mirror of com.saaya.ai.EngineConfig
+struct EngineParams {
+    int n_ctx = 2048;      // per session
+    int n_seq_max = 1;     // sessions sharing the context
     int n_threads = 4;
+    int n_threads_batch = 4;
+    int n_batch = 512;
+    int n_ubatch = 512;
+    ggml_type type_k = GGML_TYPE_F16;
+    ggml_type type_v = GGML_TYPE_F16;
+    bool flash_attn = false;
+    bool use_mmap = true;
+    bool use_mlock = false;
+    int n_draft = 5;       // tokens proposed per speculative step
+    int64_t prefix_cache_bytes = 0;       // 0 turns the prefix cache off
+    int64_t prefix_cache_disk_bytes = 0;
+    std::string prefix_cache_dir;         // empty for memory only
 };
 
-static std::unique_ptr<LlamaContext> g_llama_ctx;
+// Timings and sizes of one generation request, read by
+// com.saaya.ai.InferenceMetrics. Times are in microseconds.
+struct RequestMetrics {
+    int64_t t_start_us = 0;
+    int n_prompt = 0;          // tokens prefilled this request
+    int n_cached = 0;          // prompt tokens reused from the KV cache
+    int n_generated = 0;
+    int64_t t_tokenize_us = 0;
+    int64_t t_prefill_us = 0;
+    int64_t t_first_token_us = 0;  // request start to first sampled token
+    int64_t t_decode_us = 0;
+    int64_t t_sample_us = 0;
+    int n_kv_used = 0;
+    int n_ctx = 0;
+    int64_t rss_bytes = 0;
+};
 
-extern "C" {
+// Requests kept for the rolling aggregate
+static const size_t METRICS_WINDOW = 32;
 
-// Initialize backend
-JNIEXPORT void JNICALL
-Java_com_saaya_ai_LlamaCpp_initBackend(JNIEnv* env, jclass clazz) {
-    LOGI("Initializing llama.cpp backend");
-    llama_backend_init();
-    llama_numa_init(GGML_NUMA_STRATEGY_DISABLED);
-}
+// How long the decoding thread waits for other generating sessions to
+// queue their next token, so they share one decode instead of taking turns
+static const std::chrono::microseconds BATCH_GATHER_TIMEOUT(2000);
 
-// Free backend
-JNIEXPORT void JNICALL
-Java_com_saaya_ai_LlamaCpp_freeBackend(JNIEnv* env, jclass clazz) {
-    LOGI("Freeing llama.cpp backend");
-    llama_backend_free();
-}
+// Sampler chains a session keeps built, one per parameter set
+static const size_t MAX_CACHED_SAMPLERS = 4;
 
-// Load model
-JNIEXPORT jboolean JNICALL
-Java_com_saaya_ai_LlamaCpp_loadModel(
-    JNIEnv* env, 
-    jclass clazz,
-    jstring modelPath,
-    jint nCtx,
-    jint nThreads
-) {
-    const char* model_path = env->GetStringUTFChars(modelPath, nullptr);
-    
-    LOGI("Loading model from: %s", model_path);
-    LOGI("Context size: %d, Threads: %d", nCtx, nThreads);
+// Sampling options of one request (SamplingParams on the Java side)
+struct SamplerConfig {
+    float temperature = 0.7f;
+    int32_t top_k = 40;
+    float top_p = 0.9f;
+    float min_p = 0.0f;
+    int32_t penalty_last_n = 64;
+    float penalty_repeat = 1.0f;
+    float penalty_freq = 0.0f;
+    float penalty_present = 0.0f;
+    uint32_t seed = LLAMA_DEFAULT_SEED;
     
-    // Free previous model if exists
-    if (g_llama_ctx) {
-        if (g_llama_ctx->sampler) {
-            llama_sampler_free(g_llama_ctx->sampler);
-        }
-        if (g_llama_ctx->ctx) {
-            llama_free(g_llama_ctx->ctx);
-        }
-        if (g_llama_ctx->model) {
-            llama_model_free(g_llama_ctx->model);
-        }
+    bool has_penalties() const {
+        return penalty_last_n != 0 &&
+               (penalty_repeat != 1.0f || penalty_freq != 0.0f || penalty_present != 0.0f);
     }
     
-    g_llama_ctx = std::make_unique<LlamaContext>();
-    g_llama_ctx->n_ctx = nCtx;
-    g_llama_ctx->n_threads = nThreads;
-    
-    // Model parameters
-    llama_model_params model_params = llama_model_default_params();
-    model_params.n_gpu_layers = 0; // CPU only
-    model_params.use_mmap = true;  // Memory mapping for large models
-    model_params.use_mlock = false;
+    // Argmax over the logits, no chain needed
+    bool greedy() const {
+        return (temperature <= 0.0f || top_k == 1) && !has_penalties();
+    }
     
-    // Load model with new API
-    g_llama_ctx->model = llama_model_load_from_file(model_path, model_params);
+    bool operator==(const SamplerConfig& o) const {
+        return temperature == o.temperature && top_k == o.top_k && top_p == o.top_p &&
+               min_p == o.min_p && penalty_last_n == o.penalty_last_n &&
+               penalty_repeat == o.penalty_repeat && penalty_freq == o.penalty_freq &&
+               penalty_present == o.penalty_present && seed == o.seed;
+    }
+};
+
+// KV state of a sequence holding exactly tokens, kept by PrefixCache
+struct PrefixEntry {
+    uint64_t key = 0;                              // hash of tokens
+    std::vector<llama_token> tokens;
+    std::shared_ptr<std::vector<uint8_t>> state;   // null while only on disk
+    uint64_t state_bytes = 0;
+    bool on_disk = false;
+    bool busy = false;                             // file read or written outside the lock
+};
+
+// LRU cache of prompt prefixes' KV state, shared by the sessions of a
+// model, so a prompt starting like an earlier one only prefills the rest.
+// Past the memory budget entries move to disk if a directory is set, and
+// past the disk budget they are dropped. Guarded by mutex, which is let go
+// while a file is read or written: the entry is marked busy meanwhile, and
+// others leave it in place.
+struct PrefixCache {
+    std::mutex mutex;
+    std::list<PrefixEntry> entries;   // most recently used first
+    uint64_t memory_budget = 0;       // 0 turns the cache off
+    uint64_t disk_budget = 0;
+    std::string dir;
+    uint64_t tag = 0;                 // model and KV types the states fit
+    uint64_t memory_bytes = 0;
+    uint64_t disk_bytes = 0;
     
-    env->ReleaseStringUTFChars(modelPath, model_path);
+    uint64_t n_lookups = 0;
+    uint64_t n_hits = 0;
+    uint64_t n_saved_tokens = 0;      // prompt tokens restored instead of prefilled
+    uint64_t n_stored = 0;
+    uint64_t n_evicted = 0;
+};
+
+struct SessionHandle;
+
+// Work handed to a model's batch loop: tokens[n_done, n_tokens) still have
+// to be decoded at positions pos + i, and if sample is set a token is
+// sampled from the logits of the last one
+struct DecodeWork {
+    SessionHandle* session = nullptr;
+    const llama_token* tokens = nullptr;
+    size_t n_tokens = 0;
+    llama_pos pos = 0;
+    bool sample = false;
     
-    if (!g_llama_ctx->model) {
-        LOGE("Failed to load model");
-        g_llama_ctx.reset();
-        return JNI_FALSE;
-    }
+    size_t n_done = 0;
+    int32_t logits_index = -1;   // index of the last token in the current batch
+    bool done = false;
+    int status = 0;              // llama_decode result
+    llama_token token = LLAMA_TOKEN_NULL;
+    int64_t t_sample_us = 0;
+};
+
+// A loaded model (LlamaModel handle). Its llama_context holds one KV
+// sequence per session; sessions never touch the context directly but go
+// through the batch loop (decode_work) or with_context (cache edits), so
+// generations on different threads end up decoded in the same llama_batch.
+//
+// Under memory pressure the contexts (KV cache and compute buffers) can be
+// released while the weights stay mapped; the next request recreates them.
+struct ModelHandle {
+    llama_model* model = nullptr;
+    llama_context* ctx = nullptr;        // null while released
+    llama_context_params ctx_params;
+    EngineParams params;
+    uint64_t fingerprint = 0;
+    llama_batch batch = {};
+    PrefixCache prefix_cache;
     
-    // Context parameters
-    llama_context_params ctx_params = llama_context_default_params();
-    ctx_params.n_ctx = nCtx;
-    ctx_params.n_threads = nThreads;
-    ctx_params.n_threads_batch = nThreads;
+    // Worker pools pinned to chosen cores (set by nativeSetThreads), else
+    // null and llama.cpp uses its own unpinned threads
+    ggml_threadpool* threadpool = nullptr;
+    ggml_threadpool* threadpool_batch = nullptr;
+    int n_pinned = 0;
     
-    // Create context with new API
-    g_llama_ctx->ctx = llama_init_from_model(g_llama_ctx->model, ctx_params);
+    // Optional draft model for speculative decoding, with a sequence per
+    // session like ctx. Only used under exclusive access (with_context).
+    llama_model* draft_model = nullptr;
+    llama_context* draft_ctx = nullptr;       // proposals are argmax
+    std::atomic<uint64_t> n_drafted{0};
+    std::atomic<uint64_t> n_accepted{0};
     
-    if (!g_llama_ctx->ctx) {
-        LOGE("Failed to create context");
-        llama_model_free(g_llama_ctx->model);
-        g_llama_ctx.reset();
-        return JNI_FALSE;
-    }
+    // Embedding context (pooled output, no logits), created by the first
+    // embedding request and released with the others. Guarded by
+    // embed_mutex, so embedding neither waits for decoding nor blocks it.
+    std::mutex embed_mutex;
+    llama_context* embed_ctx = nullptr;
     
-    // Create sampler
-    auto sparams = llama_sampler_chain_default_params();
-    g_llama_ctx->sampler = llama_sampler_chain_init(sparams);
+    // Guarded by mutex. Whichever thread finds the context idle (busy
+    // false) becomes the decoder for everything queued at that point.
+    std::mutex mutex;
+    std::condition_variable cv;
+    std::deque<DecodeWork*> queue;
+    bool busy = false;
+    int n_generating = 0;              // sessions inside a sampling loop
+    int n_users = 0;                   // requests holding a ContextUse
+    std::vector<bool> seq_used;
+    std::vector<SessionHandle*> sessions;  // by sequence, null if free
     
-    llama_sampler_chain_add(g_llama_ctx->sampler, llama_sampler_init_temp(0.7f));
-    llama_sampler_chain_add(g_llama_ctx->sampler, llama_sampler_init_top_k(40));
-    llama_sampler_chain_add(g_llama_ctx->sampler, llama_sampler_init_top_p(0.9f, 1));
-    llama_sampler_chain_add(g_llama_ctx->sampler, llama_sampler_init_dist(LLAMA_DEFAULT_SEED));
+    // Sessions in the batch being decoded, for the abort callback
+    std::vector<SessionHandle*> decoding;
+};
+
+// One conversation on a model (LlamaSession handle), owning a KV sequence
+// and its samplers
+struct SessionHandle {
+    ModelHandle* owner = nullptr;
+    llama_seq_id seq = 0;
+    // Chain of the request in progress, null for greedy (argmax). Built
+    // chains are cached by config, least recently used first.
+    llama_sampler* sampler = nullptr;
+    std::vector<std::pair<SamplerConfig, llama_sampler*>> samplers;
+    ChatSession chat;
+    RequestMetrics metrics;                     // request in progress
+    std::deque<RequestMetrics> metrics_history; // finished requests, oldest first
+    std::vector<llama_token> draft_tokens;      // in the draft model's sequence
     
-    LOGI("Model loaded successfully");
-    return JNI_TRUE;
+    // Set by cancel from any thread. Checked once per sampled token, and
+    // between decode slices, so a long prefill stops promptly too.
+    // Cleared when a generation starts.
+    std::atomic<bool> cancel_requested{false};
+};
+
+static ModelHandle* to_model(jlong handle) {
+    return reinterpret_cast<ModelHandle*>(handle);
 }
 
-// Generate text (streaming)
-JNIEXPORT jstring JNICALL
-Java_com_saaya_ai_LlamaCpp_generateToken(
-    JNIEnv* env,
-    jclass clazz,
-    jstring prompt,
-    jint maxTokens
-) {
-    if (!g_llama_ctx || !g_llama_ctx->ctx) {
-        LOGE("Context not initialized");
-        return env->NewStringUTF("");
+static SessionHandle* to_session(jlong handle) {
+    return reinterpret_cast<SessionHandle*>(handle);
+}
+
+// Most likely token at logits index idx. Skips building and sorting the
+// n_vocab candidate array a sampler chain works on.
+static llama_token argmax_token(llama_context* ctx, const llama_model* model, int32_t idx) {
+    const float* logits = llama_get_logits_ith(ctx, idx);
+    const int32_t n_vocab = llama_vocab_n_tokens(llama_model_get_vocab(model));
+    return (llama_token) (std::max_element(logits, logits + n_vocab) - logits);
+}
+
+static llama_token sample_token(SessionHandle& s, llama_context* ctx, int32_t idx) {
+    return s.sampler ? llama_sampler_sample(s.sampler, ctx, idx)
+                     : argmax_token(ctx, s.owner->model, idx);
+}
+
+// Chain in the order llama.cpp's common sampler uses: penalties, then
+// truncation, then temperature and the random pick
+static llama_sampler* build_sampler(const SamplerConfig& config) {
+    llama_sampler* chain = llama_sampler_chain_init(llama_sampler_chain_default_params());
+    if (config.has_penalties()) {
+        llama_sampler_chain_add(chain, llama_sampler_init_penalties(
+            config.penalty_last_n, config.penalty_repeat, config.penalty_freq, config.penalty_present));
+    }
+    if (config.temperature <= 0.0f || config.top_k == 1) {
+        llama_sampler_chain_add(chain, llama_sampler_init_greedy());
+        return chain;
+    }
+    if (config.top_k > 0) {
+        llama_sampler_chain_add(chain, llama_sampler_init_top_k(config.top_k));
+    }
+    if (config.top_p < 1.0f) {
+        llama_sampler_chain_add(chain, llama_sampler_init_top_p(config.top_p, 1));
+    }
+    if (config.min_p > 0.0f) {
+        llama_sampler_chain_add(chain, llama_sampler_init_min_p(config.min_p, 1));
+    }
+    llama_sampler_chain_add(chain, llama_sampler_init_temp(config.temperature));
+    llama_sampler_chain_add(chain, llama_sampler_init_dist(config.seed));
+    return chain;
+}
+
+// Make config the session's sampling for the next request, reusing a cached
+// chain, and restart it (penalty history, and the generator from its seed)
+static void select_sampler(SessionHandle& s, const SamplerConfig& config) {
+    if (config.greedy()) {
+        s.sampler = nullptr;
+        return;
+    }
+    auto it = std::find_if(s.samplers.begin(), s.samplers.end(),
+                           [&config](const std::pair<SamplerConfig, llama_sampler*>& entry) {
+                               return entry.first == config;
+                           });
+    std::pair<SamplerConfig, llama_sampler*> entry;
+    if (it != s.samplers.end()) {
+        entry = *it;
+        s.samplers.erase(it);
+    } else {
+        if (s.samplers.size() >= MAX_CACHED_SAMPLERS) {
+            llama_sampler_free(s.samplers.front().second);
+            s.samplers.erase(s.samplers.begin());
+        }
+        entry = {config, build_sampler(config)};
+    }
+    s.samplers.push_back(entry);
+    s.sampler = entry.second;
+    llama_sampler_reset(s.sampler);
+}
+
+static void reset_sampler(SessionHandle& s) {
+    if (s.sampler) {
+        llama_sampler_reset(s.sampler);
+    }
+}
+
+// Abort a decode only when every session in the batch has been cancelled,
+// so stopping one chat never throws away another's work
+static bool abort_callback(void* data) {
+    ModelHandle* model = static_cast<ModelHandle*>(data);
+    for (SessionHandle* session : model->decoding) {
+        if (!session->cancel_requested.load(std::memory_order_relaxed)) {
+            return false;
+        }
     }
+    return !model->decoding.empty();
+}
+
+// Decode one llama_batch built from the queued work. Called by the thread
+// that set model.busy, with the lock held; the lock is released around the
+// decode and sampling so other sessions can keep queueing.
+static void run_batch(ModelHandle& model, std::unique_lock<std::mutex>& lock) {
+    // Give the other generating sessions a moment to queue their next step
+    model.cv.wait_for(lock, BATCH_GATHER_TIMEOUT, [&model] {
+        return (int) model.queue.size() >= model.n_generating;
+    });
     
-    const char* prompt_cstr = env->GetStringUTFChars(prompt, nullptr);
-    std::string prompt_str(prompt_cstr);
-    env->ReleaseStringUTFChars(prompt, prompt_cstr);
+    // Cancelled work is dropped before it costs a decode
+    for (auto it = model.queue.begin(); it != model.queue.end();) {
+        if ((*it)->session->cancel_requested.load()) {
+            (*it)->status = 2;
+            (*it)->done = true;
+            it = model.queue.erase(it);
+        } else {
+            ++it;
+        }
+    }
     
-    LOGI("Generating response for prompt: %s", prompt_str.c_str());
+    llama_batch& batch = model.batch;
+    const int n_batch = model.params.n_batch;
+    batch.n_tokens = 0;
+    std::vector<DecodeWork*> in_batch;
+    model.decoding.clear();
     
-    // Tokenize prompt - get vocab from model
-    const llama_vocab* vocab = llama_model_get_vocab(g_llama_ctx->model);
-    std::vector<llama_token> tokens;
-    tokens.resize(prompt_str.length() + 2);
+    // Single-token steps of running generations go first so they keep their
+    // pace; prompt prefills fill the rest of the batch and continue in the
+    // next one if they do not fit
+    for (int pass = 0; pass < 2; pass++) {
+        for (DecodeWork* work : model.queue) {
+            bool step = work->n_tokens - work->n_done == 1;
+            if (step != (pass == 0) || batch.n_tokens >= n_batch) {
+                continue;
+            }
+            size_t n = std::min(work->n_tokens - work->n_done, (size_t) (n_batch - batch.n_tokens));
+            for (size_t i = 0; i < n; i++) {
+                size_t k = work->n_done + i;
+                bool last = k == work->n_tokens - 1;
+                llama_batch_add(batch, work->tokens[k], work->pos + k, {work->session->seq},
+                                last && work->sample);
+            }
+            work->n_done += n;
+            if (work->n_done == work->n_tokens) {
+                work->logits_index = batch.n_tokens - 1;
+            }
+            in_batch.push_back(work);
+            model.decoding.push_back(work->session);
+        }
+    }
     
-    int n_tokens = llama_tokenize(
-        vocab,
-        prompt_str.c_str(),
-        prompt_str.length(),
-        tokens.data(),
-        tokens.size(),
-        true,  // add_bos
-        false  // special
-    );
+    lock.unlock();
     
-    if (n_tokens < 0) {
-        tokens.resize(-n_tokens);
-        n_tokens = llama_tokenize(
-            vocab,
-            prompt_str.c_str(),
-            prompt_str.length(),
-            tokens.data(),
-            tokens.size(),
-            true,
-            false
-        );
+    int status = batch.n_tokens > 0 ? llama_decode(model.ctx, batch) : 0;
+    if (status == 0) {
+        // Logits are only valid until the next decode, so sample here
+        for (DecodeWork* work : in_batch) {
+            if (work->sample && work->n_done == work->n_tokens) {
+                int64_t t_start = llama_time_us();
+                work->token = sample_token(*work->session, model.ctx, work->logits_index);
+                work->t_sample_us = llama_time_us() - t_start;
+            }
+        }
     }
     
-    tokens.resize(n_tokens);
+    lock.lock();
     
-    LOGI("Tokenized prompt: %d tokens", n_tokens);
+    for (DecodeWork* work : in_batch) {
+        if (status != 0 || work->n_done == work->n_tokens) {
+            work->status = status;
+            work->done = true;
+            model.queue.erase(std::find(model.queue.begin(), model.queue.end(), work));
+        }
+    }
+    model.decoding.clear();
+}
+
+// Decode work for one session, batched with whatever other sessions of the
+// same model have queued. Blocks until the work is decoded (and sampled).
+// Returns the llama_decode status, 2 if cancelled.
+static int decode_work(ModelHandle& model, DecodeWork& work) {
+    std::unique_lock<std::mutex> lock(model.mutex);
+    model.queue.push_back(&work);
+    model.cv.notify_all();
     
-    // Clear KV cache with new API
-    llama_kv_cache_clear(g_llama_ctx->ctx);
-    llama_sampler_reset(g_llama_ctx->sampler);
+    while (!work.done) {
+        if (model.busy) {
+            model.cv.wait(lock);
+            continue;
+        }
+        model.busy = true;
+        run_batch(model, lock);
+        model.busy = false;
+        model.cv.notify_all();
+    }
+    return work.status;
+}
+
+// Run fn with the context to itself (no decode in flight): KV cache edits,
+// state save and restore
+template <typename F>
+static void with_context(ModelHandle& model, F fn) {
+    std::unique_lock<std::mutex> lock(model.mutex);
+    model.cv.wait(lock, [&model] { return !model.busy; });
+    model.busy = true;
+    lock.unlock();
     
-    // Process prompt
-    llama_batch batch = llama_batch_init(n_tokens, 0, 1);
+    fn();
     
-    for (int i = 0; i < n_tokens; i++) {
-        llama_batch_add(batch, tokens[i], i, {0}, false);
+    lock.lock();
+    model.busy = false;
+    model.cv.notify_all();
+}
+
+static void set_generating(ModelHandle& model, bool generating) {
+    std::lock_guard<std::mutex> lock(model.mutex);
+    model.n_generating += generating ? 1 : -1;
+    model.cv.notify_all();
+}
+
+// Drop the session's whole KV sequence, in the draft model too
+static void kv_clear(SessionHandle& s) {
+    with_context(*s.owner, [&s] {
+        s.draft_tokens.clear();
+        if (!s.owner->ctx) {
+            return;
+        }
+        llama_kv_cache_seq_rm(s.owner->ctx, s.seq, -1, -1);
+        if (s.owner->draft_ctx) {
+            llama_kv_cache_seq_rm(s.owner->draft_ctx, s.seq, -1, -1);
+        }
+    });
+}
+
+// Drop the session's cells from position p0 on
+static void kv_truncate(SessionHandle& s, int p0) {
+    with_context(*s.owner, [&s, p0] {
+        if (s.owner->ctx) {
+            llama_kv_cache_seq_rm(s.owner->ctx, s.seq, p0, -1);
+        }
+    });
+}
+
+// Discard cache cells [p0, p1) of the session's sequence and slide
+// everything after them down, so generation continues without re-prefilling
+static void kv_discard(SessionHandle& s, int p0, int p1) {
+    with_context(*s.owner, [&s, p0, p1] {
+        llama_kv_cache_seq_rm(s.owner->ctx, s.seq, p0, p1);
+        llama_kv_cache_seq_add(s.owner->ctx, s.seq, p1, -1, -(p1 - p0));
+    });
+}
+
+// The draft context runs under exclusive access, never aborted mid-decode
+static llama_context_params draft_context_params(const llama_context_params& ctx_params) {
+    llama_context_params params = ctx_params;
+    params.abort_callback = nullptr;
+    params.abort_callback_data = nullptr;
+    return params;
+}
+
+// Recreate the contexts released by release_contexts, with the thread
+// settings in effect. Called with the context to itself. A draft context
+// that cannot be recreated only turns speculative decoding off.
+static bool create_contexts(ModelHandle& model) {
+    if (!model.ctx) {
+        model.ctx = llama_init_from_model(model.model, model.ctx_params);
+        if (!model.ctx) {
+            LOGE("Failed to recreate context");
+            return false;
+        }
+        if (model.threadpool) {
+            llama_attach_threadpool(model.ctx, model.threadpool, model.threadpool_batch);
+        }
+        llama_set_n_threads(model.ctx, model.params.n_threads, model.params.n_threads_batch);
+        LOGI("Context recreated");
     }
-    
-    // Mark last token for logits
-    if (batch.n_tokens > 0) {
-        batch.logits[batch.n_tokens - 1] = true;
+    if (model.draft_model && !model.draft_ctx) {
+        model.draft_ctx = llama_init_from_model(model.draft_model, draft_context_params(model.ctx_params));
+        if (model.draft_ctx) {
+            llama_set_n_threads(model.draft_ctx, model.params.n_threads, model.params.n_threads_batch);
+        } else {
+            LOGE("Failed to recreate draft context, speculative decoding off");
+        }
     }
+    return true;
+}
+
+// Return free heap pages to the system. Bionic's mallopt(M_PURGE) is only
+// there from API 28, above our minSdk, so it is looked up at run time.
+static void purge_heap() {
+#if defined(__ANDROID__)
+    typedef int (*mallopt_fn)(int, int);
+    mallopt_fn fn = (mallopt_fn) dlsym(RTLD_DEFAULT, "mallopt");
+    if (fn) {
+        fn(-101 /* M_PURGE */, 0);
+    }
+#elif defined(__GLIBC__)
+    malloc_trim(0);
+#endif
+}
+
+// Held by a request for as long as it uses the model's context: recreates
+// the context if it was released, and keeps release_contexts from freeing
+// it until the request ends
+struct ContextUse {
+    ModelHandle& model;
+    bool ok = false;
     
-    if (llama_decode(g_llama_ctx->ctx, batch) != 0) {
-        LOGE("Failed to decode prompt");
-        llama_batch_free(batch);
-        return env->NewStringUTF("");
+    explicit ContextUse(ModelHandle& m) : model(m) {
+        std::unique_lock<std::mutex> lock(model.mutex);
+        model.n_users++;
+        if (model.ctx && (model.draft_ctx || !model.draft_model)) {
+            ok = true;
+            return;
+        }
+        model.cv.wait(lock, [this] { return !model.busy; });
+        model.busy = true;
+        lock.unlock();
+        ok = create_contexts(model);
+        lock.lock();
+        model.busy = false;
+        model.cv.notify_all();
     }
     
-    // Generate response
-    std::string response;
-    int n_cur = batch.n_tokens;
-    int n_gen = 0;
+    ~ContextUse() {
+        std::lock_guard<std::mutex> lock(model.mutex);
+        model.n_users--;
+    }
+};
+
+// Free memory the model can do without while no request runs. The draft
+// and embedding contexts always go (the draft's cache is rebuilt from the
+// conversation, the embedding context by the next embedding), and freed
+// heap pages are returned to the system. With release_main, the main
+// context goes too; every session's cache is then lost and its transcript
+// re-prefilled (or restored from a session file) on its next request.
+// Returns false if a request is running.
+static bool release_contexts(ModelHandle& model, bool release_main) {
+    std::unique_lock<std::mutex> lock(model.mutex);
+    model.cv.wait(lock, [&model] { return !model.busy; });
+    if (model.n_users > 0) {
+        return false;
+    }
+    model.busy = true;
+    lock.unlock();
     
-    while (n_gen < maxTokens) {
-        const llama_token new_token_id = llama_sampler_sample(g_llama_ctx->sampler, g_llama_ctx->ctx, -1);
-        
-        // Check for EOG with new API
-        if (llama_vocab_is_eog(vocab, new_token_id)) {
-            break;
-        }
-        
-        // Get token text with new API
-        char token_str[256];
-        int n = llama_token_to_piece(vocab, new_token_id, token_str, sizeof(token_str), 0, false);
-        
-        if (n > 0) {
-            response.append(token_str, n);
+    for (SessionHandle* s : model.sessions) {
+        if (s) {
+            s->draft_tokens.clear();
+            if (release_main) {
+                s->chat.invalidate();
+            }
         }
-        
-        // Prepare next batch - manual clear
-        batch.n_tokens = 0;
-        llama_batch_add(batch, new_token_id, n_cur++, {0}, true);
-        
-        if (llama_decode(g_llama_ctx->ctx, batch) != 0) {
-            LOGE("Failed to decode token");
-            break;
+    }
+    if (model.draft_ctx) {
+        llama_free(model.draft_ctx);
+        model.draft_ctx = nullptr;
+    }
+    if (release_main && model.ctx) {
+        llama_free(model.ctx);
+        model.ctx = nullptr;
+    }
+    {
+        std::lock_guard<std::mutex> embed_lock(model.embed_mutex);
+        if (model.embed_ctx) {
+            llama_free(model.embed_ctx);
+            model.embed_ctx = nullptr;
         }
-        
-        n_gen++;
     }
+    purge_heap();
+    LOGI("Memory trimmed%s", release_main ? ", context released" : "");
     
-    llama_batch_free(batch);
+    lock.lock();
+    model.busy = false;
+    model.cv.notify_all();
+    return true;
+}
+
+// Streaming: flush to Java after this many tokens or this much time,
+// whichever comes first
+static const int STREAM_FLUSH_TOKENS = 4;
+static const int64_t STREAM_FLUSH_INTERVAL_US = 50 * 1000;
+
+// Generated text on its way to Java. UTF-8 bytes are copied into the
+// session's direct output buffer and handed over with Utf8Pipe.onBytes(end),
+// which decodes them and returns how many bytes of an incomplete code point
+// it kept at the start of the buffer for the next call. A token piece may
+// end in the middle of a code point; Java holds it back, so nothing here
+// needs to know where characters end. Nothing is allocated per flush on
+// either side.
+struct Utf8Sink {
+    JNIEnv* env = nullptr;
+    jobject pipe = nullptr;
+    jmethodID on_bytes = nullptr;
+    char* buf = nullptr;
+    size_t capacity = 0;
+    size_t used = 0;        // bytes in buf, including held-back ones
+    bool stream = false;    // deliver while generating, not only at the end
     
-    LOGI("Generated %d tokens", n_gen);
+    bool init(JNIEnv* e, jobject output, jobject p, bool s) {
+        env = e;
+        pipe = p;
+        stream = s;
+        buf = static_cast<char*>(env->GetDirectBufferAddress(output));
+        capacity = buf ? env->GetDirectBufferCapacity(output) : 0;
+        jclass pipe_class = env->GetObjectClass(pipe);
+        on_bytes = env->GetMethodID(pipe_class, "onBytes", "(I)I");
+        env->DeleteLocalRef(pipe_class);
+        if (!on_bytes || capacity < 8) {
+            LOGE("Output buffer is not usable");
+            env->ExceptionClear();
+            return false;
+        }
+        return true;
+    }
     
-    return env->NewStringUTF(response.c_str());
+    // Copy bytes to the buffer, handing it to Java whenever it fills up.
+    // Returns false if Java threw.
+    bool write(const char* data, size_t n) {
+        while (n > 0) {
+            size_t k = std::min(n, capacity - used);
+            memcpy(buf + used, data, k);
+            used += k;
+            data += k;
+            n -= k;
+            if (used == capacity && !flush()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    bool flush() {
+        jint kept = env->CallIntMethod(pipe, on_bytes, (jint) used);
+        if (env->ExceptionCheck()) {
+            LOGE("Text listener threw, stopping generation");
+            return false;
+        }
+        used = kept;
+        return true;
+    }
+};
+
+// Bytes reserved in the response for each token piece; longer pieces
+// (rare, e.g. long whitespace runs) are retried at their size
+static const int PIECE_BYTES = 32;
+
+// Append a token's text to out in place, without a temporary buffer
+static void append_piece(const llama_vocab* vocab, llama_token token, std::string& out) {
+    size_t start = out.size();
+    out.resize(start + PIECE_BYTES);
+    int n = llama_token_to_piece(vocab, token, &out[start], PIECE_BYTES, 0, false);
+    if (n < 0) {
+        out.resize(start - n);
+        n = llama_token_to_piece(vocab, token, &out[start], -n, 0, false);
+    }
+    out.resize(start + std::max(n, 0));
 }
 
-// Unload model
-JNIEXPORT void JNICALL
-Java_com_saaya_ai_LlamaCpp_unloadModel(JNIEnv* env, jclass clazz) {
-    LOGI("Unloading model");
-    
-    if (g_llama_ctx) {
-        if (g_llama_ctx->sampler) {
-            llama_sampler_free(g_llama_ctx->sampler);
+// Java strings as real UTF-8. GetStringUTFChars and NewStringUTF use
+// modified UTF-8, which encodes characters outside the BMP (emoji) as two
+// 3-byte surrogates and rejects the 4-byte form the tokenizer produces.
+static std::string jstring_to_string(JNIEnv* env, jstring str) {
+    const jsize len = env->GetStringLength(str);
+    const jchar* chars = env->GetStringChars(str, nullptr);
+    std::string out;
+    out.reserve(len * 3);
+    for (jsize i = 0; i < len; i++) {
+        uint32_t c = chars[i];
+        if (c >= 0xD800 && c < 0xDC00 && i + 1 < len && chars[i + 1] >= 0xDC00 && chars[i + 1] < 0xE000) {
+            c = 0x10000 + ((c - 0xD800) << 10) + (chars[++i] - 0xDC00);
+        } else if (c >= 0xD800 && c < 0xE000) {
+            c = 0xFFFD; // unpaired surrogate
+        }
+        if (c < 0x80) {
+            out += (char) c;
+        } else if (c < 0x800) {
+            out += (char) (0xC0 | (c >> 6));
+            out += (char) (0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+            out += (char) (0xE0 | (c >> 12));
+            out += (char) (0x80 | ((c >> 6) & 0x3F));
+            out += (char) (0x80 | (c & 0x3F));
+        } else {
+            out += (char) (0xF0 | (c >> 18));
+            out += (char) (0x80 | ((c >> 12) & 0x3F));
+            out += (char) (0x80 | ((c >> 6) & 0x3F));
+            out += (char) (0x80 | (c & 0x3F));
+        }
+    }
+    env->ReleaseStringChars(str, chars);
+    return out;
+}
+
+static jstring string_to_jstring(JNIEnv* env, const std::string& str) {
+    std::vector<jchar> chars;
+    chars.reserve(str.size());
+    const unsigned char* p = reinterpret_cast<const unsigned char*>(str.data());
+    const size_t len = str.size();
+    for (size_t i = 0; i < len;) {
+        uint32_t c = p[i];
+        size_t n = c < 0x80 ? 1 : (c & 0xE0) == 0xC0 ? 2 : (c & 0xF0) == 0xE0 ? 3 : (c & 0xF8) == 0xF0 ? 4 : 0;
+        bool valid = n > 0 && i + n <= len;
+        for (size_t k = 1; valid && k < n; k++) {
+            valid = (p[i + k] & 0xC0) == 0x80;
+        }
+        if (!valid) {
+            chars.push_back(0xFFFD);
+            i++;
+            continue;
         }
-        if (g_llama_ctx->ctx) {
-            llama_free(g_llama_ctx->ctx);
+        if (n > 1) {
+            c &= 0x7F >> n;
+            for (size_t k = 1; k < n; k++) {
+                c = (c << 6) | (p[i + k] & 0x3F);
+            }
         }
-        if (g_llama_ctx->model) {
-            llama_model_free(g_llama_ctx->model);
+        i += n;
+        if (c >= 0x10000) {
+            c -= 0x10000;
+            chars.push_back((jchar) (0xD800 + (c >> 10)));
+            chars.push_back((jchar) (0xDC00 + (c & 0x3FF)));
+        } else {
+            chars.push_back((jchar) c);
         }
-        g_llama_ctx.reset();
     }
+    return env->NewString(chars.data(), chars.size());
 }
 
-// Get model info
-JNIEXPORT jstring JNICALL
-Java_com_saaya_ai_LlamaCpp_getModelInfo(JNIEnv* env, jclass clazz) {
-    if (!g_llama_ctx || !g_llama_ctx->model) {
-        return env->NewStringUTF("No model loaded");
+// Resident set size of this process, from /proc/self/statm
+static int64_t resident_bytes() {
+    FILE* f = fopen("/proc/self/statm", "r");
+    if (!f) {
+        return 0;
+    }
+    long pages_total = 0;
+    long pages_resident = 0;
+    int n = fscanf(f, "%ld %ld", &pages_total, &pages_resident);
+    fclose(f);
+    return n == 2 ? (int64_t) pages_resident * sysconf(_SC_PAGESIZE) : 0;
+}
+
+static void begin_metrics(SessionHandle& s) {
+    s.metrics = RequestMetrics();
+    s.metrics.t_start_us = llama_time_us();
+}
+
+// Complete the request in progress and add it to the rolling window
+static void end_metrics(SessionHandle& s) {
+    RequestMetrics& m = s.metrics;
+    m.n_ctx = s.owner->params.n_ctx;
+    m.rss_bytes = resident_bytes();
+    
+    auto& history = s.metrics_history;
+    history.push_back(m);
+    if (history.size() > METRICS_WINDOW) {
+        history.pop_front();
     }
     
-    // Get vocab for vocab size
-    const llama_vocab* vocab = llama_model_get_vocab(g_llama_ctx->model);
-    int32_t n_vocab = llama_vocab_n_tokens(vocab);
+    LOGI("Metrics (seq %d): prompt %d (+%d cached) in %.1f ms, TTFT %.1f ms, %d tokens in %.1f ms (%.1f tok/s)",
+         s.seq, m.n_prompt, m.n_cached, m.t_prefill_us / 1000.0, m.t_first_token_us / 1000.0,
+         m.n_generated, m.t_decode_us / 1000.0,
+         m.t_decode_us > 0 ? m.n_generated * 1e6 / m.t_decode_us : 0.0);
+}
+
+// Session files: header, transcript, cached tokens, then the raw KV state
+// of the session's sequence. Bump the version whenever the layout changes.
+static const uint32_t SESSION_FILE_MAGIC = 0x53594153; // "SAYS"
+static const uint32_t SESSION_FILE_VERSION = 2;
+static const size_t FINGERPRINT_SPAN = 1024 * 1024;
+
+// FNV-1a over the file size plus its first and last megabyte. The head
+// holds the GGUF metadata and the tail the last tensors, so fine-tunes of
+// the same architecture and size still get different fingerprints.
+static uint64_t fingerprint_model_file(const char* path) {
+    FILE* f = fopen(path, "rb");
+    if (!f) {
+        return 0;
+    }
     
-    char buf[512];
-    char desc[256];
-    llama_model_desc(g_llama_ctx->model, desc, sizeof(desc));
+    uint64_t hash = 0xcbf29ce484222325ULL;
+    auto mix = [&hash](const unsigned char* data, size_t len) {
+        for (size_t i = 0; i < len; i++) {
+            hash ^= data[i];
+            hash *= 0x100000001b3ULL;
+        }
+    };
     
-    snprintf(buf, sizeof(buf), 
-        "Model: %s\nContext: %d\nThreads: %d\nVocab: %d",
-        desc,
-        g_llama_ctx->n_ctx,
-        g_llama_ctx->n_threads,
-        n_vocab
-    );
+    fseeko(f, 0, SEEK_END);
+    uint64_t file_size = ftello(f);
+    mix(reinterpret_cast<const unsigned char*>(&file_size), sizeof(file_size));
+    
+    std::vector<unsigned char> buf(FINGERPRINT_SPAN);
+    fseeko(f, 0, SEEK_SET);
+    mix(buf.data(), fread(buf.data(), 1, buf.size(), f));
+    if (file_size > FINGERPRINT_SPAN) {
+        fseeko(f, file_size - FINGERPRINT_SPAN, SEEK_SET);
+        mix(buf.data(), fread(buf.data(), 1, buf.size(), f));
+    }
+    
+    fclose(f);
+    return hash;
+}
+
+template <typename T>
+static bool write_pod(FILE* f, const T& value) {
+    return fwrite(&value, sizeof(T), 1, f) == 1;
+}
+
+template <typename T>
+static bool read_pod(FILE* f, T& value) {
+    return fread(&value, sizeof(T), 1, f) == 1;
+}
+
+static bool write_string(FILE* f, const std::string& str) {
+    uint32_t len = str.size();
+    return write_pod(f, len) && fwrite(str.data(), 1, len, f) == len;
+}
+
+static bool read_string(FILE* f, std::string& str) {
+    uint32_t len;
+    if (!read_pod(f, len) || len > (64u << 20)) {
+        return false;
+    }
+    str.resize(len);
+    return fread(&str[0], 1, len, f) == len;
+}
+
+// Prompt prefixes kept by PrefixCache. Shorter matches are cheaper to
+// prefill than to restore.
+static const uint32_t PREFIX_FILE_MAGIC = 0x43505953; // "SYPC"
+static const uint32_t PREFIX_FILE_VERSION = 1;
+static const size_t PREFIX_MIN_TOKENS = 32;
+
+// FNV-1a over the token ids
+static uint64_t hash_tokens(const llama_token* tokens, size_t n) {
+    uint64_t hash = 0xcbf29ce484222325ULL;
+    const uint8_t* bytes = reinterpret_cast<const uint8_t*>(tokens);
+    for (size_t i = 0; i < n * sizeof(llama_token); i++) {
+        hash = (hash ^ bytes[i]) * 0x100000001b3ULL;
+    }
+    return hash;
+}
+
+// Files are named by cache tag and key, so several models and KV cache
+// types can share the directory
+static std::string prefix_file_path(const PrefixCache& cache, uint64_t key) {
+    char name[48];
+    snprintf(name, sizeof(name), "/%016llx-%016llx.kv",
+             (unsigned long long) cache.tag, (unsigned long long) key);
+    return cache.dir + name;
+}
+
+static bool write_prefix_file(const PrefixCache& cache, const PrefixEntry& entry,
+                              const std::vector<uint8_t>& state) {
+    std::string path = prefix_file_path(cache, entry.key);
+    std::string tmp_path = path + ".tmp";
+    FILE* f = fopen(tmp_path.c_str(), "wb");
+    if (!f) {
+        LOGE("Cannot open prefix cache file for writing: %s", tmp_path.c_str());
+        return false;
+    }
+    uint32_t n_tokens = entry.tokens.size();
+    uint64_t state_size = state.size();
+    bool ok = write_pod(f, PREFIX_FILE_MAGIC)
+        && write_pod(f, PREFIX_FILE_VERSION)
+        && write_pod(f, cache.tag)
+        && write_pod(f, n_tokens)
+        && fwrite(entry.tokens.data(), sizeof(llama_token), n_tokens, f) == n_tokens
+        && write_pod(f, state_size)
+        && fwrite(state.data(), 1, state_size, f) == state_size;
+    ok = (fclose(f) == 0) && ok;
+    if (!ok || rename(tmp_path.c_str(), path.c_str()) != 0) {
+        LOGE("Failed to write prefix cache file");
+        remove(tmp_path.c_str());
+        return false;
+    }
+    return true;
+}
+
+// Read a prefix file's tokens and state size, and the state itself if
+// state is non-null
+static bool read_prefix_file(const std::string& path, uint64_t tag, std::vector<llama_token>& tokens,
+                             uint64_t& state_size, std::vector<uint8_t>* state) {
+    FILE* f = fopen(path.c_str(), "rb");
+    if (!f) {
+        return false;
+    }
+    uint32_t magic = 0;
+    uint32_t version = 0;
+    uint64_t file_tag = 0;
+    uint32_t n_tokens = 0;
+    bool ok = read_pod(f, magic) && magic == PREFIX_FILE_MAGIC
+        && read_pod(f, version) && version == PREFIX_FILE_VERSION
+        && read_pod(f, file_tag) && file_tag == tag
+        && read_pod(f, n_tokens) && n_tokens <= (16u << 20);
+    if (ok) {
+        tokens.resize(n_tokens);
+        ok = fread(tokens.data(), sizeof(llama_token), n_tokens, f) == n_tokens
+            && read_pod(f, state_size);
+    }
+    if (ok && state) {
+        state->resize(state_size);
+        ok = fread(state->data(), 1, state_size, f) == state_size;
+    }
+    fclose(f);
+    return ok;
+}
+
+// Bring the cache within memory_budget (which may be below its own, to
+// trim it) and its disk budget, least recently used entries first. With
+// spill set, states that fit the disk budget are written out first, with
+// the lock released; without it only states already on disk are let go,
+// and the rest wait for the next spill. Removing a file is left under the
+// lock, so it cannot race a spill of the same key.
+static void prefix_cache_shrink(PrefixCache& cache, uint64_t memory_budget,
+                                std::unique_lock<std::mutex>& lock, bool spill) {
+    std::vector<std::pair<PrefixEntry*, std::shared_ptr<std::vector<uint8_t>>>> spills;
+    for (auto it = cache.entries.rbegin(); it != cache.entries.rend() && cache.memory_bytes > memory_budget; ++it) {
+        if (!it->state || it->busy) {
+            continue;
+        }
+        bool write = !cache.dir.empty() && !it->on_disk && it->state_bytes <= cache.disk_budget;
+        if (write && !spill) {
+            continue;
+        }
+        if (write) {
+            it->busy = true;
+            spills.emplace_back(&*it, it->state);
+        }
+        it->state.reset();
+        cache.memory_bytes -= it->state_bytes;
+    }
+    if (!spills.empty()) {
+        std::vector<bool> written;
+        lock.unlock();
+        for (const auto& spilled : spills) {
+            written.push_back(write_prefix_file(cache, *spilled.first, *spilled.second));
+        }
+        lock.lock();
+        for (size_t i = 0; i < spills.size(); i++) {
+            PrefixEntry& entry = *spills[i].first;
+            entry.busy = false;
+            if (written[i]) {
+                entry.on_disk = true;
+                cache.disk_bytes += entry.state_bytes;
+            }
+        }
+    }
+    for (auto it = cache.entries.rbegin(); it != cache.entries.rend() && cache.disk_bytes > cache.disk_budget; ++it) {
+        if (it->on_disk && !it->busy) {
+            remove(prefix_file_path(cache, it->key).c_str());
+            it->on_disk = false;
+            cache.disk_bytes -= it->state_bytes;
+        }
+    }
+    for (auto it = cache.entries.begin(); it != cache.entries.end();) {
+        if (!it->state && !it->on_disk && !it->busy) {
+            cache.n_evicted++;
+            it = cache.entries.erase(it);
+        } else {
+            ++it;
+        }
+    }
+}
+
+// Set up a loaded model's prefix cache from its engine options, indexing
+// the states an earlier run left on disk
+static void prefix_cache_open(ModelHandle& model) {
+    PrefixCache& cache = model.prefix_cache;
+    const EngineParams& params = model.params;
+    cache.memory_budget = std::max<int64_t>(params.prefix_cache_bytes, 0);
+    cache.disk_budget = std::max<int64_t>(params.prefix_cache_disk_bytes, 0);
+    cache.dir = cache.memory_budget > 0 ? params.prefix_cache_dir : std::string();
+    cache.tag = model.fingerprint ^ (((uint64_t) params.type_k << 8 | params.type_v) * 0x9e3779b97f4a7c15ULL);
+    if (cache.dir.empty()) {
+        return;
+    }
+    
+    DIR* dir = opendir(cache.dir.c_str());
+    if (!dir) {
+        LOGE("Prefix cache directory not readable: %s", cache.dir.c_str());
+        cache.dir.clear();
+        return;
+    }
+    char prefix[24];
+    snprintf(prefix, sizeof(prefix), "%016llx-", (unsigned long long) cache.tag);
+    while (dirent* ent = readdir(dir)) {
+        std::string name = ent->d_name;
+        if (name.compare(0, 17, prefix) != 0 || name.size() < 4 || name.compare(name.size() - 3, 3, ".kv") != 0) {
+            continue;
+        }
+        PrefixEntry entry;
+        std::string path = cache.dir + "/" + name;
+        if (!read_prefix_file(path, cache.tag, entry.tokens, entry.state_bytes, nullptr)) {
+            remove(path.c_str());
+            continue;
+        }
+        entry.key = hash_tokens(entry.tokens.data(), entry.tokens.size());
+        entry.on_disk = true;
+        cache.disk_bytes += entry.state_bytes;
+        cache.entries.push_back(std::move(entry));
+    }
+    closedir(dir);
+    std::unique_lock<std::mutex> lock(cache.mutex);
+    prefix_cache_shrink(cache, cache.memory_budget, lock, true);
+    LOGI("Prefix cache: %llu MB in memory, %llu MB on disk, %zu entries found",
+         (unsigned long long) (cache.memory_budget >> 20), (unsigned long long) (cache.disk_budget >> 20),
+         cache.entries.size());
+}
+
+// Longest cached prefix of tokens[0, n_max), with its state loaded into
+// memory. Returns its length, 0 if none is long enough. A state read back
+// from disk may leave the cache over its memory budget until the next
+// store or trim spills.
+static size_t prefix_cache_find(PrefixCache& cache, const std::vector<llama_token>& tokens, size_t n_max,
+                                std::shared_ptr<std::vector<uint8_t>>& state) {
+    std::unique_lock<std::mutex> lock(cache.mutex);
+    if (cache.memory_budget == 0) {
+        return 0;
+    }
+    cache.n_lookups++;
+    
+    auto best = cache.entries.end();
+    size_t n_best = 0;
+    for (auto it = cache.entries.begin(); it != cache.entries.end(); ++it) {
+        if (it->busy) {
+            continue;
+        }
+        size_t n = std::min(it->tokens.size(), n_max);
+        size_t k = 0;
+        while (k < n && it->tokens[k] == tokens[k]) {
+            k++;
+        }
+        if (k > n_best) {
+            best = it;
+            n_best = k;
+        }
+    }
+    if (n_best < PREFIX_MIN_TOKENS) {
+        return 0;
+    }
+    
+    if (!best->state) {
+        best->busy = true;
+        lock.unlock();
+        auto loaded = std::make_shared<std::vector<uint8_t>>();
+        std::vector<llama_token> file_tokens;
+        uint64_t state_size = 0;
+        bool ok = read_prefix_file(prefix_file_path(cache, best->key), cache.tag, file_tokens, state_size,
+                                   loaded.get()) && file_tokens == best->tokens;
+        lock.lock();
+        best->busy = false;
+        if (!ok) {
+            LOGE("Prefix cache file unreadable, dropped");
+            remove(prefix_file_path(cache, best->key).c_str());
+            cache.disk_bytes -= best->state_bytes;
+            cache.entries.erase(best);
+            cache.n_evicted++;
+            return 0;
+        }
+        best->state = loaded;
+        cache.memory_bytes += best->state_bytes;
+    }
+    cache.entries.splice(cache.entries.begin(), cache.entries, best);
+    state = best->state;
+    prefix_cache_shrink(cache, cache.memory_budget, lock, false);
+    return n_best;
+}
+
+// Restore the longest cached prefix of tokens into the session's empty
+// sequence, leaving at least the last token to decode for its logits.
+// Returns the number of tokens restored, 0 if none.
+static size_t prefix_cache_restore(SessionHandle& s, const std::vector<llama_token>& tokens) {
+    PrefixCache& cache = s.owner->prefix_cache;
+    if (tokens.size() <= PREFIX_MIN_TOKENS) {
+        return 0;
+    }
+    std::shared_ptr<std::vector<uint8_t>> state;
+    size_t n = prefix_cache_find(cache, tokens, tokens.size() - 1, state);
+    if (n == 0) {
+        return 0;
+    }
+    
+    bool restored = false;
+    with_context(*s.owner, [&] {
+        restored = llama_state_seq_set_data(s.owner->ctx, state->data(), state->size(), s.seq) != 0;
+        // The entry may run past the shared part
+        llama_kv_cache_seq_rm(s.owner->ctx, s.seq, restored ? n : 0, -1);
+    });
+    if (!restored) {
+        LOGE("Failed to restore cached prefix");
+        return 0;
+    }
+    
+    std::lock_guard<std::mutex> lock(cache.mutex);
+    cache.n_hits++;
+    cache.n_saved_tokens += n;
+    return n;
+}
+
+// Keep the KV state of tokens, which the session's sequence starts with.
+// Cells after them (the reply) are removed first, so the sequence must not
+// be needed afterwards. The state is only copied if it fits the memory
+// budget. Entries whose tokens are a prefix of these are dropped: this one
+// matches at least as much wherever they do.
+static void prefix_cache_store(SessionHandle& s, const std::vector<llama_token>& tokens) {
+    PrefixCache& cache = s.owner->prefix_cache;
+    if (tokens.size() < PREFIX_MIN_TOKENS) {
+        return;
+    }
+    uint64_t key = hash_tokens(tokens.data(), tokens.size());
+    uint64_t budget;
+    {
+        std::lock_guard<std::mutex> lock(cache.mutex);
+        budget = cache.memory_budget;
+        if (budget == 0) {
+            return;
+        }
+        for (auto it = cache.entries.begin(); it != cache.entries.end(); ++it) {
+            if (it->key == key && it->tokens == tokens) {
+                cache.entries.splice(cache.entries.begin(), cache.entries, it);
+                return;
+            }
+        }
+    }
+    
+    auto state = std::make_shared<std::vector<uint8_t>>();
+    size_t n_bytes = 0;
+    with_context(*s.owner, [&] {
+        llama_kv_cache_seq_rm(s.owner->ctx, s.seq, tokens.size(), -1);
+        n_bytes = llama_state_seq_get_size(s.owner->ctx, s.seq);
+        if (n_bytes > 0 && n_bytes <= budget) {
+            state->resize(n_bytes);
+            state->resize(llama_state_seq_get_data(s.owner->ctx, state->data(), state->size(), s.seq));
+        }
+    });
+    if (n_bytes > budget) {
+        LOGI("Prefix of %zu tokens (%zu MB) exceeds the prefix cache budget, not stored",
+             tokens.size(), n_bytes >> 20);
+        return;
+    }
+    
+    std::unique_lock<std::mutex> lock(cache.mutex);
+    if (state->empty() || state->size() > cache.memory_budget) {
+        return;
+    }
+    for (auto it = cache.entries.begin(); it != cache.entries.end();) {
+        if (!it->busy && it->tokens.size() <= tokens.size() &&
+            std::equal(it->tokens.begin(), it->tokens.end(), tokens.begin())) {
+            if (it->state) {
+                cache.memory_bytes -= it->state_bytes;
+            }
+            if (it->on_disk) {
+                remove(prefix_file_path(cache, it->key).c_str());
+                cache.disk_bytes -= it->state_bytes;
+            }
+            it = cache.entries.erase(it);
+        } else {
+            ++it;
+        }
+    }
+    PrefixEntry entry;
+    entry.key = key;
+    entry.tokens = tokens;
+    entry.state_bytes = state->size();
+    entry.state = std::move(state);
+    cache.memory_bytes += entry.state_bytes;
+    cache.entries.push_front(std::move(entry));
+    cache.n_stored++;
+    prefix_cache_shrink(cache, cache.memory_budget, lock, true);
+}
+
+// Move the cached states out of memory: to disk if the cache has a
+// directory, otherwise they are dropped
+static void prefix_cache_trim(ModelHandle& model) {
+    PrefixCache& cache = model.prefix_cache;
+    std::unique_lock<std::mutex> lock(cache.mutex);
+    if (cache.memory_bytes > 0) {
+        LOGI("Prefix cache: %llu MB moved out of memory", (unsigned long long) (cache.memory_bytes >> 20));
+    }
+    prefix_cache_shrink(cache, 0, lock, true);
+}
+
+extern "C" {
+
+// Initialize backend
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_initBackend(JNIEnv* env, jclass clazz) {
+    LOGI("Initializing llama.cpp backend (%s build)", SAAYA_CPU_VARIANT);
+    llama_backend_init();
+    llama_numa_init(GGML_NUMA_STRATEGY_DISABLED);
+}
+
+// Free backend
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_freeBackend(JNIEnv* env, jclass clazz) {
+    LOGI("Freeing llama.cpp backend");
+    llama_backend_free();
+}
+
+// Read an EngineConfig object field by field
+static EngineParams read_engine_config(JNIEnv* env, jobject config) {
+    EngineParams params;
+    jclass cls = env->GetObjectClass(config);
+    
+    params.n_ctx = env->GetIntField(config, env->GetFieldID(cls, "nCtx", "I"));
+    params.n_seq_max = env->GetIntField(config, env->GetFieldID(cls, "nSeqMax", "I"));
+    params.n_threads = env->GetIntField(config, env->GetFieldID(cls, "nThreads", "I"));
+    params.n_threads_batch = env->GetIntField(config, env->GetFieldID(cls, "nThreadsBatch", "I"));
+    params.n_batch = env->GetIntField(config, env->GetFieldID(cls, "nBatch", "I"));
+    params.n_ubatch = env->GetIntField(config, env->GetFieldID(cls, "nUbatch", "I"));
+    params.flash_attn = env->GetBooleanField(config, env->GetFieldID(cls, "flashAttention", "Z"));
+    params.use_mmap = env->GetBooleanField(config, env->GetFieldID(cls, "useMmap", "Z"));
+    params.use_mlock = env->GetBooleanField(config, env->GetFieldID(cls, "useMlock", "Z"));
+    params.n_draft = env->GetIntField(config, env->GetFieldID(cls, "nDraft", "I"));
+    params.prefix_cache_bytes = env->GetLongField(config, env->GetFieldID(cls, "prefixCacheBytes", "J"));
+    params.prefix_cache_disk_bytes = env->GetLongField(config, env->GetFieldID(cls, "prefixCacheDiskBytes", "J"));
+    jstring prefix_dir = (jstring) env->GetObjectField(config,
+        env->GetFieldID(cls, "prefixCacheDir", "Ljava/lang/String;"));
+    if (prefix_dir) {
+        params.prefix_cache_dir = jstring_to_string(env, prefix_dir);
+        env->DeleteLocalRef(prefix_dir);
+    }
+    
+    const char* kv_sig = "Lcom/saaya/ai/EngineConfig$KvCacheType;";
+    jobject type_k = env->GetObjectField(config, env->GetFieldID(cls, "kvCacheTypeK", kv_sig));
+    jobject type_v = env->GetObjectField(config, env->GetFieldID(cls, "kvCacheTypeV", kv_sig));
+    jclass kv_cls = env->GetObjectClass(type_k);
+    jfieldID ggml_type_field = env->GetFieldID(kv_cls, "ggmlType", "I");
+    params.type_k = static_cast<ggml_type>(env->GetIntField(type_k, ggml_type_field));
+    params.type_v = static_cast<ggml_type>(env->GetIntField(type_v, ggml_type_field));
+    
+    env->DeleteLocalRef(kv_cls);
+    env->DeleteLocalRef(type_k);
+    env->DeleteLocalRef(type_v);
+    env->DeleteLocalRef(cls);
+    return params;
+}
+
+// Bytes the KV cache of a loaded model takes with the given parameters
+static uint64_t kv_cache_bytes(const llama_model* model, const EngineParams& params) {
+    int n_head = llama_model_n_head(model);
+    if (n_head <= 0) {
+        return 0;
+    }
+    uint64_t n_embd_gqa = (uint64_t) llama_model_n_embd(model) / n_head * llama_model_n_head_kv(model);
+    uint64_t elements = (uint64_t) llama_model_n_layer(model) * params.n_ctx * params.n_seq_max * n_embd_gqa;
+    return elements * ggml_type_size(params.type_k) / ggml_blck_size(params.type_k)
+         + elements * ggml_type_size(params.type_v) / ggml_blck_size(params.type_v);
+}
+
+static void free_draft(ModelHandle* handle) {
+    if (handle->draft_ctx) {
+        llama_free(handle->draft_ctx);
+        handle->draft_ctx = nullptr;
+    }
+    if (handle->draft_model) {
+        llama_model_free(handle->draft_model);
+        handle->draft_model = nullptr;
+    }
+}
+
+static void free_model(ModelHandle* handle) {
+    free_draft(handle);
+    if (handle->embed_ctx) {
+        llama_free(handle->embed_ctx);
+    }
+    if (handle->batch.token) {
+        llama_batch_free(handle->batch);
+    }
+    if (handle->ctx) {
+        llama_free(handle->ctx);
+    }
+    if (handle->threadpool) {
+        ggml_threadpool_free(handle->threadpool);
+        ggml_threadpool_free(handle->threadpool_batch);
+    }
+    if (handle->model) {
+        llama_model_free(handle->model);
+    }
+    delete handle;
+}
+
+// A draft model can only propose tokens the target understands the same
+// way: same tokenizer type, special tokens and token texts
+static bool vocab_compatible(const llama_model* target, const llama_model* draft) {
+    const llama_vocab* vt = llama_model_get_vocab(target);
+    const llama_vocab* vd = llama_model_get_vocab(draft);
+    
+    if (llama_vocab_type(vt) != llama_vocab_type(vd) ||
+        llama_vocab_n_tokens(vt) != llama_vocab_n_tokens(vd) ||
+        llama_vocab_bos(vt) != llama_vocab_bos(vd) ||
+        llama_vocab_eos(vt) != llama_vocab_eos(vd) ||
+        llama_vocab_get_add_bos(vt) != llama_vocab_get_add_bos(vd)) {
+        return false;
+    }
+    
+    int32_t n_vocab = llama_vocab_n_tokens(vt);
+    for (llama_token id = 0; id < n_vocab; id++) {
+        if (strcmp(llama_vocab_get_text(vt, id), llama_vocab_get_text(vd, id)) != 0) {
+            return false;
+        }
+    }
+    return true;
+}
+
+// Load the draft model for speculative decoding next to a loaded target.
+// Failure is not fatal: the model then decodes one token per step.
+static void load_draft_model(ModelHandle* handle, const char* draft_path,
+                             const llama_model_params& model_params,
+                             const llama_context_params& ctx_params) {
+    LOGI("Loading draft model from: %s", draft_path);
+    handle->draft_model = llama_model_load_from_file(draft_path, model_params);
+    if (!handle->draft_model) {
+        LOGE("Failed to load draft model, speculative decoding off");
+        return;
+    }
+    if (!vocab_compatible(handle->model, handle->draft_model)) {
+        LOGE("Draft model vocabulary does not match, speculative decoding off");
+        free_draft(handle);
+        return;
+    }
+    
+    handle->draft_ctx = llama_init_from_model(handle->draft_model, draft_context_params(ctx_params));
+    if (!handle->draft_ctx) {
+        LOGE("Failed to create draft context, speculative decoding off");
+        free_draft(handle);
+        return;
+    }
+    LOGI("Speculative decoding on, %d draft tokens per step", handle->params.n_draft);
+}
+
+// Load model from a path (a real file or /proc/self/fd/N), with an optional
+// draft model (null for none)
+static ModelHandle* load_model_from_path(const char* model_path, const char* draft_path,
+                                         const EngineParams& params) {
+    LOGI("Loading model from: %s", model_path);
+    LOGI("Context size: %d x %d sessions, Threads: %d/%d, Batch: %d/%d, KV: %s/%s, Flash attention: %d",
+         params.n_ctx, params.n_seq_max, params.n_threads, params.n_threads_batch,
+         params.n_batch, params.n_ubatch,
+         ggml_type_name(params.type_k), ggml_type_name(params.type_v), params.flash_attn);
+    
+    ModelHandle* handle = new ModelHandle();
+    handle->params = params;
+    
+    // Model parameters
+    llama_model_params model_params = llama_model_default_params();
+    model_params.n_gpu_layers = 0; // CPU only
+    model_params.use_mmap = params.use_mmap;
+    model_params.use_mlock = params.use_mlock;
+    
+    // Load model with new API
+    handle->model = llama_model_load_from_file(model_path, model_params);
+    
+    if (!handle->model) {
+        LOGE("Failed to load model");
+        free_model(handle);
+        return nullptr;
+    }
+    
+    // Context parameters: one KV sequence of n_ctx cells per session
+    llama_context_params ctx_params = llama_context_default_params();
+    ctx_params.n_ctx = params.n_ctx * params.n_seq_max;
+    ctx_params.n_seq_max = params.n_seq_max;
+    ctx_params.n_threads = params.n_threads;
+    ctx_params.n_threads_batch = params.n_threads_batch;
+    ctx_params.n_batch = params.n_batch;
+    ctx_params.n_ubatch = params.n_ubatch;
+    ctx_params.type_k = params.type_k;
+    ctx_params.type_v = params.type_v;
+    ctx_params.flash_attn = params.flash_attn;
+    ctx_params.abort_callback = abort_callback;
+    ctx_params.abort_callback_data = handle;
+    
+    // Create context with new API
+    handle->ctx_params = ctx_params;
+    handle->ctx = llama_init_from_model(handle->model, ctx_params);
+    
+    if (!handle->ctx) {
+        LOGE("Failed to create context");
+        free_model(handle);
+        return nullptr;
+    }
+    
+    if (draft_path) {
+        load_draft_model(handle, draft_path, model_params, ctx_params);
+    }
+    
+    handle->batch = llama_batch_init(params.n_batch, 0, 1);
+    handle->seq_used.assign(params.n_seq_max, false);
+    handle->sessions.assign(params.n_seq_max, nullptr);
+    handle->fingerprint = fingerprint_model_file(model_path);
+    prefix_cache_open(*handle);
+    
+    LOGI("Model loaded successfully");
+    return handle;
+}
+
+// Load model and optional draft model (draftPath may be null), returning a
+// handle or 0
+JNIEXPORT jlong JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeLoadModel(
+    JNIEnv* env, 
+    jclass clazz,
+    jstring modelPath,
+    jstring draftPath,
+    jobject config
+) {
+    EngineParams params = read_engine_config(env, config);
+    
+    const char* model_path = env->GetStringUTFChars(modelPath, nullptr);
+    const char* draft_path = draftPath ? env->GetStringUTFChars(draftPath, nullptr) : nullptr;
+    ModelHandle* handle = load_model_from_path(model_path, draft_path, params);
+    env->ReleaseStringUTFChars(modelPath, model_path);
+    if (draft_path) {
+        env->ReleaseStringUTFChars(draftPath, draft_path);
+    }
+    
+    return reinterpret_cast<jlong>(handle);
+}
+
+// Load model from an open file descriptor (e.g. a picked document). The
+// file is reopened through /proc/self/fd so llama.cpp can mmap it in place;
+// the caller may close its descriptors once this returns. draftFd is -1
+// without a draft model.
+JNIEXPORT jlong JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeLoadModelFromFd(
+    JNIEnv* env,
+    jclass clazz,
+    jint fd,
+    jint draftFd,
+    jobject config
+) {
+    EngineParams params = read_engine_config(env, config);
+    
+    char fd_path[64];
+    snprintf(fd_path, sizeof(fd_path), "/proc/self/fd/%d", fd);
+    char draft_path[64];
+    snprintf(draft_path, sizeof(draft_path), "/proc/self/fd/%d", draftFd);
+    
+    return reinterpret_cast<jlong>(
+        load_model_from_path(fd_path, draftFd >= 0 ? draft_path : nullptr, params));
+}
+
+// Free a model. All of its sessions must have been freed.
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeFreeModel(JNIEnv* env, jclass clazz, jlong model) {
+    LOGI("Unloading model");
+    ModelHandle* handle = to_model(model);
+    if (!handle) {
+        return;
+    }
+    if (std::find(handle->seq_used.begin(), handle->seq_used.end(), true) != handle->seq_used.end()) {
+        LOGE("Model freed with sessions still open");
+    }
+    // Cached prefixes outlive the model on disk, for the next time it loads
+    prefix_cache_trim(*handle);
+    free_model(handle);
+}
+
+// Open a session on a model, returning a handle or 0 if every sequence
+// is taken
+JNIEXPORT jlong JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeCreateSession(JNIEnv* env, jclass clazz, jlong model) {
+    ModelHandle* owner = to_model(model);
+    
+    llama_seq_id seq = -1;
+    {
+        std::lock_guard<std::mutex> lock(owner->mutex);
+        for (size_t i = 0; i < owner->seq_used.size(); i++) {
+            if (!owner->seq_used[i]) {
+                owner->seq_used[i] = true;
+                seq = i;
+                break;
+            }
+        }
+    }
+    if (seq < 0) {
+        LOGE("All %d sessions in use", owner->params.n_seq_max);
+        return 0;
+    }
+    
+    SessionHandle* session = new SessionHandle();
+    session->owner = owner;
+    session->seq = seq;
+    
+    // A previous session may have left cells behind on this sequence
+    kv_clear(*session);
+    {
+        std::lock_guard<std::mutex> lock(owner->mutex);
+        owner->sessions[seq] = session;
+    }
+    
+    LOGI("Session opened on sequence %d", seq);
+    return reinterpret_cast<jlong>(session);
+}
+
+// Free a session and release its sequence. It must not be generating.
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeFreeSession(JNIEnv* env, jclass clazz, jlong session) {
+    SessionHandle* s = to_session(session);
+    if (!s) {
+        return;
+    }
+    kv_clear(*s);
+    {
+        std::lock_guard<std::mutex> lock(s->owner->mutex);
+        s->owner->seq_used[s->seq] = false;
+        s->owner->sessions[s->seq] = nullptr;
+    }
+    for (auto& entry : s->samplers) {
+        llama_sampler_free(entry.second);
+    }
+    LOGI("Session on sequence %d closed", s->seq);
+    delete s;
+}
+
+// Tokenize text, growing the buffer if the first guess is too small
+static std::vector<llama_token> tokenize_text(
+    const llama_vocab* vocab,
+    const std::string& text,
+    bool add_special,
+    bool parse_special
+) {
+    std::vector<llama_token> tokens;
+    tokens.resize(text.length() + 2);
+    
+    int n_tokens = llama_tokenize(
+        vocab,
+        text.c_str(),
+        text.length(),
+        tokens.data(),
+        tokens.size(),
+        add_special,
+        parse_special
+    );
+    
+    if (n_tokens < 0) {
+        tokens.resize(-n_tokens);
+        n_tokens = llama_tokenize(
+            vocab,
+            text.c_str(),
+            text.length(),
+            tokens.data(),
+            tokens.size(),
+            add_special,
+            parse_special
+        );
+    }
+    
+    tokens.resize(n_tokens > 0 ? n_tokens : 0);
+    return tokens;
+}
+
+// Make room in a session's conversation by dropping its oldest cached turns (user
+// message plus reply), keeping the system prompt prefix and the newest
+// n_protected turns. Frees at least n_needed cells and, to keep shifts
+// rare, about half of the non-system part when possible. end_message is
+// the first message not yet represented by a cached turn.
+static bool shift_conversation(SessionHandle& s, size_t n_needed, size_t n_protected,
+                               size_t end_message) {
+    ChatSession& session = s.chat;
+    std::vector<TurnStart>& turns = session.turns;
+    if (turns.size() <= n_protected) {
+        return false;
+    }
+    
+    const size_t n_keep = turns[0].token;
+    const size_t n_past = session.tokens.size();
+    const size_t target = std::max(n_needed, (n_past - n_keep) / 2);
+    const size_t limit = turns.size() - n_protected;
+    
+    // Cut in front of turn j (or at the end of the cache if j == size)
+    auto cut_token = [&](size_t j) { return j < turns.size() ? turns[j].token : n_past; };
+    size_t j = 1;
+    while (j < limit && cut_token(j) - n_keep < target) {
+        j++;
+    }
+    if (cut_token(j) - n_keep < n_needed) {
+        return false;
+    }
+    
+    size_t token_end = cut_token(j);
+    size_t text_start = turns[0].text;
+    size_t text_end = j < turns.size() ? turns[j].text : session.kv_text.size();
+    size_t n_discard = token_end - n_keep;
+    
+    kv_discard(s, n_keep, token_end);
+    session.tokens.erase(session.tokens.begin() + n_keep, session.tokens.begin() + token_end);
+    session.kv_text.erase(text_start, text_end - text_start);
+    session.first_message = j < turns.size() ? turns[j].message : end_message;
+    
+    turns.erase(turns.begin(), turns.begin() + j);
+    for (auto& turn : turns) {
+        turn.token -= n_discard;
+        turn.text -= text_end - text_start;
+    }
+    
+    LOGI("Context shift: dropped %zu turns (%zu tokens), kept %zu system tokens",
+         j, n_discard, n_keep);
+    return true;
+}
+
+// Decode tokens into the session's sequence starting at position n_past
+// and sample the first token of the reply from the last one. The batch
+// loop splits the prompt into n_batch slices, so its length is not limited
+// by the batch size and the compute buffer stays bounded. Returns the
+// llama_decode status (2 if cancelled).
+static int decode_prompt(SessionHandle& s, const std::vector<llama_token>& tokens, int n_past,
+                         llama_token& first_token) {
+    DecodeWork work;
+    work.session = &s;
+    work.tokens = tokens.data();
+    work.n_tokens = tokens.size();
+    work.pos = n_past;
+    work.sample = true;
+    
+    int status = decode_work(*s.owner, work);
+    first_token = work.token;
+    s.metrics.t_sample_us += work.t_sample_us;
+    return status;
+}
+
+// One speculative step, under exclusive access to the model. The draft
+// model catches up on history, proposes n_draft tokens after token, and the
+// target decodes token plus the proposals in one batch. Target samples are
+// compared with the proposals in order; out receives the accepted
+// proposals followed by the target's own next token. Target cells of
+// rejected proposals are removed. Returns the llama_decode status.
+static int speculative_step(SessionHandle& s, const std::vector<llama_token>& history,
+                            llama_token token, int n_draft, std::vector<llama_token>& out,
+                            int64_t& t_sample_us) {
+    ModelHandle& model = *s.owner;
+    const llama_vocab* vocab = llama_model_get_vocab(model.model);
+    const int n_past = history.size();
+    llama_batch& batch = model.batch;
+    int status = 0;
+    
+    with_context(model, [&] {
+        // Bring the draft sequence in line with history + token
+        size_t n_common = 0;
+        while (n_common < s.draft_tokens.size() && n_common < history.size() &&
+               s.draft_tokens[n_common] == history[n_common]) {
+            n_common++;
+        }
+        llama_kv_cache_seq_rm(model.draft_ctx, s.seq, n_common, -1);
+        s.draft_tokens.resize(n_common);
+        s.draft_tokens.insert(s.draft_tokens.end(), history.begin() + n_common, history.end());
+        s.draft_tokens.push_back(token);
+        
+        for (size_t i = n_common; i < s.draft_tokens.size() && status == 0;) {
+            batch.n_tokens = 0;
+            for (; i < s.draft_tokens.size() && batch.n_tokens < model.params.n_batch; i++) {
+                llama_batch_add(batch, s.draft_tokens[i], i, {s.seq}, i == s.draft_tokens.size() - 1);
+            }
+            status = llama_decode(model.draft_ctx, batch);
+        }
+        if (status != 0) {
+            s.draft_tokens.clear();
+            llama_kv_cache_seq_rm(model.draft_ctx, s.seq, -1, -1);
+            return;
+        }
+        
+        // Greedy proposals; the last one is not decoded by the draft
+        std::vector<llama_token> drafts;
+        while ((int) drafts.size() < n_draft) {
+            llama_token d = argmax_token(model.draft_ctx, model.draft_model, -1);
+            drafts.push_back(d);
+            if (llama_vocab_is_eog(vocab, d) || (int) drafts.size() == n_draft) {
+                break;
+            }
+            batch.n_tokens = 0;
+            llama_batch_add(batch, d, s.draft_tokens.size(), {s.seq}, true);
+            if (llama_decode(model.draft_ctx, batch) != 0) {
+                break;
+            }
+            s.draft_tokens.push_back(d);
+        }
+        
+        // Verify all proposals with one target decode
+        batch.n_tokens = 0;
+        llama_batch_add(batch, token, n_past, {s.seq}, true);
+        for (size_t i = 0; i < drafts.size(); i++) {
+            llama_batch_add(batch, drafts[i], n_past + 1 + i, {s.seq}, true);
+        }
+        model.decoding.assign(1, &s);
+        status = llama_decode(model.ctx, batch);
+        model.decoding.clear();
+        if (status != 0) {
+            return;
+        }
+        
+        int64_t t_start = llama_time_us();
+        for (size_t i = 0; i <= drafts.size(); i++) {
+            llama_token sampled = sample_token(s, model.ctx, i);
+            out.push_back(sampled);
+            if (i == drafts.size() || sampled != drafts[i]) {
+                break;
+            }
+        }
+        t_sample_us += llama_time_us() - t_start;
+        
+        // Keep token and the accepted proposals
+        llama_kv_cache_seq_rm(model.ctx, s.seq, n_past + out.size(), -1);
+        model.n_drafted += drafts.size();
+        model.n_accepted += out.size() - 1;
+    });
+    
+    return status;
+}
+
+// Sampling loop shared by all generation entry points. Starts from the
+// token sampled at the end of the prompt; history holds the tokens in the
+// session's KV sequence and grows with every decoded token. The text goes
+// to Java through sink; when streaming, it is flushed in batches instead of
+// per token, to keep the JNI upcall count (and the UI posts behind it) low.
+//
+// With conversation set, history is the chat's token cache and a full
+// context is handled by dropping old turns. Otherwise (stateless
+// completion), the oldest half of the tokens after the first n_keep are
+// discarded instead.
+//
+// With a draft model, each step decodes several tokens at once through
+// speculative_step; sessions then do not join the shared batch loop.
+static std::string sample_loop(
+    JNIEnv* env,
+    SessionHandle& s,
+    llama_token token,
+    std::vector<llama_token>& history,
+    int maxTokens,
+    Utf8Sink& sink,
+    bool conversation,
+    int n_keep
+) {
+    const llama_vocab* vocab = llama_model_get_vocab(s.owner->model);
+    const int n_ctx = s.owner->params.n_ctx;
+    const bool speculative = s.owner->draft_ctx != nullptr;
+    ChatSession& session = s.chat;
+    RequestMetrics& metrics = s.metrics;
+    
+    // Generate response; pieces are appended in place, so reserve for a
+    // typical reply up front
+    std::string response;
+    response.reserve(std::min(maxTokens, n_ctx) * 4 + PIECE_BYTES);
+    size_t n_flushed = 0;      // bytes of response already given to sink
+    int n_pending = 0;         // tokens appended since last flush
+    int64_t last_flush_us = llama_time_us();
+    int n_gen = 0;
+    
+    // Tokens accepted by a speculative step, waiting to be emitted; the
+    // first n_ahead of them are already in the KV cache
+    std::deque<llama_token> queued;
+    int n_ahead = 0;
+    
+    if (!speculative) {
+        set_generating(*s.owner, true);
+    }
+    
+    while (n_gen < maxTokens) {
+        if (s.cancel_requested.load(std::memory_order_relaxed)) {
+            LOGI("Generation cancelled");
+            break;
+        }
+        
+        // Check for EOG with new API
+        if (llama_vocab_is_eog(vocab, token)) {
+            break;
+        }
+        
+        size_t n_before = response.size();
+        append_piece(vocab, token, response);
+        if (response.size() > n_before) {
+            n_pending++;
+        }
+        
+        // Push a batch of text to Java once enough tokens or time accumulated
+        if (sink.stream && n_pending > 0 &&
+            (n_pending >= STREAM_FLUSH_TOKENS ||
+             llama_time_us() - last_flush_us >= STREAM_FLUSH_INTERVAL_US)) {
+            if (!sink.write(response.data() + n_flushed, response.size() - n_flushed) || !sink.flush()) {
+                break;
+            }
+            n_flushed = response.size();
+            n_pending = 0;
+            last_flush_us = llama_time_us();
+        }
+        
+        // Already decoded by the last speculative step
+        if (n_ahead > 0) {
+            history.push_back(token);
+            n_gen++;
+            n_ahead--;
+            token = queued.front();
+            queued.pop_front();
+            continue;
+        }
+        
+        // Context full: shift it instead of failing the decode
+        if ((int) history.size() >= n_ctx) {
+            if (conversation) {
+                // The turn being answered is never dropped
+                if (!shift_conversation(s, 1, 1, session.messages.size())) {
+                    LOGE("Context full and no older turns to drop, stopping");
+                    break;
+                }
+            } else {
+                int n_discard = ((int) history.size() - n_keep) / 2;
+                if (n_discard <= 0) {
+                    LOGE("Context full, stopping");
+                    break;
+                }
+                kv_discard(s, n_keep, n_keep + n_discard);
+                history.erase(history.begin() + n_keep, history.begin() + n_keep + n_discard);
+                LOGI("Context shift: discarded %d tokens", n_discard);
+            }
+        }
+        
+        // Never propose past the context or the token budget
+        int n_draft = std::min(s.owner->params.n_draft,
+                               std::min(n_ctx - (int) history.size() - 1, maxTokens - n_gen - 1));
+        
+        int64_t t_decode_start = llama_time_us();
+        int64_t t_sample_us = 0;
+        int status;
+        llama_token next;
+        if (speculative && n_draft > 0) {
+            std::vector<llama_token> accepted;
+            status = speculative_step(s, history, token, n_draft, accepted, t_sample_us);
+            if (status == 0) {
+                next = accepted.back();
+                accepted.pop_back();
+                queued.assign(accepted.begin(), accepted.end());
+                n_ahead = queued.size();
+                if (n_ahead > 0) {
+                    queued.push_back(next);
+                    next = queued.front();
+                    queued.pop_front();
+                }
+            }
+        } else {
+            // Decode the token (together with other sessions' steps) and sample the next
+            DecodeWork work;
+            work.session = &s;
+            work.tokens = &token;
+            work.n_tokens = 1;
+            work.pos = history.size();
+            work.sample = true;
+            
+            status = decode_work(*s.owner, work);
+            next = work.token;
+            t_sample_us = work.t_sample_us;
+        }
+        metrics.t_decode_us += llama_time_us() - t_decode_start - t_sample_us;
+        metrics.t_sample_us += t_sample_us;
+        if (status != 0) {
+            if (!s.cancel_requested.load()) {
+                LOGE("Failed to decode token (%d)", status);
+            }
+            break;
+        }
+        
+        history.push_back(token);
+        n_gen++;
+        token = next;
+    }
+    
+    if (!speculative) {
+        set_generating(*s.owner, false);
+    }
+    
+    if (!env->ExceptionCheck() && sink.write(response.data() + n_flushed, response.size() - n_flushed)) {
+        sink.flush();
+    }
+    
+    LOGI("Generated %d tokens", n_gen);
+    metrics.n_generated = n_gen;
+    metrics.n_kv_used = history.size();
+    
+    return response;
+}
+
+// Stateless completion: the raw prompt is decoded into the session's empty
+// sequence. Its resident conversation is evicted and will be re-prefilled
+// on its next turn.
+static std::string run_generation(
+    JNIEnv* env,
+    SessionHandle& s,
+    const std::string& prompt_str,
+    const SamplerConfig& sampling,
+    int maxTokens,
+    Utf8Sink& sink
+) {
+    LOGI("Generating response for prompt: %s", prompt_str.c_str());
+    s.cancel_requested.store(false);
+    begin_metrics(s);
+    RequestMetrics& metrics = s.metrics;
+    
+    // Tokenize prompt - get vocab from model
+    const llama_vocab* vocab = llama_model_get_vocab(s.owner->model);
+    std::vector<llama_token> tokens = tokenize_text(vocab, prompt_str, true, false);
+    metrics.t_tokenize_us = llama_time_us() - metrics.t_start_us;
+    
+    // A prompt that cannot fit keeps its first token (BOS) and its tail,
+    // leaving half the context for the reply
+    const int n_ctx = s.owner->params.n_ctx;
+    if ((int) tokens.size() >= n_ctx) {
+        int n_tail = n_ctx / 2 - 1;
+        LOGI("Prompt of %zu tokens truncated to %d", tokens.size(), n_tail + 1);
+        tokens.erase(tokens.begin() + 1, tokens.end() - n_tail);
+    }
+    int n_tokens = tokens.size();
+    
+    LOGI("Tokenized prompt: %d tokens", n_tokens);
+    
+    // Clear this session's sequence, then restore the longest prefix of
+    // the prompt a previous request left in the prefix cache
+    kv_clear(s);
+    select_sampler(s, sampling);
+    s.chat.invalidate();
+    int64_t t_prefill_start = llama_time_us();
+    size_t n_cached = prefix_cache_restore(s, tokens);
+    if (n_cached > 0) {
+        LOGI("Prefix cache hit: %zu of %d prompt tokens restored", n_cached, n_tokens);
+    }
+    
+    // Process the rest of the prompt
+    std::vector<llama_token> rest(tokens.begin() + n_cached, tokens.end());
+    llama_token token;
+    if (n_tokens == 0 || decode_prompt(s, rest, n_cached, token) != 0) {
+        LOGE("Failed to decode prompt");
+        return std::string();
+    }
+    metrics.t_prefill_us = llama_time_us() - t_prefill_start;
+    metrics.t_first_token_us = llama_time_us() - metrics.t_start_us;
+    metrics.n_prompt = rest.size();
+    metrics.n_cached = n_cached;
+    
+    std::string response = sample_loop(env, s, token, tokens, maxTokens, sink, false, 1);
+    
+    end_metrics(s);
+    
+    // Cache the prompt once the reply is out, so its copy never delays the
+    // first token. A context shift has moved the prompt's cells; nothing
+    // is cached then.
+    if ((int) tokens.size() == n_tokens + metrics.n_generated) {
+        tokens.resize(n_tokens);
+        prefix_cache_store(s, tokens);
+    }
+    
+    return response;
+}
+
+// Format messages with the model's built-in chat template (ChatML if the
+// model has none or llama.cpp does not support it)
+static std::string apply_template(const llama_model* model, const std::vector<llama_chat_message>& chat,
+                                  bool add_assistant) {
+    const char* tmpl = llama_model_chat_template(model, nullptr);
+    if (!tmpl) {
+        tmpl = "chatml";
+    }
+    
+    std::vector<char> buf(1024);
+    int n = llama_chat_apply_template(tmpl, chat.data(), chat.size(), add_assistant,
+                                      buf.data(), buf.size());
+    if (n < 0 && strcmp(tmpl, "chatml") != 0) {
+        LOGE("Chat template not supported, falling back to ChatML");
+        tmpl = "chatml";
+        n = llama_chat_apply_template(tmpl, chat.data(), chat.size(), add_assistant,
+                                      buf.data(), buf.size());
+    }
+    if (n > (int) buf.size()) {
+        buf.resize(n);
+        n = llama_chat_apply_template(tmpl, chat.data(), chat.size(), add_assistant,
+                                      buf.data(), buf.size());
+    }
+    
+    return n > 0 ? std::string(buf.data(), n) : std::string();
+}
+
+// Format the system prompt and messages [first_message, end) with the
+// model's built-in chat template (ChatML if the model has none)
+static std::string format_chat(const llama_model* model, const ChatSession& session, size_t end,
+                               bool add_assistant) {
+    std::vector<llama_chat_message> chat;
+    if (!session.system_prompt.empty()) {
+        chat.push_back({"system", session.system_prompt.c_str()});
+    }
+    for (size_t i = session.first_message; i < end; i++) {
+        chat.push_back({session.messages[i].first.c_str(), session.messages[i].second.c_str()});
+    }
+    
+    return apply_template(model, chat, add_assistant);
+}
+
+// Format and tokenize the session's system prompt on its own, once per
+// system prompt. Left empty if there is none, or if the template does not
+// render it as a prefix of the conversation.
+static void ensure_prefix(const llama_model* model, ChatSession& session) {
+    if (session.prefix_valid && session.prefix_for == session.system_prompt) {
+        return;
+    }
+    session.prefix_valid = true;
+    session.prefix_for = session.system_prompt;
+    session.prefix_text.clear();
+    session.prefix_tokens.clear();
+    if (session.system_prompt.empty()) {
+        return;
+    }
+    
+    ChatSession probe;
+    probe.system_prompt = session.system_prompt;
+    std::string text = format_chat(model, probe, 0, false);
+    probe.messages.push_back({"user", "?"});
+    std::string with_user = format_chat(model, probe, 1, true);
+    if (text.empty() || with_user.compare(0, text.size(), text) != 0) {
+        return;
+    }
+    session.prefix_text = text;
+    session.prefix_tokens = tokenize_text(llama_model_get_vocab(model), text, true, true);
+}
+
+// Tokenize formatted[from, end) for appending to the cache, splitting it
+// where each user message in [first_user, user_end) begins so that turn
+// boundaries are known in tokens as well as in text. New turns are
+// appended to turns with token offsets counted from base_token.
+static std::vector<llama_token> tokenize_turns(
+    const llama_model* model,
+    const ChatSession& session,
+    const std::string& formatted,
+    size_t from,
+    size_t first_user,
+    size_t user_end,
+    size_t base_token,
+    std::vector<TurnStart>& turns
+) {
+    const llama_vocab* vocab = llama_model_get_vocab(model);
+    std::vector<llama_token> tokens;
+    
+    size_t pos = from;
+    
+    // A full prefill starts with the system prompt, tokenized once per session
+    if (from == 0 && base_token == 0 && !session.prefix_text.empty() &&
+        formatted.compare(0, session.prefix_text.size(), session.prefix_text) == 0) {
+        tokens = session.prefix_tokens;
+        pos = session.prefix_text.size();
+    }
+    
+    auto append = [&](size_t to) {
+        if (to > pos) {
+            std::vector<llama_token> piece = tokenize_text(
+                vocab, formatted.substr(pos, to - pos), base_token + tokens.size() == 0, true);
+            tokens.insert(tokens.end(), piece.begin(), piece.end());
+            pos = to;
+        }
+    };
+    
+    for (size_t i = first_user; i < user_end; i++) {
+        if (session.messages[i].first != "user") {
+            continue;
+        }
+        std::string before = format_chat(model, session, i, false);
+        size_t start = before.size();
+        if (start < pos || formatted.compare(0, start, before) != 0) {
+            continue; // template does not split cleanly here
+        }
+        append(start);
+        turns.push_back({i, base_token + tokens.size(), start});
+    }
+    append(formatted.size());
+    
+    return tokens;
+}
+
+// One conversation turn. Only the text the template adds after what is
+// already cached (end of the previous reply, the new user message and the
+// assistant header) is tokenized and decoded, so prefill cost per turn does
+// not grow with the length of the conversation. When the context fills up,
+// the oldest turns are shifted out and the system prompt is kept.
+//
+// turn_context (e.g. recalled earlier messages) leads the user message for
+// this turn only. The transcript keeps the bare message, so the cache no
+// longer matches it afterwards; the next turn keeps the cells before the
+// context and re-prefills the rest, so the context is never carried along.
+static std::string run_chat_turn(
+    JNIEnv* env,
+    SessionHandle& s,
+    const std::string& user_message,
+    const std::string& turn_context,
+    const SamplerConfig& sampling,
+    int maxTokens,
+    Utf8Sink& sink
+) {
+    ChatSession& session = s.chat;
+    const llama_model* model = s.owner->model;
+    const int n_ctx = s.owner->params.n_ctx;
+    s.cancel_requested.store(false);
+    begin_metrics(s);
+    RequestMetrics& metrics = s.metrics;
+    
+    const size_t user_index = session.messages.size();
+    const size_t first_before = session.first_message;
+    session.messages.push_back({"user", turn_context + user_message});
+    std::string formatted = format_chat(model, session, session.messages.size(), true);
+    ensure_prefix(model, session);
+    
+    // The cached transcript must be a prefix of the new one; otherwise
+    // (first turn, cache evicted, template rewrote history) start over.
+    // Cells the old cache shares with the new transcript are kept.
+    std::vector<llama_token> reusable;
+    if (session.tokens.empty() ||
+        formatted.compare(0, session.kv_text.size(), session.kv_text) != 0) {
+        reusable = std::move(session.tokens);
+        session.invalidate();
+    }
+    const bool full_prefill = session.tokens.empty();
+    
+    std::vector<TurnStart> new_turns;
+    std::vector<llama_token> new_tokens;
+    
+    if (session.tokens.empty()) {
+        // Full prefill: drop the oldest turns from the transcript until it
+        // fits, always keeping the system prompt and the new message
+        while (true) {
+            new_turns.clear();
+            new_tokens = tokenize_turns(model, session, formatted, 0, session.first_message,
+                                        session.messages.size(), 0, new_turns);
+            if ((int) new_tokens.size() < n_ctx || session.first_message >= user_index) {
+                break;
+            }
+            do {
+                session.first_message++;
+            } while (session.first_message < user_index &&
+                     session.messages[session.first_message].first != "user");
+            formatted = format_chat(model, session, session.messages.size(), true);
+        }
+    } else {
+        new_tokens = tokenize_turns(model, session, formatted, session.kv_text.size(), user_index,
+                                    session.messages.size(), session.tokens.size(), new_turns);
+        
+        // Shift older turns out if the new one does not fit
+        size_t needed = session.tokens.size() + new_tokens.size();
+        if ((int) needed >= n_ctx) {
+            size_t kv_text_before = session.kv_text.size();
+            size_t tokens_before = session.tokens.size();
+            if (shift_conversation(s, needed - n_ctx + 1, 0, user_index)) {
+                for (auto& turn : new_turns) {
+                    turn.token -= tokens_before - session.tokens.size();
+                    turn.text -= kv_text_before - session.kv_text.size();
+                }
+                formatted = session.kv_text + formatted.substr(kv_text_before);
+            }
+        }
+    }
+    
+    metrics.t_tokenize_us = llama_time_us() - metrics.t_start_us;
+    
+    int n_past = session.tokens.size();
+    if (new_tokens.empty() || n_past + (int) new_tokens.size() >= n_ctx) {
+        LOGE("Message does not fit in the context (%d cached + %zu new, n_ctx %d)",
+             n_past, new_tokens.size(), n_ctx);
+        session.messages.pop_back();
+        session.first_message = first_before;
+        kv_clear(s);
+        session.invalidate();
+        return std::string();
+    }
+    
+    if (full_prefill) {
+        // Keep the common start (at least the system prompt, unless it
+        // changed) instead of decoding it again; the last token is always
+        // decoded, to sample from
+        size_t n_common = 0;
+        while (n_common < reusable.size() && n_common + 1 < new_tokens.size() &&
+               reusable[n_common] == new_tokens[n_common]) {
+            n_common++;
+        }
+        if (n_common > 0) {
+            kv_truncate(s, n_common);
+        } else {
+            kv_clear(s);
+        }
+        session.tokens.assign(new_tokens.begin(), new_tokens.begin() + n_common);
+        new_tokens.erase(new_tokens.begin(), new_tokens.begin() + n_common);
+        n_past = n_common;
+    }
+    
+    LOGI("Chat turn (seq %d): %d cached tokens, prefilling %d new",
+         s.seq, n_past, (int) new_tokens.size());
+    
+    select_sampler(s, sampling);
+    
+    int64_t t_prefill_start = llama_time_us();
+    llama_token token;
+    if (decode_prompt(s, new_tokens, n_past, token) != 0) {
+        LOGE("Failed to decode chat turn");
+        session.messages.pop_back();
+        if (full_prefill) {
+            // The kept cells have no transcript text to go with them
+            kv_clear(s);
+            session.invalidate();
+        } else {
+            kv_truncate(s, n_past);
+        }
+        return std::string();
+    }
+    session.tokens.insert(session.tokens.end(), new_tokens.begin(), new_tokens.end());
+    session.turns.insert(session.turns.end(), new_turns.begin(), new_turns.end());
+    session.kv_text = formatted;
+    metrics.t_prefill_us = llama_time_us() - t_prefill_start;
+    metrics.t_first_token_us = llama_time_us() - metrics.t_start_us;
+    metrics.n_prompt = new_tokens.size();
+    metrics.n_cached = n_past;
+    
+    std::string response = sample_loop(env, s, token, session.tokens, maxTokens, sink, true, 0);
+    
+    // An aborted decode may leave cells past the last accepted token
+    kv_truncate(s, session.tokens.size());
+    end_metrics(s);
+    
+    session.messages.push_back({"assistant", response});
+    
+    // The reply tokens are cached right after the assistant header. If the
+    // template reproduces the reply verbatim, the cache is still a prefix of
+    // the transcript; otherwise drop it and re-prefill next turn.
+    std::string closed = format_chat(model, session, session.messages.size(), false);
+    std::string cached = session.kv_text + response;
+    if (closed.compare(0, cached.size(), cached) == 0) {
+        session.kv_text = cached;
+    } else {
+        LOGI("Template rewrote the reply, conversation will be re-prefilled");
+        kv_clear(s);
+        session.invalidate();
+    }
+    if (!turn_context.empty()) {
+        session.messages[session.messages.size() - 2].second = user_message;
+    }
+    
+    return response;
+}
+
+// Read a request's UTF-8 text from the first length bytes of a direct buffer
+static bool read_input(JNIEnv* env, jobject input, jint length, std::string& out) {
+    const char* data = static_cast<const char*>(env->GetDirectBufferAddress(input));
+    if (!data || length < 0 || length > env->GetDirectBufferCapacity(input)) {
+        LOGE("Input buffer is not usable");
+        return false;
+    }
+    out.assign(data, length);
+    return true;
+}
+
+// Read a SamplingParams object field by field
+static SamplerConfig read_sampling_params(JNIEnv* env, jobject params, int& max_tokens) {
+    SamplerConfig config;
+    jclass cls = env->GetObjectClass(params);
+    
+    config.temperature = env->GetFloatField(params, env->GetFieldID(cls, "temperature", "F"));
+    config.top_k = env->GetIntField(params, env->GetFieldID(cls, "topK", "I"));
+    config.top_p = env->GetFloatField(params, env->GetFieldID(cls, "topP", "F"));
+    config.min_p = env->GetFloatField(params, env->GetFieldID(cls, "minP", "F"));
+    config.penalty_last_n = env->GetIntField(params, env->GetFieldID(cls, "penaltyLastN", "I"));
+    config.penalty_repeat = env->GetFloatField(params, env->GetFieldID(cls, "repeatPenalty", "F"));
+    config.penalty_freq = env->GetFloatField(params, env->GetFieldID(cls, "frequencyPenalty", "F"));
+    config.penalty_present = env->GetFloatField(params, env->GetFieldID(cls, "presencePenalty", "F"));
+    // RANDOM_SEED (-1) is LLAMA_DEFAULT_SEED
+    config.seed = (uint32_t) env->GetIntField(params, env->GetFieldID(cls, "seed", "I"));
+    max_tokens = env->GetIntField(params, env->GetFieldID(cls, "maxTokens", "I"));
+    
+    env->DeleteLocalRef(cls);
+    return config;
+}
+
+// Generate text from the UTF-8 prompt in input[0, inputLength), sampled as
+// params says. The reply goes to pipe through output (see Utf8Sink), while
+// generating if stream is set. Returns its length in bytes, -1 if the
+// request could not start.
+JNIEXPORT jint JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeGenerate(
+    JNIEnv* env,
+    jclass clazz,
+    jlong session,
+    jobject input,
+    jint inputLength,
+    jobject output,
+    jobject pipe,
+    jobject params,
+    jboolean stream
+) {
+    SessionHandle& s = *to_session(session);
+    std::string prompt;
+    Utf8Sink sink;
+    if (!read_input(env, input, inputLength, prompt) || !sink.init(env, output, pipe, stream)) {
+        return -1;
+    }
+    int max_tokens;
+    SamplerConfig sampling = read_sampling_params(env, params, max_tokens);
+    ContextUse use(*s.owner);
+    if (!use.ok) {
+        return -1;
+    }
+    // A listener that threw leaves its exception pending for the caller
+    return run_generation(env, s, prompt, sampling, max_tokens, sink).size();
+}
+
+// Send the UTF-8 message in input[0, inputLength) in the session's
+// conversation, led for this turn only by turnContext (may be null); the
+// reply is delivered as by nativeGenerate
+JNIEXPORT jint JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeChat(
+    JNIEnv* env,
+    jclass clazz,
+    jlong session,
+    jobject input,
+    jint inputLength,
+    jstring turnContext,
+    jobject output,
+    jobject pipe,
+    jobject params,
+    jboolean stream
+) {
+    SessionHandle& s = *to_session(session);
+    std::string message;
+    Utf8Sink sink;
+    if (!read_input(env, input, inputLength, message) || !sink.init(env, output, pipe, stream)) {
+        return -1;
+    }
+    int max_tokens;
+    SamplerConfig sampling = read_sampling_params(env, params, max_tokens);
+    ContextUse use(*s.owner);
+    if (!use.ok) {
+        return -1;
+    }
+    std::string context = turnContext ? jstring_to_string(env, turnContext) : std::string();
+    return run_chat_turn(env, s, message, context, sampling, max_tokens, sink).size();
+}
+
+// Start a new conversation
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeResetConversation(
+    JNIEnv* env,
+    jclass clazz,
+    jlong session,
+    jstring systemPrompt
+) {
+    SessionHandle& s = *to_session(session);
+    ChatSession& chat = s.chat;
+    std::vector<llama_token> old_tokens = std::move(chat.tokens);
+    chat.messages.clear();
+    chat.first_message = 0;
+    chat.invalidate();
+    chat.system_prompt = systemPrompt ? jstring_to_string(env, systemPrompt) : std::string();
+    
+    // A new chat with the same system prompt keeps its cells, so the first
+    // turn only decodes the user message
+    ensure_prefix(s.owner->model, chat);
+    const std::vector<llama_token>& prefix = chat.prefix_tokens;
+    if (!prefix.empty() && old_tokens.size() >= prefix.size() &&
+        std::equal(prefix.begin(), prefix.end(), old_tokens.begin())) {
+        kv_truncate(s, prefix.size());
+        chat.tokens = prefix;
+        chat.kv_text = chat.prefix_text;
+    } else {
+        kv_clear(s);
+    }
+    LOGI("Conversation reset (seq %d), %zu system prompt tokens kept", s.seq, chat.tokens.size());
+}
+
+// Save the conversation and its KV cache to a file
+JNIEXPORT jboolean JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeSaveSession(JNIEnv* env, jclass clazz, jlong handle, jstring path) {
+    SessionHandle& s = *to_session(handle);
+    
+    const char* path_cstr = env->GetStringUTFChars(path, nullptr);
+    std::string final_path(path_cstr);
+    env->ReleaseStringUTFChars(path, path_cstr);
+    std::string tmp_path = final_path + ".tmp";
+    
+    const ChatSession& session = s.chat;
+    
+    std::vector<uint8_t> state;
+    if (!session.tokens.empty()) {
+        with_context(*s.owner, [&] {
+            if (!s.owner->ctx) {
+                return;
+            }
+            state.resize(llama_state_seq_get_size(s.owner->ctx, s.seq));
+            size_t n = llama_state_seq_get_data(s.owner->ctx, state.data(), state.size(), s.seq);
+            state.resize(n);
+        });
+    }
+    
+    FILE* f = fopen(tmp_path.c_str(), "wb");
+    if (!f) {
+        LOGE("Cannot open session file for writing: %s", tmp_path.c_str());
+        return JNI_FALSE;
+    }
+    
+    bool ok = write_pod(f, SESSION_FILE_MAGIC)
+        && write_pod(f, SESSION_FILE_VERSION)
+        && write_pod(f, s.owner->fingerprint)
+        && write_string(f, session.system_prompt);
+    
+    uint32_t n_messages = session.messages.size();
+    ok = ok && write_pod(f, n_messages);
+    for (const auto& msg : session.messages) {
+        ok = ok && write_string(f, msg.first) && write_string(f, msg.second);
+    }
+    uint32_t first_message = session.first_message;
+    ok = ok && write_pod(f, first_message);
+    
+    uint32_t n_tokens = state.empty() ? 0 : session.tokens.size();
+    uint64_t state_size = state.size();
+    ok = ok && write_string(f, state.empty() ? std::string() : session.kv_text)
+        && write_pod(f, n_tokens)
+        && fwrite(session.tokens.data(), sizeof(llama_token), n_tokens, f) == n_tokens;
+    
+    uint32_t n_turns = state.empty() ? 0 : session.turns.size();
+    ok = ok && write_pod(f, n_turns);
+    for (uint32_t i = 0; ok && i < n_turns; i++) {
+        uint64_t turn[3] = {session.turns[i].message, session.turns[i].token, session.turns[i].text};
+        ok = write_pod(f, turn);
+    }
+    
+    ok = ok && write_pod(f, state_size)
+        && fwrite(state.data(), 1, state.size(), f) == state.size();
+    
+    ok = (fclose(f) == 0) && ok;
+    
+    // Replace the old file only once the new one is complete
+    if (!ok || rename(tmp_path.c_str(), final_path.c_str()) != 0) {
+        LOGE("Failed to write session file");
+        remove(tmp_path.c_str());
+        return JNI_FALSE;
+    }
+    
+    LOGI("Saved session: %u messages, %u tokens, %llu state bytes",
+         n_messages, n_tokens, (unsigned long long) state_size);
+    return JNI_TRUE;
+}
+
+// Restore a conversation and its KV cache saved by saveSession
+JNIEXPORT jboolean JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeLoadSession(JNIEnv* env, jclass clazz, jlong handle, jstring path) {
+    SessionHandle& s = *to_session(handle);
+    
+    const char* path_cstr = env->GetStringUTFChars(path, nullptr);
+    FILE* f = fopen(path_cstr, "rb");
+    env->ReleaseStringUTFChars(path, path_cstr);
+    if (!f) {
+        return JNI_FALSE;
+    }
+    
+    uint32_t magic = 0;
+    uint32_t version = 0;
+    uint64_t fingerprint = 0;
+    bool ok = read_pod(f, magic) && read_pod(f, version) && read_pod(f, fingerprint);
+    
+    if (!ok || magic != SESSION_FILE_MAGIC || version != SESSION_FILE_VERSION) {
+        LOGE("Session file has unknown format");
+        fclose(f);
+        return JNI_FALSE;
+    }
+    if (fingerprint != s.owner->fingerprint) {
+        LOGE("Session file belongs to a different model, ignoring it");
+        fclose(f);
+        return JNI_FALSE;
+    }
+    
+    ChatSession restored;
+    uint32_t n_messages = 0;
+    ok = read_string(f, restored.system_prompt) && read_pod(f, n_messages);
+    for (uint32_t i = 0; ok && i < n_messages; i++) {
+        std::string role;
+        std::string content;
+        ok = read_string(f, role) && read_string(f, content);
+        restored.messages.push_back({role, content});
+    }
+    uint32_t first_message = 0;
+    ok = ok && read_pod(f, first_message) && first_message <= n_messages;
+    restored.first_message = first_message;
+    
+    uint32_t n_tokens = 0;
+    uint32_t n_turns = 0;
+    uint64_t state_size = 0;
+    ok = ok && read_string(f, restored.kv_text) && read_pod(f, n_tokens)
+        && n_tokens <= (uint32_t) s.owner->params.n_ctx;
+    if (ok) {
+        restored.tokens.resize(n_tokens);
+        ok = fread(restored.tokens.data(), sizeof(llama_token), n_tokens, f) == n_tokens
+            && read_pod(f, n_turns) && n_turns <= n_messages;
+    }
+    for (uint32_t i = 0; ok && i < n_turns; i++) {
+        uint64_t turn[3];
+        ok = read_pod(f, turn) && turn[0] < n_messages && turn[1] <= n_tokens
+            && turn[2] <= restored.kv_text.size();
+        restored.turns.push_back({(size_t) turn[0], (size_t) turn[1], (size_t) turn[2]});
+    }
+    ok = ok && read_pod(f, state_size);
+    std::vector<uint8_t> state;
+    if (ok) {
+        state.resize(state_size);
+        ok = fread(state.data(), 1, state_size, f) == state_size;
+    }
+    fclose(f);
+    
+    if (!ok) {
+        LOGE("Session file is truncated or corrupt");
+        return JNI_FALSE;
+    }
+    
+    // The state is restored into this session's sequence, whichever
+    // sequence it was saved from
+    ContextUse use(*s.owner);
+    if (!use.ok) {
+        return JNI_FALSE;
+    }
+    bool restored_kv = true;
+    with_context(*s.owner, [&] {
+        llama_kv_cache_seq_rm(s.owner->ctx, s.seq, -1, -1);
+        if (!state.empty() &&
+            llama_state_seq_set_data(s.owner->ctx, state.data(), state.size(), s.seq) == 0) {
+            llama_kv_cache_seq_rm(s.owner->ctx, s.seq, -1, -1);
+            restored_kv = false;
+        }
+    });
+    if (!restored_kv) {
+        // Keep the transcript; the next turn re-prefills it
+        LOGE("Failed to restore KV state, conversation will be re-prefilled");
+        restored.invalidate();
+    }
+    
+    s.chat = std::move(restored);
+    reset_sampler(s);
+    
+    LOGI("Restored session (seq %d): %u messages, %zu cached tokens",
+         s.seq, n_messages, s.chat.tokens.size());
+    return JNI_TRUE;
+}
+
+// Flat [role, content, role, content, ...] copy of the conversation
+JNIEXPORT jobjectArray JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeGetConversation(JNIEnv* env, jclass clazz, jlong session) {
+    jclass string_class = env->FindClass("java/lang/String");
+    const auto& messages = to_session(session)->chat.messages;
+    jobjectArray result = env->NewObjectArray(messages.size() * 2, string_class, nullptr);
+    for (size_t i = 0; i < messages.size(); i++) {
+        jstring role = string_to_jstring(env, messages[i].first);
+        jstring content = string_to_jstring(env, messages[i].second);
+        env->SetObjectArrayElement(result, i * 2, role);
+        env->SetObjectArrayElement(result, i * 2 + 1, content);
+        env->DeleteLocalRef(role);
+        env->DeleteLocalRef(content);
+    }
+    return result;
+}
+
+// Request the session's running generation to stop
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeCancel(JNIEnv* env, jclass clazz, jlong session) {
+    SessionHandle* s = to_session(session);
+    LOGI("Cancel requested (seq %d)", s->seq);
+    s->cancel_requested.store(true);
+    
+    // Wake the batch loop so queued work of this session is dropped
+    std::lock_guard<std::mutex> lock(s->owner->mutex);
+    s->owner->cv.notify_all();
+}
+
+// Last request (aggregate false) or the mean over the rolling window, in the
+// layout InferenceMetrics expects: count, prompt, cached, generated,
+// tokenize ms, prefill ms, TTFT ms, decode ms, sample ms, KV used, n_ctx, RSS
+JNIEXPORT jdoubleArray JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeGetMetrics(JNIEnv* env, jclass clazz, jlong session,
+                                            jboolean aggregate) {
+    const auto& history = to_session(session)->metrics_history;
+    if (history.empty()) {
+        return nullptr;
+    }
+    
+    size_t first = aggregate ? 0 : history.size() - 1;
+    double n = history.size() - first;
+    
+    double values[12] = {n};
+    for (size_t i = first; i < history.size(); i++) {
+        const RequestMetrics& m = history[i];
+        values[1] += m.n_prompt / n;
+        values[2] += m.n_cached / n;
+        values[3] += m.n_generated / n;
+        values[4] += m.t_tokenize_us / 1000.0 / n;
+        values[5] += m.t_prefill_us / 1000.0 / n;
+        values[6] += m.t_first_token_us / 1000.0 / n;
+        values[7] += m.t_decode_us / 1000.0 / n;
+        values[8] += m.t_sample_us / 1000.0 / n;
+    }
+    
+    // Occupancy and memory are a snapshot, not averaged
+    const RequestMetrics& last = history.back();
+    values[9] = last.n_kv_used;
+    values[10] = last.n_ctx;
+    values[11] = last.rss_bytes;
+    
+    jdoubleArray result = env->NewDoubleArray(12);
+    env->SetDoubleArrayRegion(result, 0, 12, values);
+    return result;
+}
+
+// Pool of n_threads workers, each pinned to one of the given cores
+static ggml_threadpool* new_pinned_threadpool(int n_threads, const std::vector<int>& cpus) {
+    ggml_threadpool_params tpp = ggml_threadpool_params_default(n_threads);
+    for (int cpu : cpus) {
+        if (cpu >= 0 && cpu < GGML_MAX_N_THREADS) {
+            tpp.cpumask[cpu] = true;
+        }
+    }
+    tpp.strict_cpu = true;
+    return ggml_threadpool_new(&tpp);
+}
+
+// Change the thread counts of a loaded model. With a non-empty cpus array
+// the decode and batch workers are pinned to those cores, keeping them off
+// the efficiency cores; null or empty lets the scheduler place them.
+JNIEXPORT void JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeSetThreads(
+    JNIEnv* env,
+    jclass clazz,
+    jlong model,
+    jint nThreads,
+    jint nThreadsBatch,
+    jintArray cpus
+) {
+    ModelHandle& handle = *to_model(model);
+    
+    std::vector<int> cpu_list;
+    if (cpus) {
+        cpu_list.resize(env->GetArrayLength(cpus));
+        env->GetIntArrayRegion(cpus, 0, cpu_list.size(), cpu_list.data());
+    }
+    
+    with_context(handle, [&] {
+        ggml_threadpool* pool = nullptr;
+        ggml_threadpool* pool_batch = nullptr;
+        if (!cpu_list.empty()) {
+            pool = new_pinned_threadpool(nThreads, cpu_list);
+            pool_batch = pool ? new_pinned_threadpool(nThreadsBatch, cpu_list) : nullptr;
+            if (!pool_batch) {
+                LOGE("Cannot create pinned thread pools, threads stay unpinned");
+                if (pool) {
+                    ggml_threadpool_free(pool);
+                    pool = nullptr;
+                }
+            }
+        }
+        
+        // A released context picks the settings up when it is recreated
+        if (handle.ctx) {
+            if (pool) {
+                llama_attach_threadpool(handle.ctx, pool, pool_batch);
+            } else {
+                llama_detach_threadpool(handle.ctx);
+            }
+            llama_set_n_threads(handle.ctx, nThreads, nThreadsBatch);
+        }
+        if (handle.draft_ctx) {
+            llama_set_n_threads(handle.draft_ctx, nThreads, nThreadsBatch);
+        }
+        
+        if (handle.threadpool) {
+            ggml_threadpool_free(handle.threadpool);
+            ggml_threadpool_free(handle.threadpool_batch);
+        }
+        handle.threadpool = pool;
+        handle.threadpool_batch = pool_batch;
+        handle.n_pinned = pool ? cpu_list.size() : 0;
+        handle.params.n_threads = nThreads;
+        handle.params.n_threads_batch = nThreadsBatch;
+    });
+    
+    LOGI("Threads: %d decode, %d batch, pinned to %d cores", nThreads, nThreadsBatch, handle.n_pinned);
+}
+
+// Give memory back under pressure; see release_contexts
+JNIEXPORT jboolean JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeReleaseMemory(
+    JNIEnv* env,
+    jclass clazz,
+    jlong model,
+    jboolean releaseContext
+) {
+    if (!release_contexts(*to_model(model), releaseContext)) {
+        return JNI_FALSE;
+    }
+    prefix_cache_trim(*to_model(model));
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeIsContextReleased(JNIEnv* env, jclass clazz, jlong model) {
+    ModelHandle& handle = *to_model(model);
+    std::lock_guard<std::mutex> lock(handle.mutex);
+    return handle.ctx ? JNI_FALSE : JNI_TRUE;
+}
+
+// Time a synthetic prefill of nPrompt tokens and nGen single-token decodes
+// on a session, for thread calibration. Returns {prefill ms, decode ms per
+// token}, or null on failure. The session's cache is cleared before and after.
+JNIEXPORT jdoubleArray JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeBenchmark(
+    JNIEnv* env,
+    jclass clazz,
+    jlong session,
+    jint nPrompt,
+    jint nGen
+) {
+    SessionHandle& s = *to_session(session);
+    ContextUse use(*s.owner);
+    if (!use.ok) {
+        return nullptr;
+    }
+    const llama_vocab* vocab = llama_model_get_vocab(s.owner->model);
+    const int n_vocab = llama_vocab_n_tokens(vocab);
+    
+    nPrompt = std::max(1, std::min((int) nPrompt, s.owner->params.n_ctx - nGen - 1));
+    
+    // Arbitrary but fixed tokens; the content does not change the cost
+    std::vector<llama_token> tokens(nPrompt);
+    for (int i = 0; i < nPrompt; i++) {
+        tokens[i] = (llama_token) ((i * 7919LL + 13) % n_vocab);
+    }
+    
+    s.cancel_requested.store(false);
+    kv_clear(s);
+    s.chat.invalidate();
+    reset_sampler(s);
+    
+    int64_t t_start = llama_time_us();
+    llama_token token;
+    int status = decode_prompt(s, tokens, 0, token);
+    int64_t t_prefill = llama_time_us() - t_start;
+    
+    t_start = llama_time_us();
+    for (int i = 0; i < nGen && status == 0; i++) {
+        DecodeWork work;
+        work.session = &s;
+        work.tokens = &token;
+        work.n_tokens = 1;
+        work.pos = nPrompt + i;
+        work.sample = true;
+        status = decode_work(*s.owner, work);
+        token = work.token;
+    }
+    int64_t t_decode = llama_time_us() - t_start;
+    
+    kv_clear(s);
+    reset_sampler(s);
+    
+    if (status != 0) {
+        LOGE("Benchmark decode failed (%d)", status);
+        return nullptr;
+    }
+    
+    double values[2] = {t_prefill / 1000.0, nGen > 0 ? t_decode / 1000.0 / nGen : 0.0};
+    jdoubleArray result = env->NewDoubleArray(2);
+    env->SetDoubleArrayRegion(result, 0, 2, values);
+    return result;
+}
+
+// Tokens one embedding may take; longer text is cut
+static const int EMBED_MAX_TOKENS = 512;
+
+// Create the embedding context. Models without pooling of their own (the
+// usual chat models) get the mean over the text's tokens.
+static llama_context* create_embed_context(ModelHandle& model) {
+    const int n_ctx = std::min(EMBED_MAX_TOKENS, llama_model_n_ctx_train(model.model));
+    llama_context_params params = llama_context_default_params();
+    params.n_ctx = n_ctx;
+    params.n_batch = n_ctx;
+    params.n_ubatch = n_ctx;
+    params.n_seq_max = 1;
+    // Half the prompt threads, leaving the rest to a chat decoding meanwhile
+    params.n_threads = std::max(1, model.ctx_params.n_threads_batch / 2);
+    params.n_threads_batch = params.n_threads;
+    params.embeddings = true;
+    params.pooling_type = LLAMA_POOLING_TYPE_UNSPECIFIED;
+    
+    llama_context* ctx = llama_init_from_model(model.model, params);
+    if (ctx && llama_pooling_type(ctx) == LLAMA_POOLING_TYPE_NONE) {
+        llama_free(ctx);
+        params.pooling_type = LLAMA_POOLING_TYPE_MEAN;
+        ctx = llama_init_from_model(model.model, params);
+    }
+    return ctx;
+}
+
+// L2-normalized pooled embedding of text into out[0, n_embd). Caller
+// holds embed_mutex.
+static bool embed_text(ModelHandle& model, const std::string& text, float* out) {
+    llama_context* ctx = model.embed_ctx;
+    const llama_vocab* vocab = llama_model_get_vocab(model.model);
+    std::vector<llama_token> tokens = tokenize_text(vocab, text, true, false);
+    if ((int) tokens.size() > (int) llama_n_ctx(ctx)) {
+        tokens.resize(llama_n_ctx(ctx));
+    }
+    if (tokens.empty()) {
+        return false;
+    }
+    
+    llama_kv_cache_clear(ctx);
+    llama_batch batch = llama_batch_init(tokens.size(), 0, 1);
+    for (size_t i = 0; i < tokens.size(); i++) {
+        llama_batch_add(batch, tokens[i], i, {0}, true);
+    }
+    int status = llama_decode(ctx, batch);
+    llama_batch_free(batch);
+    const float* embd = status == 0 ? llama_get_embeddings_seq(ctx, 0) : nullptr;
+    if (!embd) {
+        return false;
+    }
+    
+    const int n_embd = llama_model_n_embd(model.model);
+    double norm = 0;
+    for (int i = 0; i < n_embd; i++) {
+        norm += (double) embd[i] * embd[i];
+    }
+    const float scale = norm > 0 ? (float) (1.0 / std::sqrt(norm)) : 0.0f;
+    for (int i = 0; i < n_embd; i++) {
+        out[i] = embd[i] * scale;
+    }
+    return true;
+}
+
+// Pooled, L2-normalized embeddings of texts, one after another in the
+// returned array; null if the embedding context cannot be created or a
+// text cannot be embedded
+JNIEXPORT jfloatArray JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeEmbed(JNIEnv* env, jclass clazz, jlong model, jobjectArray texts) {
+    ModelHandle& m = *to_model(model);
+    const int n_embd = llama_model_n_embd(m.model);
+    const jsize n_texts = env->GetArrayLength(texts);
+    std::vector<std::string> strings;
+    strings.reserve(n_texts);
+    for (jsize i = 0; i < n_texts; i++) {
+        jstring str = (jstring) env->GetObjectArrayElement(texts, i);
+        strings.push_back(str ? jstring_to_string(env, str) : std::string());
+        env->DeleteLocalRef(str);
+    }
+    
+    std::vector<float> out((size_t) n_texts * n_embd);
+    {
+        std::lock_guard<std::mutex> lock(m.embed_mutex);
+        if (!m.embed_ctx) {
+            m.embed_ctx = create_embed_context(m);
+            if (!m.embed_ctx) {
+                LOGE("Failed to create embedding context");
+                return nullptr;
+            }
+            LOGI("Embedding context created, %u tokens", llama_n_ctx(m.embed_ctx));
+        }
+        for (jsize i = 0; i < n_texts; i++) {
+            if (!embed_text(m, strings[i], out.data() + (size_t) i * n_embd)) {
+                LOGE("Failed to embed text %d of %d", i + 1, n_texts);
+                return nullptr;
+            }
+        }
+    }
+    
+    jfloatArray result = env->NewFloatArray(out.size());
+    env->SetFloatArrayRegion(result, 0, out.size(), out.data());
+    return result;
+}
+
+// Dimensions of the model's embeddings
+JNIEXPORT jint JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeGetEmbeddingSize(JNIEnv* env, jclass clazz, jlong model) {
+    return llama_model_n_embd(to_model(model)->model);
+}
+
+// Prefix cache counters: lookups, hits, prompt tokens restored, entries
+// stored, entries evicted, then entries and bytes in memory and on disk
+JNIEXPORT jlongArray JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeGetPrefixCacheStats(JNIEnv* env, jclass clazz, jlong model) {
+    PrefixCache& cache = to_model(model)->prefix_cache;
+    jlong values[9];
+    {
+        std::lock_guard<std::mutex> lock(cache.mutex);
+        jlong n_memory = 0;
+        jlong n_disk = 0;
+        for (const PrefixEntry& entry : cache.entries) {
+            n_memory += entry.state ? 1 : 0;
+            n_disk += entry.on_disk ? 1 : 0;
+        }
+        values[0] = cache.n_lookups;
+        values[1] = cache.n_hits;
+        values[2] = cache.n_saved_tokens;
+        values[3] = cache.n_stored;
+        values[4] = cache.n_evicted;
+        values[5] = n_memory;
+        values[6] = cache.memory_bytes;
+        values[7] = n_disk;
+        values[8] = cache.disk_bytes;
+    }
+    jlongArray result = env->NewLongArray(9);
+    env->SetLongArrayRegion(result, 0, 9, values);
+    return result;
+}
+
+// Tokens of text. addSpecial adds BOS/EOS as the model expects at the start
+// of a sequence; parseSpecial turns special-token text into those tokens.
+JNIEXPORT jintArray JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeTokenize(
+    JNIEnv* env,
+    jclass clazz,
+    jlong model,
+    jstring text,
+    jboolean addSpecial,
+    jboolean parseSpecial
+) {
+    const llama_vocab* vocab = llama_model_get_vocab(to_model(model)->model);
+    std::vector<llama_token> tokens = tokenize_text(vocab, jstring_to_string(env, text), addSpecial, parseSpecial);
+    jintArray result = env->NewIntArray(tokens.size());
+    env->SetIntArrayRegion(result, 0, tokens.size(), reinterpret_cast<const jint*>(tokens.data()));
+    return result;
+}
+
+// Number of tokens in text, without storing them
+JNIEXPORT jint JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeCountTokens(
+    JNIEnv* env,
+    jclass clazz,
+    jlong model,
+    jstring text,
+    jboolean addSpecial,
+    jboolean parseSpecial
+) {
+    const llama_vocab* vocab = llama_model_get_vocab(to_model(model)->model);
+    std::string str = jstring_to_string(env, text);
+    // With no room for tokens, llama_tokenize returns minus the count
+    int n = llama_tokenize(vocab, str.data(), str.size(), nullptr, 0, addSpecial, parseSpecial);
+    return n < 0 ? -n : n;
+}
+
+// Text of tokens. removeSpecial drops BOS/EOS; unparseSpecial renders
+// special tokens as their text instead of leaving them out.
+JNIEXPORT jstring JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeDetokenize(
+    JNIEnv* env,
+    jclass clazz,
+    jlong model,
+    jintArray tokens,
+    jboolean removeSpecial,
+    jboolean unparseSpecial
+) {
+    const llama_vocab* vocab = llama_model_get_vocab(to_model(model)->model);
+    const jsize n_tokens = env->GetArrayLength(tokens);
+    std::vector<llama_token> ids(n_tokens);
+    env->GetIntArrayRegion(tokens, 0, n_tokens, reinterpret_cast<jint*>(ids.data()));
+    
+    std::string text(n_tokens * 4 + 16, '\0');
+    int n = llama_detokenize(vocab, ids.data(), n_tokens, &text[0], text.size(), removeSpecial, unparseSpecial);
+    if (n < 0) {
+        text.resize(-n);
+        n = llama_detokenize(vocab, ids.data(), n_tokens, &text[0], text.size(), removeSpecial, unparseSpecial);
+    }
+    text.resize(std::max(n, 0));
+    return string_to_jstring(env, text);
+}
+
+// Format a system prompt (may be null) and [role, content, ...] messages
+// with the model's chat template, as chat turns are formatted
+JNIEXPORT jstring JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeFormatChat(
+    JNIEnv* env,
+    jclass clazz,
+    jlong model,
+    jstring systemPrompt,
+    jobjectArray rolesAndContents,
+    jboolean addAssistant
+) {
+    const jsize n_strings = env->GetArrayLength(rolesAndContents);
+    std::vector<std::string> strings;
+    strings.reserve(n_strings + 2);
+    if (systemPrompt) {
+        strings.push_back("system");
+        strings.push_back(jstring_to_string(env, systemPrompt));
+    }
+    for (jsize i = 0; i < n_strings; i++) {
+        jstring str = (jstring) env->GetObjectArrayElement(rolesAndContents, i);
+        strings.push_back(str ? jstring_to_string(env, str) : std::string());
+        env->DeleteLocalRef(str);
+    }
+    
+    std::vector<llama_chat_message> chat;
+    for (size_t i = 0; i + 1 < strings.size(); i += 2) {
+        chat.push_back({strings[i].c_str(), strings[i + 1].c_str()});
+    }
+    return string_to_jstring(env, apply_template(to_model(model)->model, chat, addAssistant));
+}
+
+// Get model info
+JNIEXPORT jstring JNICALL
+Java_com_saaya_ai_LlamaCpp_nativeGetModelInfo(JNIEnv* env, jclass clazz, jlong model) {
+    const ModelHandle* handle = to_model(model);
+    
+    // Get vocab for vocab size
+    const llama_vocab* vocab = llama_model_get_vocab(handle->model);
+    int32_t n_vocab = llama_vocab_n_tokens(vocab);
+    
+    const EngineParams& params = handle->params;
+    double weights_mb = llama_model_size(handle->model) / (1024.0 * 1024.0);
+    double kv_mb = kv_cache_bytes(handle->model, params) / (1024.0 * 1024.0);
+    
+    char buf[1024];
+    char desc[256];
+    llama_model_desc(handle->model, desc, sizeof(desc));
+    
+    snprintf(buf, sizeof(buf), 
+        "Model: %s\nContext: %d x %d sessions\nThreads: %d (batch %d)%s\nCPU backend: %s\n"
+        "Batch: %d (micro %d)\nVocab: %d\n"
+        "KV cache: %s/%s\nFlash attention: %s\nmmap: %s, mlock: %s\n"
+        "Memory: weights %.0f MB + KV cache %.0f MB = %.0f MB",
+        desc,
+        params.n_ctx,
+        params.n_seq_max,
+        params.n_threads,
+        params.n_threads_batch,
+        handle->n_pinned > 0 ? ", pinned" : "",
+        SAAYA_CPU_VARIANT,
+        params.n_batch,
+        params.n_ubatch,
+        n_vocab,
+        ggml_type_name(params.type_k),
+        ggml_type_name(params.type_v),
+        params.flash_attn ? "on" : "off",
+        params.use_mmap ? "on" : "off",
+        params.use_mlock ? "on" : "off",
+        weights_mb,
+        kv_mb,
+        weights_mb + kv_mb
+    );
+    std::string info(buf);
+    
+    if (handle->draft_model) {
+        llama_model_desc(handle->draft_model, desc, sizeof(desc));
+        uint64_t drafted = handle->n_drafted.load();
+        uint64_t accepted = handle->n_accepted.load();
+        double draft_mb = (llama_model_size(handle->draft_model)
+                           + kv_cache_bytes(handle->draft_model, params)) / (1024.0 * 1024.0);
+        snprintf(buf, sizeof(buf),
+            "\nSpeculative: %s, %d draft tokens, %.0f MB\nAccepted: %llu/%llu (%.0f%%)",
+            desc,
+            params.n_draft,
+            draft_mb,
+            (unsigned long long) accepted,
+            (unsigned long long) drafted,
+            drafted > 0 ? 100.0 * accepted / drafted : 0.0
+        );
+        info += buf;
+    } else {
+        info += "\nSpeculative: off";
+    }
     
-    return env->NewStringUTF(buf);
+    return string_to_jstring(env, info);
 }
 
 } // extern "C"
@@ -0,0 +1,303 @@
+package com.saaya.ai;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Headless completion of a JSONL prompt file with continuous batching
+ *
+ * One worker thread per session slot ({@link EngineConfig#getMaxSessions()})
+ * takes the next prompt as soon as its previous one finishes, so the model's
+ * batch loop always has every slot busy: the generating slots' tokens are
+ * decoded together in one llama_batch per step, and a new prompt's prefill
+ * joins the same batches instead of waiting for the others to drain.
+ *
+ * Input lines are objects with a prompt field (default "prompt") and
+ * optionally "id", "max_tokens" and sampling overrides ("temperature",
+ * "top_k", "top_p", "min_p", "repeat_penalty", "seed"). Each result is
+ * written as one line as soon as it is done, so output order follows
+ * completion, not input:
+ *
+ * {"index":0,"id":...,"response":"...","prompt_tokens":..,"generated_tokens":..,
+ *  "ttft_ms":..,"prefill_ms":..,"decode_ms":..,"total_ms":..}
+ *
+ * Lines that cannot be parsed produce an "error" record and do not stop the run.
+ */
+public final class BatchRunner {
+    private static final String TAG = "BatchRunner";
+
+    private final LlamaModel model;
+    private final int maxTokens;
+    private String promptField = "prompt";
+    private SamplingParams sampling = SamplingParams.DEFAULT;
+
+    private final List<LlamaSession> sessions = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+
+    // Shared by the workers, guarded by this
+    private BufferedReader input;
+    private Writer output;
+    private int nextIndex;
+
+    /**
+     * Totals of one {@link #run}
+     */
+    public static final class Summary {
+        public final int prompts;
+        public final int failed;
+        public final long generatedTokens;
+        public final double wallMs;
+
+        Summary(int prompts, int failed, long generatedTokens, double wallMs) {
+            this.prompts = prompts;
+            this.failed = failed;
+            this.generatedTokens = generatedTokens;
+            this.wallMs = wallMs;
+        }
+
+        /** Generated tokens per second of wall time, across all slots */
+        public double getTokensPerSecond() {
+            return wallMs > 0 ? generatedTokens * 1000 / wallMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d prompts (%d failed), %d tokens in %.1f s, %.1f tok/s",
+                    prompts, failed, generatedTokens, wallMs / 1000, getTokensPerSecond());
+        }
+    }
+
+    /**
+     * @param model Loaded model; all of its free session slots are used
+     * @param maxTokens Tokens to generate per prompt unless a line sets "max_tokens"
+     */
+    public BatchRunner(LlamaModel model, int maxTokens) {
+        this.model = model;
+        this.maxTokens = maxTokens;
+    }
+
+    /** Name of the input field holding the prompt text */
+    public BatchRunner promptField(String field) {
+        this.promptField = field;
+        return this;
+    }
+
+    /**
+     * Sampling of prompts that do not override it; e.g.
+     * {@link SamplingParams#GREEDY} for reproducible runs
+     */
+    public BatchRunner sampling(SamplingParams params) {
+        this.sampling = params;
+        return this;
+    }
+
+    /**
+     * Complete every prompt of input, writing results to output
+     *
+     * Blocks until the file is done or {@link #cancel} is called.
+     */
+    public Summary run(File input, File output) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8);
+             Writer out = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            return run(in, out);
+        }
+    }
+
+    public Summary run(Reader in, Writer out) throws IOException {
+        cancelled = false;
+        input = new BufferedReader(in);
+        output = new BufferedWriter(out);
+        nextIndex = 0;
+
+        // Take every slot the model has free
+        try {
+            while (sessions.size() < model.getConfig().getMaxSessions()) {
+                sessions.add(model.newSession());
+            }
+        } catch (IllegalStateException e) {
+            if (sessions.isEmpty()) {
+                throw e;
+            }
+        }
+        Log.i(TAG, "Running batch with " + sessions.size() + " slots");
+
+        Worker[] workers = new Worker[sessions.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, sessions.get(i));
+            workers[i].start();
+        }
+
+        // Sessions can only be closed once no worker is generating on them
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    cancel();
+                }
+            }
+        }
+        for (LlamaSession session : sessions) {
+            session.close();
+        }
+        sessions.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        double wallMs = (System.nanoTime() - start) / 1e6;
+
+        output.flush();
+
+        int prompts = 0;
+        int failed = 0;
+        long generated = 0;
+        for (Worker worker : workers) {
+            if (worker.error != null) {
+                throw worker.error;
+            }
+            prompts += worker.prompts;
+            failed += worker.failed;
+            generated += worker.generatedTokens;
+        }
+        Summary summary = new Summary(prompts, failed, generated, wallMs);
+        Log.i(TAG, "Batch done: " + summary);
+        return summary;
+    }
+
+    /**
+     * Stop the run; prompts in progress end early and are written with the
+     * text generated so far. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (LlamaSession session : sessions) {
+            session.cancel();
+        }
+    }
+
+    /** Next non-blank input line and its index, or null at end of file */
+    private synchronized Object[] nextLine() throws IOException {
+        String line;
+        while ((line = input.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+                return new Object[] {nextIndex++, line};
+            }
+        }
+        return null;
+    }
+
+    private synchronized void write(JSONObject result) throws IOException {
+        output.write(result.toString());
+        output.write('\n');
+        output.flush();
+    }
+
+    /** The run's sampling with the request's overrides applied */
+    private SamplingParams samplingFor(JSONObject request) {
+        SamplingParams.Builder builder = sampling.toBuilder()
+                .maxTokens(request.optInt("max_tokens", maxTokens));
+        if (request.has("temperature")) {
+            builder.temperature((float) request.optDouble("temperature"));
+        }
+        if (request.has("top_k")) {
+            builder.topK(request.optInt("top_k"));
+        }
+        if (request.has("top_p")) {
+            builder.topP((float) request.optDouble("top_p"));
+        }
+        if (request.has("min_p")) {
+            builder.minP((float) request.optDouble("min_p"));
+        }
+        if (request.has("repeat_penalty")) {
+            builder.penalties(sampling.getPenaltyLastN(), (float) request.optDouble("repeat_penalty"),
+                    sampling.getFrequencyPenalty(), sampling.getPresencePenalty());
+        }
+        if (request.has("seed")) {
+            builder.seed(request.optInt("seed"));
+        }
+        return builder.build();
+    }
+
+    private class Worker extends Thread {
+        private final LlamaSession session;
+        int prompts;
+        int failed;
+        long generatedTokens;
+        IOException error;
+
+        Worker(int slot, LlamaSession session) {
+            super("BatchRunner-" + slot);
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Object[] next;
+                while (!cancelled && (next = nextLine()) != null) {
+                    write(complete((Integer) next[0], (String) next[1]));
+                }
+            } catch (IOException e) {
+                error = e;
+                cancel();
+            }
+        }
+
+        private JSONObject complete(int index, String line) {
+            JSONObject result = new JSONObject();
+            long start = System.nanoTime();
+            prompts++;
+            try {
+                result.put("index", index);
+                JSONObject request = new JSONObject(line);
+                result.put("id", request.opt("id"));
+                String response = session.generate(request.getString(promptField), samplingFor(request));
+                InferenceMetrics metrics = session.getLastMetrics();
+
+                result.put("response", response);
+                if (metrics != null) {
+                    result.put("prompt_tokens", (int) metrics.promptTokens)
+                            .put("generated_tokens", (int) metrics.generatedTokens)
+                            .put("ttft_ms", metrics.timeToFirstTokenMs)
+                            .put("prefill_ms", metrics.prefillMs)
+                            .put("decode_ms", metrics.decodeMs);
+                    generatedTokens += (long) metrics.generatedTokens;
+                }
+            } catch (JSONException | IllegalArgumentException e) {
+                failed++;
+                try {
+                    result.put("error", e.getMessage());
+                } catch (JSONException ignored) {
+                    // key and value are non-null
+                }
+            }
+            try {
+                result.put("total_ms", (System.nanoTime() - start) / 1e6);
+            } catch (JSONException ignored) {
+                // finite value
+            }
+            return result;
+        }
+    }
+}
@@ -1,21 +1,122 @@
 package com.saaya.ai;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
+/**
+ * Chat bubbles, built for a reply that grows by a few characters 10-30
+ * times a second
+ *
+ * Streamed text is appended to the message right away but shown at most
+ * once per display frame, and then as a partial change: the bubble's
+ * Editable gets only the new characters, so neither the text nor its
+ * layout is rebuilt from scratch for every token. Items have stable IDs,
+ * and bulk replacements are diffed off the main thread.
+ *
+ * With a {@link ChatHistoryStore} attached, only a window of at most
+ * MAX_RESIDENT messages around the visible ones is held: pages are read
+ * from the store as the user scrolls towards either end, and the far end
+ * of the window is dropped. The newest messages are always kept as well,
+ * so new and streaming messages never wait for the store.
+ *
+ * All methods must be called on the main thread.
+ */
 public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder> {
     private List<ChatMessage> messages;
     private static final int VIEW_TYPE_USER = 1;
     private static final int VIEW_TYPE_AI = 2;
 
+    // Payload of a change that only appended text to a message
+    private static final Object PAYLOAD_APPEND = new Object();
+
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // Paging with a store: messages per read, window bound, and how close
+    // to either end of the window scrolling starts the next read
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_RESIDENT = 150;
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer.FrameCallback appendFrame = frameTimeNanos -> flushAppend();
+    private boolean appendPending = false;
+    private int modCount = 0;
+    private Runnable onStreamFrame;
+
+    private ChatHistoryStore store;
+    // Newest messages of the conversation, whether or not in the window
+    private final ArrayDeque<ChatMessage> recent = new ArrayDeque<>();
+    // Whether the store has messages before / after the window
+    private boolean hasOlder = false;
+    private boolean hasNewer = false;
+    private boolean pageLoading = false;
+
+    private final RecyclerView.OnScrollListener pager = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            if (recyclerView.getLayoutManager() instanceof LinearLayoutManager) {
+                LinearLayoutManager layout = (LinearLayoutManager) recyclerView.getLayoutManager();
+                onVisibleRange(layout.findFirstVisibleItemPosition(), layout.findLastVisibleItemPosition());
+            }
+        }
+    };
+
     public ChatAdapter() {
         this.messages = new ArrayList<>();
+        setHasStableIds(true);
+    }
+
+    /**
+     * Page messages from a store instead of holding the whole conversation.
+     * Call {@link #loadLatest()} to show the store's current conversation.
+     */
+    public void attachStore(ChatHistoryStore store) {
+        this.store = store;
+    }
+
+    /** Replace the messages with the newest page of the store's conversation */
+    public void loadLatest() {
+        if (store == null) {
+            return;
+        }
+        store.loadLatest(PAGE_SIZE, page -> {
+            submitMessages(page);
+            hasOlder = page.size() == PAGE_SIZE;
+        });
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(pager);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(pager);
+    }
+
+    /**
+     * @param listener Runs after each frame's streamed text is shown, e.g.
+     *                 to keep the last message scrolled into view
+     */
+    public void setOnStreamFrameListener(Runnable listener) {
+        this.onStreamFrame = listener;
     }
 
     @Override
@@ -23,6 +124,11 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
         return messages.get(position).isUser() ? VIEW_TYPE_USER : VIEW_TYPE_AI;
     }
 
+    @Override
+    public long getItemId(int position) {
+        return messages.get(position).getId();
+    }
+
     @NonNull
     @Override
     public ChatViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -40,7 +146,30 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
     @Override
     public void onBindViewHolder(@NonNull ChatViewHolder holder, int position) {
         ChatMessage message = messages.get(position);
-        holder.messageText.setText(message.getMessage());
+        // Editable, so streamed text can be appended in place
+        holder.messageText.setText(message.getMessage(), TextView.BufferType.EDITABLE);
+        holder.boundId = message.getId();
+        holder.shownLength = message.length();
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ChatViewHolder holder, int position, @NonNull List<Object> payloads) {
+        ChatMessage message = messages.get(position);
+        if (payloads.isEmpty() || holder.boundId != message.getId()
+                || message.length() < holder.shownLength) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_APPEND) {
+                onBindViewHolder(holder, position);
+                return;
+            }
+        }
+        if (message.length() > holder.shownLength) {
+            holder.messageText.append(message.subSequence(holder.shownLength));
+            holder.shownLength = message.length();
+        }
     }
 
     @Override
@@ -49,25 +178,233 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
     }
 
     public void addMessage(ChatMessage message) {
+        flushAppend();
+        if (hasNewer) {
+            showRecent();
+        }
         messages.add(message);
+        recent.addLast(message);
+        if (recent.size() > PAGE_SIZE) {
+            recent.removeFirst();
+        }
+        modCount++;
         notifyItemInserted(messages.size() - 1);
+        if (store != null && messages.size() > MAX_RESIDENT) {
+            int excess = messages.size() - MAX_RESIDENT;
+            messages.subList(0, excess).clear();
+            notifyItemRangeRemoved(0, excess);
+            hasOlder = true;
+        }
+    }
+
+    /** Replace the text of the last message, e.g. a placeholder or an error */
+    public void updateLastMessage(CharSequence text) {
+        if (!recent.isEmpty()) {
+            cancelAppend();
+            recent.peekLast().setMessage(text);
+            modCount++;
+            if (!hasNewer) {
+                notifyItemChanged(messages.size() - 1);
+            }
+        }
     }
 
-    public void updateLastMessage(String text) {
-        if (!messages.isEmpty()) {
-            int lastIndex = messages.size() - 1;
-            messages.get(lastIndex).setMessage(text);
-            notifyItemChanged(lastIndex);
+    /** Append streamed text to the last message; shown on the next frame */
+    public void appendToLastMessage(CharSequence text) {
+        if (!recent.isEmpty()) {
+            recent.peekLast().append(text);
+            modCount++;
+            if (!appendPending) {
+                appendPending = true;
+                Choreographer.getInstance().postFrameCallback(appendFrame);
+            }
         }
     }
 
     public void clearMessages() {
+        cancelAppend();
+        int count = messages.size();
         messages.clear();
-        notifyDataSetChanged();
+        recent.clear();
+        hasOlder = false;
+        hasNewer = false;
+        modCount++;
+        notifyItemRangeRemoved(0, count);
+    }
+
+    /**
+     * Replace all messages, e.g. with a restored conversation. The diff
+     * against the current list is computed on a background thread; if the
+     * list changes meanwhile, the new messages replace it without a diff.
+     */
+    public void submitMessages(List<ChatMessage> newMessages) {
+        flushAppend();
+        final List<ChatMessage> target = new ArrayList<>(newMessages);
+        recent.clear();
+        recent.addAll(target.subList(Math.max(0, target.size() - PAGE_SIZE), target.size()));
+        hasOlder = false;
+        hasNewer = false;
+        final long[] oldIds = new long[messages.size()];
+        final String[] oldTexts = new String[messages.size()];
+        for (int i = 0; i < oldIds.length; i++) {
+            oldIds[i] = messages.get(i).getId();
+            oldTexts[i] = messages.get(i).getMessage();
+        }
+        final String[] newTexts = new String[target.size()];
+        for (int i = 0; i < newTexts.length; i++) {
+            newTexts[i] = target.get(i).getMessage();
+        }
+        final int expectedModCount = ++modCount;
+
+        DIFF_EXECUTOR.execute(() -> {
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldIds.length;
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return target.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return oldIds[oldPosition] == target.get(newPosition).getId();
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return oldTexts[oldPosition].equals(newTexts[newPosition]);
+                }
+            });
+            mainHandler.post(() -> {
+                if (modCount != expectedModCount) {
+                    cancelAppend();
+                    int count = messages.size();
+                    messages = target;
+                    modCount++;
+                    notifyItemRangeRemoved(0, count);
+                    notifyItemRangeInserted(0, target.size());
+                    return;
+                }
+                messages = target;
+                modCount++;
+                result.dispatchUpdatesTo(this);
+            });
+        });
+    }
+
+    private void onVisibleRange(int first, int last) {
+        if (store == null || pageLoading || messages.isEmpty() || first < 0) {
+            return;
+        }
+        if (hasOlder && first <= PREFETCH_DISTANCE) {
+            loadOlder();
+        } else if (hasNewer && last >= messages.size() - 1 - PREFETCH_DISTANCE) {
+            loadNewer();
+        }
+    }
+
+    private void loadOlder() {
+        final ChatMessage anchor = messages.get(0);
+        pageLoading = true;
+        store.loadBefore(anchor, PAGE_SIZE, page -> {
+            pageLoading = false;
+            if (messages.isEmpty() || messages.get(0) != anchor) {
+                return;
+            }
+            messages.addAll(0, page);
+            notifyItemRangeInserted(0, page.size());
+            hasOlder = page.size() == PAGE_SIZE;
+            // Drop the newest end, unless the window is all there is
+            int excess = messages.size() - MAX_RESIDENT;
+            if (excess > 0) {
+                flushAppend();
+                int keep = messages.size() - excess;
+                messages.subList(keep, messages.size()).clear();
+                notifyItemRangeRemoved(keep, excess);
+                hasNewer = true;
+            }
+        });
+    }
+
+    private void loadNewer() {
+        final ChatMessage anchor = messages.get(messages.size() - 1);
+        pageLoading = true;
+        store.loadAfter(anchor, PAGE_SIZE, page -> {
+            pageLoading = false;
+            if (messages.isEmpty() || messages.get(messages.size() - 1) != anchor) {
+                return;
+            }
+            // Use the live objects of messages still held in memory
+            Map<Long, ChatMessage> live = new HashMap<>();
+            for (ChatMessage message : recent) {
+                live.put(message.getId(), message);
+            }
+            List<ChatMessage> added = new ArrayList<>();
+            for (ChatMessage message : page) {
+                ChatMessage current = live.get(message.getId());
+                added.add(current != null ? current : message);
+            }
+            if (page.size() < PAGE_SIZE) {
+                // Reached the end of the store; add what is not written yet
+                long lastId = added.isEmpty() ? anchor.getId() : added.get(added.size() - 1).getId();
+                for (ChatMessage message : recent) {
+                    if (message.getId() > lastId) {
+                        added.add(message);
+                    }
+                }
+                hasNewer = false;
+            }
+            int start = messages.size();
+            messages.addAll(added);
+            notifyItemRangeInserted(start, added.size());
+            int excess = messages.size() - MAX_RESIDENT;
+            if (excess > 0) {
+                messages.subList(0, excess).clear();
+                notifyItemRangeRemoved(0, excess);
+                hasOlder = true;
+            }
+        });
+    }
+
+    /** Replace the window with the newest messages, e.g. before adding one */
+    private void showRecent() {
+        int count = messages.size();
+        messages = new ArrayList<>(recent);
+        modCount++;
+        notifyItemRangeRemoved(0, count);
+        notifyItemRangeInserted(0, messages.size());
+        hasNewer = false;
+        hasOlder = store != null;
+    }
+
+    private void flushAppend() {
+        if (!appendPending) {
+            return;
+        }
+        cancelAppend();
+        if (!messages.isEmpty() && !hasNewer) {
+            notifyItemChanged(messages.size() - 1, PAYLOAD_APPEND);
+            if (onStreamFrame != null) {
+                onStreamFrame.run();
+            }
+        }
+    }
+
+    private void cancelAppend() {
+        if (appendPending) {
+            appendPending = false;
+            Choreographer.getInstance().removeFrameCallback(appendFrame);
+        }
     }
 
     static class ChatViewHolder extends RecyclerView.ViewHolder {
         TextView messageText;
+        // Message shown and how much of its text, for append-only updates
+        long boundId = RecyclerView.NO_ID;
+        int shownLength;
 
         ChatViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -0,0 +1,285 @@
+package com.saaya.ai;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chat history on disk, one SQLite row per message, ordered by
+ * {@link ChatMessage#getTimestamp()} (ties broken by ID)
+ *
+ * Appends are queued and written in one transaction per batch on a
+ * background thread. Reads return a page at a time through the same
+ * thread, after any queued writes, so they always see every appended
+ * message. Nothing is ever read in full: opening the last conversation
+ * reads its newest page through the (conversation, timestamp) index.
+ */
+public final class ChatHistoryStore {
+    private static final String TAG = "ChatHistoryStore";
+
+    private static final String DB_NAME = "chat_history.db";
+    private static final int DB_VERSION = 1;
+
+    // Appends arriving within this window share a transaction
+    private static final long FLUSH_DELAY_MS = 250;
+
+    /** Receives a page of messages on the main thread, oldest first */
+    public interface PageCallback {
+        void onPage(List<ChatMessage> messages);
+    }
+
+    private static final class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DB_NAME, null, DB_VERSION);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE messages ("
+                    + "id INTEGER PRIMARY KEY, "
+                    + "conversation INTEGER NOT NULL, "
+                    + "timestamp INTEGER NOT NULL, "
+                    + "is_user INTEGER NOT NULL, "
+                    + "text TEXT NOT NULL)");
+            db.execSQL("CREATE INDEX messages_by_time ON messages (conversation, timestamp, id)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS messages");
+            onCreate(db);
+        }
+    }
+
+    private final Helper helper;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this; each queued message with its conversation
+    private final List<ChatMessage> pending = new ArrayList<>();
+    private final List<Long> pendingConversations = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+    private long conversation;
+
+    private ChatHistoryStore(Context context) {
+        helper = new Helper(context.getApplicationContext());
+    }
+
+    /**
+     * Open the store and continue its most recent conversation. Blocks on
+     * disk I/O; call off the main thread.
+     */
+    public static ChatHistoryStore open(Context context) {
+        ChatHistoryStore store = new ChatHistoryStore(context);
+        SQLiteDatabase db = store.helper.getWritableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT MAX(conversation), MAX(id) FROM messages", null)) {
+            if (cursor.moveToFirst()) {
+                store.conversation = cursor.getLong(0);
+                // New messages must not reuse an ID that is already stored
+                ChatMessage.reserveIdsThrough(cursor.getLong(1));
+            }
+        }
+        return store;
+    }
+
+    /** Later messages go to a new, empty conversation */
+    public synchronized void startConversation() {
+        conversation++;
+    }
+
+    /**
+     * Queue a finished message of the current conversation for writing.
+     * Its text is read when the batch is written, so append it once it
+     * will no longer change. Ignored once the store is closed.
+     */
+    public synchronized void append(ChatMessage message) {
+        if (closed) {
+            return;
+        }
+        pending.add(message);
+        pendingConversations.add(conversation);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            executor.schedule(this::writePending, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Newest page of the current conversation */
+    public synchronized void loadLatest(int limit, PageCallback callback) {
+        load("conversation = ?", new String[] {String.valueOf(conversation)}, true, limit, callback);
+    }
+
+    /** Page of the current conversation just before a message */
+    public synchronized void loadBefore(ChatMessage message, int limit, PageCallback callback) {
+        String key = String.valueOf(message.getTimestamp());
+        load("conversation = ? AND (timestamp < ? OR (timestamp = ? AND id < ?))",
+                new String[] {String.valueOf(conversation), key, key, String.valueOf(message.getId())},
+                true, limit, callback);
+    }
+
+    /** Page of the current conversation just after a message */
+    public synchronized void loadAfter(ChatMessage message, int limit, PageCallback callback) {
+        String key = String.valueOf(message.getTimestamp());
+        load("conversation = ? AND (timestamp > ? OR (timestamp = ? AND id > ?))",
+                new String[] {String.valueOf(conversation), key, key, String.valueOf(message.getId())},
+                false, limit, callback);
+    }
+
+    /**
+     * Messages by ID that belong to other conversations than the current
+     * one, in the order of ids; IDs not stored or of the current
+     * conversation are left out. Blocks until the queued writes are done
+     * and the rows are read, so call off the main thread.
+     */
+    public List<ChatMessage> getEarlierMessages(long[] ids) {
+        String[] args = new String[ids.length + 1];
+        synchronized (this) {
+            if (closed || ids.length == 0) {
+                return Collections.emptyList();
+            }
+            args[ids.length] = String.valueOf(conversation);
+        }
+        StringBuilder sql = new StringBuilder("SELECT id, timestamp, is_user, text FROM messages WHERE id IN (");
+        for (int i = 0; i < ids.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            args[i] = String.valueOf(ids[i]);
+        }
+        sql.append(") AND conversation != ?");
+
+        List<ChatMessage> rows;
+        try {
+            rows = executor.submit(() -> {
+                writePending();
+                return query(sql.toString(), args);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            Log.e(TAG, "Could not read messages", e);
+            return Collections.emptyList();
+        }
+
+        Map<Long, ChatMessage> byId = new HashMap<>();
+        for (ChatMessage message : rows) {
+            byId.put(message.getId(), message);
+        }
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long id : ids) {
+            ChatMessage message = byId.get(id);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Write everything queued so far and close the database. Later appends
+     * and page loads are ignored.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.execute(() -> {
+            writePending();
+            helper.close();
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Query a page on the executor, after the queued writes. Caller holds
+     * the lock; nothing is loaded once closed.
+     *
+     * @param newest Take the newest rows matching, instead of the oldest
+     */
+    private void load(String where, String[] args, boolean newest, int limit, PageCallback callback) {
+        if (closed) {
+            return;
+        }
+        String order = newest ? "DESC" : "ASC";
+        String sql = "SELECT id, timestamp, is_user, text FROM messages WHERE " + where
+                + " ORDER BY timestamp " + order + ", id " + order + " LIMIT " + limit;
+        executor.execute(() -> {
+            writePending();
+            List<ChatMessage> page = query(sql, args);
+            if (newest) {
+                Collections.reverse(page);
+            }
+            mainHandler.post(() -> callback.onPage(page));
+        });
+    }
+
+    private List<ChatMessage> query(String sql, String[] args) {
+        List<ChatMessage> page = new ArrayList<>();
+        try (Cursor cursor = helper.getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                page.add(new ChatMessage(cursor.getLong(0), cursor.getString(3),
+                        cursor.getInt(2) != 0, cursor.getLong(1)));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not read chat history", e);
+        }
+        return page;
+    }
+
+    // Runs on the executor
+    private void writePending() {
+        List<ChatMessage> batch;
+        List<Long> conversations;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            conversations = new ArrayList<>(pendingConversations);
+            pending.clear();
+            pendingConversations.clear();
+        }
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO messages"
+                    + " (id, conversation, timestamp, is_user, text) VALUES (?, ?, ?, ?, ?)");
+            for (int i = 0; i < batch.size(); i++) {
+                ChatMessage message = batch.get(i);
+                insert.bindLong(1, message.getId());
+                insert.bindLong(2, conversations.get(i));
+                insert.bindLong(3, message.getTimestamp());
+                insert.bindLong(4, message.isUser() ? 1 : 0);
+                insert.bindString(5, message.getMessage());
+                insert.executeInsert();
+            }
+            insert.close();
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not write " + batch.size() + " messages", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
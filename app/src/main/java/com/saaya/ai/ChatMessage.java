@@ -1,22 +1,64 @@
 package com.saaya.ai;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class ChatMessage {
-    private String message;
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private final long id;
+    private final StringBuilder message;
     private boolean isUser;
     private long timestamp;
 
     public ChatMessage(String message, boolean isUser) {
-        this.message = message;
+        this.id = nextId.getAndIncrement();
+        this.message = new StringBuilder(message);
         this.isUser = isUser;
         this.timestamp = System.currentTimeMillis();
     }
 
+    /** A message read back from {@link ChatHistoryStore} */
+    ChatMessage(long id, String message, boolean isUser, long timestamp) {
+        this.id = id;
+        this.message = new StringBuilder(message);
+        this.isUser = isUser;
+        this.timestamp = timestamp;
+    }
+
+    /** Make new messages take IDs above maxId, which is already in use */
+    static void reserveIdsThrough(long maxId) {
+        long next;
+        do {
+            next = nextId.get();
+        } while (next <= maxId && !nextId.compareAndSet(next, maxId + 1));
+    }
+
+    /** Unique across the process and the stored history, used as the adapter's stable ID */
+    public long getId() {
+        return id;
+    }
+
     public String getMessage() {
-        return message;
+        return message.toString();
+    }
+
+    public void setMessage(CharSequence message) {
+        this.message.setLength(0);
+        this.message.append(message);
+    }
+
+    /** Append streamed text without copying what is already there */
+    public void append(CharSequence text) {
+        message.append(text);
+    }
+
+    public int length() {
+        return message.length();
     }
 
-    public void setMessage(String message) {
-        this.message = message;
+    /** Text from start to the end, e.g. the part not yet shown */
+    public CharSequence subSequence(int start) {
+        return message.subSequence(start, message.length());
     }
 
     public boolean isUser() {
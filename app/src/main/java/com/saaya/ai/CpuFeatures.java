@@ -0,0 +1,95 @@
+package com.saaya.ai;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Instruction set extensions of the CPU from /proc/cpuinfo, used to pick the
+ * fastest build of the native library before it is loaded
+ *
+ * Only features reported by every core count: on a heterogeneous SoC an
+ * inference thread may be scheduled on any of them.
+ */
+final class CpuFeatures {
+    private static final String CPUINFO = "/proc/cpuinfo";
+
+    private final Set<String> features;
+
+    private CpuFeatures(Set<String> features) {
+        this.features = features;
+    }
+
+    /**
+     * Parse the "Features" (ARM) or "flags" (x86) lines. Reports no features
+     * if /proc/cpuinfo is unreadable.
+     */
+    static CpuFeatures read() {
+        Set<String> common = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(CPUINFO))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String key = line.substring(0, colon).trim();
+                if (!key.equals("Features") && !key.equals("flags")) {
+                    continue;
+                }
+                Set<String> core = new HashSet<>(Arrays.asList(
+                        line.substring(colon + 1).trim().toLowerCase(Locale.US).split("\\s+")));
+                if (common == null) {
+                    common = core;
+                } else {
+                    common.retainAll(core);
+                }
+            }
+        } catch (IOException e) {
+            common = null;
+        }
+        return new CpuFeatures(common != null ? common : new HashSet<String>());
+    }
+
+    boolean has(String feature) {
+        return features.contains(feature);
+    }
+
+    /**
+     * Native library variants this CPU can run, best first, ending with the
+     * baseline. Names match add_llama_variant() in CMakeLists.txt.
+     */
+    List<String> libraryVariants() {
+        List<String> variants = new ArrayList<>();
+        // arm64: asimddp = sdot/udot, i8mm = int8 matrix multiply
+        if (has("asimddp") && has("asimdhp")) {
+            if (has("i8mm")) {
+                if (has("sve")) {
+                    variants.add("sve");
+                }
+                variants.add("i8mm");
+            }
+            variants.add("dotprod");
+        }
+        // x86_64
+        if (has("avx2") && has("fma") && has("f16c")) {
+            if (has("avx512f") && has("avx512bw") && has("avx512vl") && has("avx512_vnni")) {
+                variants.add("avx512");
+            }
+            variants.add("avx2");
+        }
+        variants.add("baseline");
+        return variants;
+    }
+
+    @Override
+    public String toString() {
+        return "CpuFeatures" + libraryVariants();
+    }
+}
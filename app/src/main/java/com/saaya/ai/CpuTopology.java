@@ -0,0 +1,137 @@
+package com.saaya.ai;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Core layout of the CPU from sysfs, for placing inference threads on
+ * heterogeneous (big.LITTLE) SoCs
+ *
+ * Each core is ranked by its scheduler capacity (cpu_capacity, 0-1024)
+ * or, where the kernel does not expose it, by its maximum frequency. A
+ * matmul split across threads runs at the pace of its slowest thread, so
+ * the "performance" cores are the ones within reach of the fastest.
+ */
+public final class CpuTopology {
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+
+    // Cores at least this fraction of the fastest count as performance cores
+    private static final double PERFORMANCE_FRACTION = 0.6;
+
+    private final int[] cpus;
+    private final long[] scores;
+    private final int[] performanceCores;
+
+    private CpuTopology(int[] cpus, long[] scores) {
+        this.cpus = cpus;
+        this.scores = scores;
+
+        long best = 0;
+        for (long score : scores) {
+            best = Math.max(best, score);
+        }
+        List<Integer> fast = new ArrayList<>();
+        for (int i = 0; i < cpus.length; i++) {
+            if (best == 0 || scores[i] >= best * PERFORMANCE_FRACTION) {
+                fast.add(cpus[i]);
+            }
+        }
+        this.performanceCores = new int[fast.size()];
+        for (int i = 0; i < performanceCores.length; i++) {
+            performanceCores[i] = fast.get(i);
+        }
+    }
+
+    /**
+     * Probe the cores listed in sysfs. Falls back to
+     * {@link Runtime#availableProcessors()} identical cores if sysfs is
+     * unreadable.
+     */
+    public static CpuTopology read() {
+        File[] entries = new File(CPU_DIR).listFiles();
+        List<Integer> ids = new ArrayList<>();
+        if (entries != null) {
+            for (File entry : entries) {
+                String name = entry.getName();
+                if (name.matches("cpu[0-9]+")) {
+                    ids.add(Integer.parseInt(name.substring(3)));
+                }
+            }
+        }
+        if (ids.isEmpty()) {
+            int n = Runtime.getRuntime().availableProcessors();
+            for (int i = 0; i < n; i++) {
+                ids.add(i);
+            }
+        }
+        int[] cpus = new int[ids.size()];
+        for (int i = 0; i < cpus.length; i++) {
+            cpus[i] = ids.get(i);
+        }
+        Arrays.sort(cpus);
+
+        long[] capacity = new long[cpus.length];
+        long[] freq = new long[cpus.length];
+        boolean haveCapacity = true;
+        for (int i = 0; i < cpus.length; i++) {
+            String dir = CPU_DIR + "/cpu" + cpus[i];
+            capacity[i] = readLong(dir + "/cpu_capacity");
+            freq[i] = readLong(dir + "/cpufreq/cpuinfo_max_freq");
+            haveCapacity &= capacity[i] > 0;
+        }
+        return new CpuTopology(cpus, haveCapacity ? capacity : freq);
+    }
+
+    private static long readLong(String path) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line = reader.readLine();
+            return line != null ? Long.parseLong(line.trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public int getCoreCount() {
+        return cpus.length;
+    }
+
+    /** CPU ids of the performance cores (all cores on a homogeneous CPU) */
+    public int[] getPerformanceCores() {
+        return performanceCores.clone();
+    }
+
+    public boolean isHeterogeneous() {
+        return performanceCores.length < cpus.length;
+    }
+
+    /**
+     * Stable description of the layout, e.g. "8:1024x1,870x3,325x4", used
+     * to key cached calibration results
+     */
+    public String getSignature() {
+        StringBuilder sb = new StringBuilder().append(cpus.length).append(':');
+        int i = 0;
+        while (i < scores.length) {
+            int j = i;
+            while (j < scores.length && scores[j] == scores[i]) {
+                j++;
+            }
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(scores[i]).append('x').append(j - i);
+            i = j;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "CpuTopology{" + getSignature() + ", performance=" + Arrays.toString(performanceCores) + "}";
+    }
+}
@@ -0,0 +1,289 @@
+package com.saaya.ai;
+
+/**
+ * llama.cpp model and context options passed to {@link LlamaModel#load(String, EngineConfig)}
+ *
+ * Fields are read directly by the native layer, so keep their names and
+ * types in sync with readEngineConfig() in llama-android.cpp.
+ */
+public final class EngineConfig {
+
+    /**
+     * Storage type for the KV cache. Quantized types cut the cache size
+     * roughly in half (Q8_0) or to a quarter (Q4_0) of F16.
+     */
+    public enum KvCacheType {
+        F16(1, 2.0),
+        Q8_0(8, 34.0 / 32.0),
+        Q4_0(2, 18.0 / 32.0);
+
+        /** ggml_type id used by llama_context_params.type_k/type_v */
+        final int ggmlType;
+        /** Average bytes per cached value */
+        public final double bytesPerElement;
+
+        KvCacheType(int ggmlType, double bytesPerElement) {
+            this.ggmlType = ggmlType;
+            this.bytesPerElement = bytesPerElement;
+        }
+    }
+
+    private final int nCtx;
+    private final int nSeqMax;
+    private final int nThreads;
+    private final int nThreadsBatch;
+    private final int nBatch;
+    private final int nUbatch;
+    private final KvCacheType kvCacheTypeK;
+    private final KvCacheType kvCacheTypeV;
+    private final boolean flashAttention;
+    private final boolean useMmap;
+    private final boolean useMlock;
+    private final int nDraft;
+    private final long prefixCacheBytes;
+    private final long prefixCacheDiskBytes;
+    private final String prefixCacheDir;
+
+    private EngineConfig(Builder builder) {
+        this.nCtx = builder.nCtx;
+        this.nSeqMax = builder.nSeqMax;
+        this.nThreads = builder.nThreads;
+        this.nThreadsBatch = builder.nThreadsBatch > 0 ? builder.nThreadsBatch : builder.nThreads;
+        this.nBatch = builder.nBatch;
+        this.nUbatch = Math.min(builder.nUbatch, builder.nBatch);
+        this.kvCacheTypeK = builder.kvCacheTypeK;
+        this.kvCacheTypeV = builder.kvCacheTypeV;
+        this.flashAttention = builder.flashAttention;
+        this.useMmap = builder.useMmap;
+        this.useMlock = builder.useMlock;
+        this.nDraft = builder.nDraft;
+        this.prefixCacheBytes = builder.prefixCacheBytes;
+        this.prefixCacheDiskBytes = builder.prefixCacheDir != null ? builder.prefixCacheDiskBytes : 0;
+        this.prefixCacheDir = builder.prefixCacheDir;
+    }
+
+    public int getContextSize() {
+        return nCtx;
+    }
+
+    public int getMaxSessions() {
+        return nSeqMax;
+    }
+
+    public int getThreads() {
+        return nThreads;
+    }
+
+    public int getBatchThreads() {
+        return nThreadsBatch;
+    }
+
+    public int getBatchSize() {
+        return nBatch;
+    }
+
+    public int getMicroBatchSize() {
+        return nUbatch;
+    }
+
+    public KvCacheType getKvCacheTypeK() {
+        return kvCacheTypeK;
+    }
+
+    public KvCacheType getKvCacheTypeV() {
+        return kvCacheTypeV;
+    }
+
+    public boolean isFlashAttention() {
+        return flashAttention;
+    }
+
+    public boolean isMmap() {
+        return useMmap;
+    }
+
+    public boolean isMlock() {
+        return useMlock;
+    }
+
+    public int getDraftTokens() {
+        return nDraft;
+    }
+
+    public long getPrefixCacheBytes() {
+        return prefixCacheBytes;
+    }
+
+    public long getPrefixCacheDiskBytes() {
+        return prefixCacheDiskBytes;
+    }
+
+    /** Directory the prefix cache spills to, or null for memory only */
+    public String getPrefixCacheDir() {
+        return prefixCacheDir;
+    }
+
+    /**
+     * Average bytes per KV cache value across K and V, for
+     * {@link GgufInfo#estimateKvCacheBytes}
+     */
+    public double getKvBytesPerElement() {
+        return (kvCacheTypeK.bytesPerElement + kvCacheTypeV.bytesPerElement) / 2;
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .contextSize(nCtx)
+                .maxSessions(nSeqMax)
+                .threads(nThreads)
+                .batchThreads(nThreadsBatch)
+                .batchSize(nBatch)
+                .microBatchSize(nUbatch)
+                .kvCacheTypes(kvCacheTypeK, kvCacheTypeV)
+                .flashAttention(flashAttention)
+                .mmap(useMmap)
+                .mlock(useMlock)
+                .draftTokens(nDraft)
+                .prefixCache(prefixCacheBytes)
+                .prefixCacheDisk(prefixCacheDir, prefixCacheDiskBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "EngineConfig{ctx=" + nCtx + ", sessions=" + nSeqMax + ", threads=" + nThreads + "/" + nThreadsBatch
+                + ", batch=" + nBatch + "/" + nUbatch + ", kv=" + kvCacheTypeK + "/" + kvCacheTypeV
+                + ", flashAttn=" + flashAttention + ", mmap=" + useMmap + ", mlock=" + useMlock
+                + ", draft=" + nDraft + ", prefixCache=" + (prefixCacheBytes >> 20) + " MB"
+                + (prefixCacheDir != null ? " + " + (prefixCacheDiskBytes >> 20) + " MB disk" : "") + "}";
+    }
+
+    public static final class Builder {
+        private int nCtx = 2048;
+        private int nSeqMax = 1;
+        private int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        private int nThreadsBatch = 0;
+        private int nBatch = 512;
+        private int nUbatch = 512;
+        private KvCacheType kvCacheTypeK = KvCacheType.F16;
+        private KvCacheType kvCacheTypeV = KvCacheType.F16;
+        private boolean flashAttention = false;
+        private boolean useMmap = true;
+        private boolean useMlock = false;
+        private int nDraft = 5;
+        private long prefixCacheBytes = 64L * 1024 * 1024;
+        private long prefixCacheDiskBytes = 0;
+        private String prefixCacheDir = null;
+
+        /** Context window in tokens, per session */
+        public Builder contextSize(int nCtx) {
+            this.nCtx = nCtx;
+            return this;
+        }
+
+        /**
+         * Sessions that can be open on the model at once. Each gets its own
+         * KV sequence of {@link #contextSize} cells, so the cache grows
+         * linearly with this.
+         */
+        public Builder maxSessions(int nSeqMax) {
+            this.nSeqMax = nSeqMax;
+            return this;
+        }
+
+        /** Threads for single-token decode */
+        public Builder threads(int nThreads) {
+            this.nThreads = nThreads;
+            return this;
+        }
+
+        /** Threads for prompt (batch) processing; defaults to {@link #threads} */
+        public Builder batchThreads(int nThreadsBatch) {
+            this.nThreadsBatch = nThreadsBatch;
+            return this;
+        }
+
+        /** Maximum tokens submitted to one llama_decode call */
+        public Builder batchSize(int nBatch) {
+            this.nBatch = nBatch;
+            return this;
+        }
+
+        /** Physical batch size; bounds the compute buffer */
+        public Builder microBatchSize(int nUbatch) {
+            this.nUbatch = nUbatch;
+            return this;
+        }
+
+        /** Same storage type for K and V */
+        public Builder kvCacheType(KvCacheType type) {
+            return kvCacheTypes(type, type);
+        }
+
+        public Builder kvCacheTypes(KvCacheType typeK, KvCacheType typeV) {
+            this.kvCacheTypeK = typeK;
+            this.kvCacheTypeV = typeV;
+            return this;
+        }
+
+        public Builder flashAttention(boolean enabled) {
+            this.flashAttention = enabled;
+            return this;
+        }
+
+        public Builder mmap(boolean enabled) {
+            this.useMmap = enabled;
+            return this;
+        }
+
+        /** Pin the weights in RAM; fails silently if RLIMIT_MEMLOCK is too low */
+        public Builder mlock(boolean enabled) {
+            this.useMlock = enabled;
+            return this;
+        }
+
+        /**
+         * Tokens the draft model proposes per step when one is loaded.
+         * More pays off only while most proposals are accepted.
+         */
+        public Builder draftTokens(int nDraft) {
+            this.nDraft = nDraft;
+            return this;
+        }
+
+        /**
+         * Memory for KV snapshots of recent prompts. A generate request whose
+         * prompt starts like a cached one restores the shared part and only
+         * prefills the rest. 0 turns the cache off.
+         */
+        public Builder prefixCache(long bytes) {
+            this.prefixCacheBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Keep snapshots evicted from memory in dir (null for none), up to
+         * diskBytes, also across model loads
+         */
+        public Builder prefixCacheDisk(String dir, long diskBytes) {
+            this.prefixCacheDir = dir;
+            this.prefixCacheDiskBytes = diskBytes;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException for sizes out of range, or a
+         *         quantized V cache without flash attention (llama.cpp
+         *         only supports that combination with flash attention)
+         */
+        public EngineConfig build() {
+            if (nCtx <= 0 || nSeqMax <= 0 || nThreads <= 0 || nBatch <= 0 || nUbatch <= 0
+                    || nDraft <= 0 || prefixCacheBytes < 0 || prefixCacheDiskBytes < 0) {
+                throw new IllegalArgumentException("Sizes and thread counts must be positive");
+            }
+            if (kvCacheTypeV != KvCacheType.F16 && !flashAttention) {
+                throw new IllegalArgumentException("Quantized V cache requires flash attention");
+            }
+            return new EngineConfig(this);
+        }
+    }
+}
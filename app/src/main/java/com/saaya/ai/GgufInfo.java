@@ -0,0 +1,436 @@
+package com.saaya.ai;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Metadata read straight from a GGUF file header, without llama.cpp
+ *
+ * Only the header, key/value section and tensor table are memory-mapped,
+ * so inspecting a multi-GB model takes milliseconds. Used to reject bad
+ * files before the native load and to size the context for the device.
+ */
+public class GgufInfo {
+    private static final int GGUF_MAGIC = 0x46554747; // "GGUF" little-endian
+    private static final int DEFAULT_ALIGNMENT = 32;
+
+    // Map the header in growing windows; most models need well under 16 MB
+    private static final long INITIAL_MAP_SIZE = 16L * 1024 * 1024;
+
+    // Sanity limits so a corrupt header fails fast instead of looping
+    private static final long MAX_STRING_LENGTH = 64L * 1024 * 1024;
+    private static final long MAX_COUNT = 1L << 32;
+
+    // GGUF metadata value types
+    private static final int TYPE_UINT8 = 0;
+    private static final int TYPE_INT8 = 1;
+    private static final int TYPE_UINT16 = 2;
+    private static final int TYPE_INT16 = 3;
+    private static final int TYPE_UINT32 = 4;
+    private static final int TYPE_INT32 = 5;
+    private static final int TYPE_FLOAT32 = 6;
+    private static final int TYPE_BOOL = 7;
+    private static final int TYPE_STRING = 8;
+    private static final int TYPE_ARRAY = 9;
+    private static final int TYPE_UINT64 = 10;
+    private static final int TYPE_INT64 = 11;
+    private static final int TYPE_FLOAT64 = 12;
+
+    // ggml tensor types: {bytes per block, elements per block}, indexed by type id
+    private static final int[][] GGML_TYPE_SIZES = {
+        {4, 1},      // 0  F32
+        {2, 1},      // 1  F16
+        {18, 32},    // 2  Q4_0
+        {20, 32},    // 3  Q4_1
+        null,        // 4  (removed Q4_2)
+        null,        // 5  (removed Q4_3)
+        {22, 32},    // 6  Q5_0
+        {24, 32},    // 7  Q5_1
+        {34, 32},    // 8  Q8_0
+        {36, 32},    // 9  Q8_1
+        {84, 256},   // 10 Q2_K
+        {110, 256},  // 11 Q3_K
+        {144, 256},  // 12 Q4_K
+        {176, 256},  // 13 Q5_K
+        {210, 256},  // 14 Q6_K
+        {292, 256},  // 15 Q8_K
+        {66, 256},   // 16 IQ2_XXS
+        {74, 256},   // 17 IQ2_XS
+        {98, 256},   // 18 IQ3_XXS
+        {50, 256},   // 19 IQ1_S
+        {18, 32},    // 20 IQ4_NL
+        {110, 256},  // 21 IQ3_S
+        {82, 256},   // 22 IQ2_S
+        {136, 256},  // 23 IQ4_XS
+        {1, 1},      // 24 I8
+        {2, 1},      // 25 I16
+        {4, 1},      // 26 I32
+        {8, 1},      // 27 I64
+        {8, 1},      // 28 F64
+        {56, 256},   // 29 IQ1_M
+        {2, 1},      // 30 BF16
+        null,        // 31 (removed Q4_0_4_4)
+        null,        // 32 (removed Q4_0_4_8)
+        null,        // 33 (removed Q4_0_8_8)
+        {54, 256},   // 34 TQ1_0
+        {66, 256},   // 35 TQ2_0
+    };
+
+    // llama_ftype names, indexed by general.file_type
+    private static final String[] FILE_TYPE_NAMES = {
+        "F32", "F16", "Q4_0", "Q4_1", null, null, null, "Q8_0", "Q5_0", "Q5_1",
+        "Q2_K", "Q3_K_S", "Q3_K_M", "Q3_K_L", "Q4_K_S", "Q4_K_M", "Q5_K_S", "Q5_K_M", "Q6_K",
+        "IQ2_XXS", "IQ2_XS", "Q2_K_S", "IQ3_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S",
+        "IQ3_M", "IQ2_S", "IQ2_M", "IQ4_XS", "IQ1_M", "BF16", null, null, null, "TQ1_0", "TQ2_0",
+    };
+
+    public int version;
+    public String architecture = "";
+    public String name = "";
+    public int fileType = -1;
+    public long contextLength;
+    public int blockCount;
+    public int embeddingLength;
+    public int headCount;
+    public int headCountKv;
+    public int keyLength;
+    public int valueLength;
+    public int vocabSize;
+    public String chatTemplate;
+    public long tensorCount;
+    public long parameterCount;
+    public long tensorBytes;
+    public long dataOffset;
+    public long fileSize;
+
+    /**
+     * Read and validate the header of a GGUF file
+     *
+     * @throws IOException if the file is not a GGUF model, is truncated, or cannot be read
+     */
+    public static GgufInfo read(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            return read(channel);
+        }
+    }
+
+    /**
+     * Read and validate the header of a GGUF file open for reading
+     *
+     * @throws IOException if the file is not a GGUF model, is truncated, or cannot be read
+     */
+    public static GgufInfo read(FileChannel channel) throws IOException {
+        GgufInfo info = new GgufInfo();
+        info.fileSize = channel.size();
+        Reader reader = new Reader(channel, info.fileSize);
+
+        if (info.fileSize < 24 || reader.u32() != GGUF_MAGIC) {
+            throw new IOException("Not a GGUF file");
+        }
+        info.version = reader.u32();
+        if (info.version < 2 || info.version > 3) {
+            throw new IOException("Unsupported GGUF version " + info.version);
+        }
+        info.tensorCount = reader.count();
+        long kvCount = reader.count();
+
+        // Metadata: collect what we need now, architecture-specific keys are
+        // matched by suffix since the architecture key may come first or not
+        int alignment = DEFAULT_ALIGNMENT;
+        String[] archKeys = new String[(int) Math.min(kvCount, 4096)];
+        long[] archValues = new long[archKeys.length];
+        int nArch = 0;
+        for (long i = 0; i < kvCount; i++) {
+            String key = reader.string();
+            int type = reader.u32();
+            switch (key) {
+                case "general.architecture":
+                    info.architecture = reader.stringValue(type);
+                    break;
+                case "general.name":
+                    info.name = reader.stringValue(type);
+                    break;
+                case "general.file_type":
+                    info.fileType = (int) reader.intValue(type);
+                    break;
+                case "general.alignment":
+                    alignment = (int) reader.intValue(type);
+                    break;
+                case "tokenizer.ggml.tokens":
+                    info.vocabSize = (int) reader.arrayLength(type);
+                    break;
+                case "tokenizer.chat_template":
+                    info.chatTemplate = reader.stringValue(type);
+                    break;
+                default:
+                    if (isIntegerType(type) && key.indexOf('.') > 0 && nArch < archKeys.length) {
+                        archKeys[nArch] = key;
+                        archValues[nArch++] = reader.intValue(type);
+                    } else {
+                        reader.skipValue(type);
+                    }
+            }
+        }
+        if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+            throw new IOException("Invalid alignment " + alignment);
+        }
+
+        String prefix = info.architecture + ".";
+        for (int i = 0; i < nArch; i++) {
+            if (!archKeys[i].startsWith(prefix)) {
+                continue;
+            }
+            String key = archKeys[i].substring(prefix.length());
+            long value = archValues[i];
+            switch (key) {
+                case "context_length": info.contextLength = value; break;
+                case "block_count": info.blockCount = (int) value; break;
+                case "embedding_length": info.embeddingLength = (int) value; break;
+                case "attention.head_count": info.headCount = (int) value; break;
+                case "attention.head_count_kv": info.headCountKv = (int) value; break;
+                case "attention.key_length": info.keyLength = (int) value; break;
+                case "attention.value_length": info.valueLength = (int) value; break;
+                default: break;
+            }
+        }
+        if (info.headCountKv == 0) {
+            info.headCountKv = info.headCount;
+        }
+
+        // Tensor table: element counts and byte sizes
+        long dataEnd = 0;
+        for (long i = 0; i < info.tensorCount; i++) {
+            reader.string(); // name
+            int nDims = reader.u32();
+            if (nDims < 1 || nDims > 4) {
+                throw new IOException("Invalid tensor dimensions: " + nDims);
+            }
+            long elements = 1;
+            for (int d = 0; d < nDims; d++) {
+                elements *= reader.count();
+            }
+            int ggmlType = reader.u32();
+            long offset = reader.u64();
+
+            long bytes = tensorBytes(ggmlType, elements);
+            info.parameterCount += elements;
+            info.tensorBytes += bytes;
+            dataEnd = Math.max(dataEnd, offset + bytes);
+        }
+
+        info.dataOffset = (reader.position + alignment - 1) / alignment * alignment;
+        if (info.dataOffset + dataEnd > info.fileSize) {
+            throw new IOException("GGUF file is truncated: expected at least "
+                    + (info.dataOffset + dataEnd) + " bytes, found " + info.fileSize);
+        }
+        if (info.architecture.isEmpty() || info.blockCount == 0) {
+            throw new IOException("GGUF file has no model architecture");
+        }
+        return info;
+    }
+
+    /**
+     * Quantization name from general.file_type, e.g. "Q4_K_M"
+     */
+    public String getQuantization() {
+        if (fileType >= 0 && fileType < FILE_TYPE_NAMES.length && FILE_TYPE_NAMES[fileType] != null) {
+            return FILE_TYPE_NAMES[fileType];
+        }
+        return fileType < 0 ? "unknown" : "type " + fileType;
+    }
+
+    /**
+     * Bytes the KV cache needs for a context of nCtx tokens
+     *
+     * @param bytesPerElement Storage per cached value: 2 for f16, 34/32 for q8_0
+     */
+    public long estimateKvCacheBytes(int nCtx, double bytesPerElement) {
+        if (headCount == 0) {
+            return 0;
+        }
+        int headDimK = keyLength > 0 ? keyLength : embeddingLength / headCount;
+        int headDimV = valueLength > 0 ? valueLength : embeddingLength / headCount;
+        long elementsPerToken = (long) blockCount * headCountKv * (headDimK + headDimV);
+        return (long) (elementsPerToken * (double) nCtx * bytesPerElement);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s, %.2fB params, %s, ctx %d, %d layers, %.2f GB tensors",
+                architecture, name.isEmpty() ? "" : " (" + name + ")",
+                parameterCount / 1e9, getQuantization(), contextLength, blockCount,
+                tensorBytes / (1024.0 * 1024.0 * 1024.0));
+    }
+
+    private static long tensorBytes(int ggmlType, long elements) throws IOException {
+        if (ggmlType < 0 || ggmlType >= GGML_TYPE_SIZES.length || GGML_TYPE_SIZES[ggmlType] == null) {
+            throw new IOException("Unknown tensor type " + ggmlType);
+        }
+        int[] size = GGML_TYPE_SIZES[ggmlType];
+        return elements / size[1] * size[0];
+    }
+
+    private static boolean isIntegerType(int type) {
+        switch (type) {
+            case TYPE_UINT8: case TYPE_INT8: case TYPE_UINT16: case TYPE_INT16:
+            case TYPE_UINT32: case TYPE_INT32: case TYPE_UINT64: case TYPE_INT64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sequential little-endian reader over a read-only mapping that is
+     * widened on demand, so only the header pages are ever touched
+     */
+    private static final class Reader {
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer buffer;
+        private long position;
+
+        Reader(FileChannel channel, long fileSize) throws IOException {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            map(Math.min(fileSize, INITIAL_MAP_SIZE));
+        }
+
+        private void map(long size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private int at(long n) throws IOException {
+            long end = position + n;
+            if (end > fileSize || end < position) {
+                throw new IOException("GGUF header runs past end of file");
+            }
+            if (end > buffer.capacity()) {
+                // Double the window, capped by the file and a 2 GB mapping
+                long size = Math.min(Math.min(fileSize, Integer.MAX_VALUE),
+                        Math.max(end, (long) buffer.capacity() * 2));
+                if (end > size) {
+                    throw new IOException("GGUF header too large");
+                }
+                map(size);
+            }
+            int index = (int) position;
+            position = end;
+            return index;
+        }
+
+        int u32() throws IOException {
+            return buffer.getInt(at(4));
+        }
+
+        long u64() throws IOException {
+            return buffer.getLong(at(8));
+        }
+
+        long count() throws IOException {
+            long n = u64();
+            if (n < 0 || n > MAX_COUNT) {
+                throw new IOException("Invalid count in GGUF header: " + n);
+            }
+            return n;
+        }
+
+        String string() throws IOException {
+            long length = u64();
+            if (length < 0 || length > MAX_STRING_LENGTH) {
+                throw new IOException("Invalid string length in GGUF header: " + length);
+            }
+            int start = at(length);
+            byte[] bytes = new byte[(int) length];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String stringValue(int type) throws IOException {
+            if (type != TYPE_STRING) {
+                skipValue(type);
+                return "";
+            }
+            return string();
+        }
+
+        long intValue(int type) throws IOException {
+            switch (type) {
+                case TYPE_UINT8: return buffer.get(at(1)) & 0xFF;
+                case TYPE_INT8: return buffer.get(at(1));
+                case TYPE_UINT16: return buffer.getShort(at(2)) & 0xFFFF;
+                case TYPE_INT16: return buffer.getShort(at(2));
+                case TYPE_UINT32: return u32() & 0xFFFFFFFFL;
+                case TYPE_INT32: return u32();
+                case TYPE_UINT64: case TYPE_INT64: return u64();
+                default:
+                    skipValue(type);
+                    return 0;
+            }
+        }
+
+        long arrayLength(int type) throws IOException {
+            if (type != TYPE_ARRAY) {
+                skipValue(type);
+                return 0;
+            }
+            int itemType = u32();
+            long n = count();
+            for (long i = 0; i < n; i++) {
+                skipValue(itemType);
+            }
+            return n;
+        }
+
+        void skipValue(int type) throws IOException {
+            switch (type) {
+                case TYPE_UINT8: case TYPE_INT8: case TYPE_BOOL: at(1); break;
+                case TYPE_UINT16: case TYPE_INT16: at(2); break;
+                case TYPE_UINT32: case TYPE_INT32: case TYPE_FLOAT32: at(4); break;
+                case TYPE_UINT64: case TYPE_INT64: case TYPE_FLOAT64: at(8); break;
+                case TYPE_STRING: {
+                    long length = u64();
+                    if (length < 0 || length > MAX_STRING_LENGTH) {
+                        throw new IOException("Invalid string length in GGUF header: " + length);
+                    }
+                    at(length);
+                    break;
+                }
+                case TYPE_ARRAY: {
+                    int itemType = u32();
+                    long n = count();
+                    int fixed = fixedSize(itemType);
+                    if (fixed > 0) {
+                        at(n * fixed);
+                    } else {
+                        for (long i = 0; i < n; i++) {
+                            skipValue(itemType);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown GGUF value type " + type);
+            }
+        }
+
+        private static int fixedSize(int type) {
+            switch (type) {
+                case TYPE_UINT8: case TYPE_INT8: case TYPE_BOOL: return 1;
+                case TYPE_UINT16: case TYPE_INT16: return 2;
+                case TYPE_UINT32: case TYPE_INT32: case TYPE_FLOAT32: return 4;
+                case TYPE_UINT64: case TYPE_INT64: case TYPE_FLOAT64: return 8;
+                default: return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.saaya.ai;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Timings and memory of a generation request, from {@link LlamaSession#getLastMetrics}
+ * or averaged over recent requests by {@link LlamaSession#getAverageMetrics}
+ *
+ * Token counts and times are per request (means for an aggregate).
+ * KV cache occupancy and RSS are snapshots taken after the last request.
+ */
+public class InferenceMetrics {
+    /** Requests this record covers; 1 unless it is an aggregate */
+    public final int requestCount;
+    /** Prompt tokens decoded (prefilled) */
+    public final double promptTokens;
+    /** Prompt tokens reused from the KV cache instead of being decoded */
+    public final double cachedTokens;
+    public final double generatedTokens;
+    public final double tokenizeMs;
+    public final double prefillMs;
+    /** Request start to first sampled token: tokenize + prefill + first sample */
+    public final double timeToFirstTokenMs;
+    /** Time spent in llama_decode for generated tokens */
+    public final double decodeMs;
+    public final double sampleMs;
+    public final int kvCellsUsed;
+    public final int kvCellsTotal;
+    public final long rssBytes;
+
+    /**
+     * @param values Native layout: count, prompt, cached, generated, tokenize ms,
+     *               prefill ms, TTFT ms, decode ms, sample ms, KV used, n_ctx, RSS
+     */
+    InferenceMetrics(double[] values) {
+        this.requestCount = (int) values[0];
+        this.promptTokens = values[1];
+        this.cachedTokens = values[2];
+        this.generatedTokens = values[3];
+        this.tokenizeMs = values[4];
+        this.prefillMs = values[5];
+        this.timeToFirstTokenMs = values[6];
+        this.decodeMs = values[7];
+        this.sampleMs = values[8];
+        this.kvCellsUsed = (int) values[9];
+        this.kvCellsTotal = (int) values[10];
+        this.rssBytes = (long) values[11];
+    }
+
+    public double getPrefillTokensPerSecond() {
+        return prefillMs > 0 ? promptTokens * 1000 / prefillMs : 0;
+    }
+
+    public double getDecodeTokensPerSecond() {
+        return decodeMs > 0 ? generatedTokens * 1000 / decodeMs : 0;
+    }
+
+    /**
+     * One line for the status bar debug overlay
+     */
+    public String toOverlayString() {
+        return String.format(Locale.US,
+                "TTFT %.0f ms | prefill %.1f t/s | decode %.1f t/s | KV %d/%d | RSS %d MB",
+                timeToFirstTokenMs, getPrefillTokensPerSecond(), getDecodeTokensPerSecond(),
+                kvCellsUsed, kvCellsTotal, rssBytes / (1024 * 1024));
+    }
+
+    public JSONObject toJson() throws JSONException {
+        return new JSONObject()
+                .put("requestCount", requestCount)
+                .put("promptTokens", promptTokens)
+                .put("cachedTokens", cachedTokens)
+                .put("generatedTokens", generatedTokens)
+                .put("tokenizeMs", tokenizeMs)
+                .put("prefillMs", prefillMs)
+                .put("prefillTokensPerSecond", getPrefillTokensPerSecond())
+                .put("timeToFirstTokenMs", timeToFirstTokenMs)
+                .put("decodeMs", decodeMs)
+                .put("decodeTokensPerSecond", getDecodeTokensPerSecond())
+                .put("sampleMs", sampleMs)
+                .put("kvCellsUsed", kvCellsUsed)
+                .put("kvCellsTotal", kvCellsTotal)
+                .put("rssBytes", rssBytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "InferenceMetrics{requests=%d, prompt=%.0f (+%.0f cached) in %.1f ms, TTFT=%.1f ms, "
+                        + "generated=%.0f in %.1f ms, sample=%.1f ms, KV=%d/%d, RSS=%d MB}",
+                requestCount, promptTokens, cachedTokens, prefillMs, timeToFirstTokenMs,
+                generatedTokens, decodeMs, sampleMs, kvCellsUsed, kvCellsTotal,
+                rssBytes / (1024 * 1024));
+    }
+}
@@ -0,0 +1,377 @@
+package com.saaya.ai;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the app's background work on two lanes, so a multi-GB import never
+ * holds up chat and a model switch never waits behind queued messages
+ *
+ * The inference lane is one thread that owns the native model. Its queue
+ * is bounded and ordered by {@link Priority}, FIFO within a priority.
+ * Loading a model drops the generations still queued for the previous one,
+ * and a task submitted with the key of one already queued replaces it. The
+ * I/O lane copies and inspects files; the only model work it does is
+ * embedding, which has a context of its own and never blocks decoding,
+ * and hot swaps, which load the next model while the current one serves.
+ *
+ * State and queue depth changes are reported on the main thread.
+ */
+public final class InferenceScheduler {
+    private static final String TAG = "InferenceScheduler";
+
+    // Inference tasks waiting, not counting the one running
+    private static final int MAX_QUEUED = 8;
+    private static final int MAX_QUEUED_GENERATIONS = 2;
+
+    public enum State {
+        /** No model */
+        IDLE,
+        LOADING,
+        READY,
+        GENERATING,
+        /** Generation asked to stop, still unwinding */
+        CANCELLING
+    }
+
+    public enum Priority {
+        /** Model lifecycle: load, unload, saving the session */
+        HIGH,
+        /** User requests */
+        NORMAL,
+        /** Bookkeeping such as reading metrics */
+        LOW
+    }
+
+    public interface Listener {
+        void onStateChanged(State state, int queueDepth);
+    }
+
+    private enum Kind { LOAD, UNLOAD, GENERATE, OTHER }
+
+    private static final class Task implements Comparable<Task> {
+        final Kind kind;
+        final Priority priority;
+        final long sequence;
+        final String key;
+        final Callable<Boolean> body;
+        final Runnable onRejected;
+
+        Task(Kind kind, Priority priority, long sequence, String key,
+             Callable<Boolean> body, Runnable onRejected) {
+            this.kind = kind;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.key = key;
+            this.body = body;
+            this.onRejected = onRejected;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService ioLane = Executors.newSingleThreadExecutor();
+    private final Thread inferenceLane;
+
+    // Guarded by this
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private long nextSequence = 0;
+    private State state = State.IDLE;
+    private boolean shutdown = false;
+    private int swaps = 0;            // hot swaps queued or running on the I/O lane
+    private Listener listener;
+
+    public InferenceScheduler() {
+        inferenceLane = new Thread(this::runInferenceLane, "inference");
+        inferenceLane.start();
+    }
+
+    /** Receives the current state right away, then every change */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+        notifyListener();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Whether a model load, hot swap or unload is queued or running */
+    public synchronized boolean isModelChanging() {
+        if (state == State.LOADING || swaps > 0) {
+            return true;
+        }
+        for (Task task : queue) {
+            if (task.kind == Kind.LOAD || task.kind == Kind.UNLOAD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Load a model, ahead of queued chat. Any generation in progress is
+     * cancelled and queued ones are dropped, since they were meant for the
+     * model being replaced.
+     *
+     * @param load Returns whether the model loaded
+     */
+    public synchronized boolean submitLoad(Callable<Boolean> load) {
+        cancelGenerations();
+        return enqueue(Kind.LOAD, Priority.HIGH, null, load, null);
+    }
+
+    /** Unload the model after the tasks already queued at high priority */
+    public synchronized boolean submitUnload(Runnable unload) {
+        cancelGenerations();
+        return enqueue(Kind.UNLOAD, Priority.HIGH, null, wrap(unload), null);
+    }
+
+    /**
+     * Queue a generation. It is rejected if too many are queued already,
+     * and dropped if a model load or {@link #cancelGeneration()} comes
+     * before it starts.
+     *
+     * @param onRejected Runs on the main thread if the generation will not run
+     * @return false if rejected right away
+     */
+    public synchronized boolean submitGeneration(Runnable generation, Runnable onRejected) {
+        int queued = 0;
+        for (Task task : queue) {
+            if (task.kind == Kind.GENERATE) {
+                queued++;
+            }
+        }
+        if (queued >= MAX_QUEUED_GENERATIONS) {
+            Log.w(TAG, "Generation rejected, " + queued + " already queued");
+            reject(onRejected);
+            return false;
+        }
+        return enqueue(Kind.GENERATE, Priority.NORMAL, null, wrap(generation), onRejected);
+    }
+
+    /**
+     * Queue other work that needs the model
+     *
+     * @param key Tasks with the same key coalesce: a queued one is replaced
+     *            by the newer one. null never coalesces.
+     */
+    public synchronized boolean submit(Priority priority, String key, Runnable work) {
+        return enqueue(Kind.OTHER, priority, key, wrap(work), null);
+    }
+
+    /**
+     * Load the next model on the I/O lane while the current one keeps
+     * serving chat. Counts as a model change until it ends, and is dropped
+     * if {@link #shutdown} comes before it starts.
+     */
+    public synchronized void submitSwap(Runnable swap) {
+        if (shutdown) {
+            Log.w(TAG, "Swap dropped, scheduler is shut down");
+            return;
+        }
+        swaps++;
+        ioLane.execute(() -> {
+            try {
+                synchronized (this) {
+                    if (shutdown) {
+                        Log.w(TAG, "Swap dropped, scheduler is shut down");
+                        return;
+                    }
+                }
+                swap.run();
+            } finally {
+                synchronized (this) {
+                    swaps--;
+                }
+            }
+        });
+    }
+
+    /** Run file work on the I/O lane, next to inference; ignored after {@link #shutdown} */
+    public synchronized void submitIo(Runnable work) {
+        if (shutdown) {
+            Log.w(TAG, "I/O work dropped, scheduler is shut down");
+            return;
+        }
+        ioLane.execute(work);
+    }
+
+    /**
+     * Stop the running generation and drop queued ones
+     *
+     * @return true if a generation was running
+     */
+    public synchronized boolean cancelGeneration() {
+        return cancelGenerations();
+    }
+
+    /**
+     * Stop accepting work and drop what is queued except the model
+     * lifecycle tasks and hot swaps already running. Does not wait: both
+     * lanes finish what they hold
+     * (a running generation unwinds first, so a queued unload never frees
+     * the model under it) and then end. The listener is no longer called.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        listener = null;
+        cancelGenerations();
+        for (Iterator<Task> it = queue.iterator(); it.hasNext(); ) {
+            Task task = it.next();
+            if (task.priority != Priority.HIGH) {
+                it.remove();
+                reject(task.onRejected);
+            }
+        }
+        notifyAll();
+        ioLane.shutdown();
+    }
+
+    // Caller holds the lock
+    private boolean enqueue(Kind kind, Priority priority, String key,
+                            Callable<Boolean> body, Runnable onRejected) {
+        if (shutdown) {
+            reject(onRejected);
+            return false;
+        }
+        if (key != null) {
+            for (Iterator<Task> it = queue.iterator(); it.hasNext(); ) {
+                if (key.equals(it.next().key)) {
+                    it.remove();
+                }
+            }
+        }
+        if (queue.size() >= MAX_QUEUED) {
+            // Make room by dropping the newest task of lower priority
+            Task victim = null;
+            for (Task task : queue) {
+                if (task.priority.compareTo(priority) > 0
+                        && (victim == null || task.compareTo(victim) > 0)) {
+                    victim = task;
+                }
+            }
+            if (victim == null) {
+                Log.w(TAG, "Queue full, rejected " + kind);
+                reject(onRejected);
+                return false;
+            }
+            queue.remove(victim);
+            reject(victim.onRejected);
+        }
+        queue.add(new Task(kind, priority, nextSequence++, key, body, onRejected));
+        notifyAll();
+        notifyListener();
+        return true;
+    }
+
+    // Caller holds the lock
+    private boolean cancelGenerations() {
+        List<Task> dropped = new ArrayList<>();
+        for (Iterator<Task> it = queue.iterator(); it.hasNext(); ) {
+            Task task = it.next();
+            if (task.kind == Kind.GENERATE) {
+                it.remove();
+                dropped.add(task);
+            }
+        }
+        for (Task task : dropped) {
+            reject(task.onRejected);
+        }
+        boolean running = state == State.GENERATING;
+        if (running) {
+            LlamaCpp.cancelGeneration();
+            state = State.CANCELLING;
+        }
+        if (running || !dropped.isEmpty()) {
+            notifyListener();
+        }
+        return running;
+    }
+
+    private void runInferenceLane() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while (queue.isEmpty() && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                task = queue.poll();
+                if (task == null) {
+                    return;
+                }
+                if (task.kind == Kind.LOAD) {
+                    state = State.LOADING;
+                } else if (task.kind == Kind.GENERATE) {
+                    state = State.GENERATING;
+                }
+                notifyListener();
+            }
+
+            boolean ok = false;
+            try {
+                ok = task.body.call();
+            } catch (Exception e) {
+                Log.e(TAG, task.kind + " task failed", e);
+            }
+
+            synchronized (this) {
+                if (task.kind == Kind.LOAD) {
+                    state = ok ? State.READY : State.IDLE;
+                } else if (task.kind == Kind.UNLOAD) {
+                    state = State.IDLE;
+                } else if (task.kind == Kind.GENERATE) {
+                    state = State.READY;
+                }
+                notifyListener();
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private void notifyListener() {
+        final Listener target = listener;
+        if (target == null) {
+            return;
+        }
+        final State current = state;
+        final int depth = queue.size();
+        mainHandler.post(() -> target.onStateChanged(current, depth));
+    }
+
+    private void reject(Runnable onRejected) {
+        if (onRejected != null) {
+            mainHandler.post(onRejected);
+        }
+    }
+
+    private static Callable<Boolean> wrap(Runnable work) {
+        return () -> {
+            work.run();
+            return true;
+        };
+    }
+}
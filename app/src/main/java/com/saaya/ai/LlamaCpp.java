@@ -2,21 +2,55 @@ package com.saaya.ai;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * JNI interface to llama.cpp native library
  * This provides REAL inference using llama.cpp C++ code
+ *
+ * The static methods drive a single default model with one session, held
+ * by a {@link ModelManager} so it can be swapped while serving. Use
+ * {@link LlamaModel} and {@link LlamaSession} directly to hold several
+ * conversations on the same weights.
  */
 public class LlamaCpp {
     private static final String TAG = "LlamaCpp";
     
+    private static final String LIBRARY = "llama-android";
+    
+    private static final ModelManager models = new ModelManager();
+    private static final MemoryPressurePolicy memoryPolicy = new MemoryPressurePolicy(models);
+    private static final String cpuVariant;
+    
+    // Load the fastest build of the native library this CPU can run. Variants
+    // missing from the APK (e.g. on armeabi-v7a) are skipped; the
+    // saaya.cpuVariant system property forces one, for benchmarking.
     static {
-        try {
-            System.loadLibrary("llama-android");
-            Log.i(TAG, "Native library loaded successfully");
-        } catch (UnsatisfiedLinkError e) {
-            Log.e(TAG, "Failed to load native library", e);
-            throw e;
+        String forced = System.getProperty("saaya.cpuVariant");
+        List<String> variants = forced != null
+                ? Collections.singletonList(forced)
+                : CpuFeatures.read().libraryVariants();
+        String loaded = null;
+        UnsatisfiedLinkError error = null;
+        for (String variant : variants) {
+            try {
+                System.loadLibrary(variant.equals("baseline") ? LIBRARY : LIBRARY + "-" + variant);
+                loaded = variant;
+                break;
+            } catch (UnsatisfiedLinkError e) {
+                Log.w(TAG, "No " + variant + " native library: " + e.getMessage());
+                error = e;
+            }
         }
+        if (loaded == null) {
+            Log.e(TAG, "Failed to load native library", error);
+            throw error;
+        }
+        cpuVariant = loaded;
+        Log.i(TAG, "Native library loaded successfully (" + cpuVariant + ")");
     }
     
     /**
@@ -39,29 +73,552 @@ public class LlamaCpp {
      * @param nThreads Number of CPU threads to use
      * @return true if model loaded successfully
      */
-    public static native boolean loadModel(String modelPath, int nCtx, int nThreads);
+    public static boolean loadModel(String modelPath, int nCtx, int nThreads) {
+        return loadModel(modelPath, new EngineConfig.Builder()
+                .contextSize(nCtx)
+                .threads(nThreads)
+                .build());
+    }
+    
+    /**
+     * Load GGUF model from file path with explicit engine options
+     * 
+     * @param modelPath Absolute path to .gguf model file
+     * @param config Context size, threads, batch sizes, KV cache type etc.
+     * @return true if model loaded successfully
+     */
+    public static boolean loadModel(String modelPath, EngineConfig config) {
+        return loadModel(modelPath, null, config);
+    }
+    
+    /**
+     * Load GGUF model from file path, with a draft model for speculative decoding
+     * 
+     * A model already loaded is unloaded first, so the two are never in
+     * memory together; {@link #loadModel(String, String, EngineConfig, long, long)}
+     * swaps the new one in while the current one keeps serving instead.
+     * 
+     * @param modelPath Absolute path to .gguf model file
+     * @param draftModelPath Absolute path to a small .gguf with the same vocabulary,
+     *                       or null for none
+     * @param config Context size, threads, batch sizes, KV cache type etc.
+     * @return true if model loaded successfully (with or without the draft)
+     * @see LlamaModel#load(String, String, EngineConfig)
+     */
+    public static boolean loadModel(String modelPath, String draftModelPath, EngineConfig config) {
+        unloadModel();
+        return loadModel(modelPath, draftModelPath, config, 0, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Load GGUF model and swap it in while the current one keeps serving
+     * 
+     * Both models are in memory until the current one's running request
+     * ends. The estimate is checked against the limit before anything is
+     * loaded; pass 0 and Long.MAX_VALUE to skip the check, or call
+     * {@link #unloadModel()} first when the two cannot fit together.
+     * 
+     * @param estimatedBytes Estimated weights + KV cache of the new model,
+     *                       e.g. from {@link GgufInfo}
+     * @param memoryLimit Bytes both models together may use
+     * @return true if model loaded successfully; on failure the current
+     *         model, if any, keeps serving
+     * @see ModelManager#swap
+     */
+    public static boolean loadModel(String modelPath, String draftModelPath, EngineConfig config,
+                                    long estimatedBytes, long memoryLimit) {
+        try {
+            models.swap(() -> LlamaModel.load(modelPath, draftModelPath, config),
+                    estimatedBytes, memoryLimit, null);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Load GGUF model from an open file descriptor, memory-mapping it in place
+     * 
+     * Lets a document picked through the Storage Access Framework be used
+     * without copying it. The descriptor is only needed during the call and
+     * may be closed afterwards.
+     * 
+     * @param fd Readable file descriptor of the .gguf file
+     * @param nCtx Context size (e.g., 2048)
+     * @param nThreads Number of CPU threads to use
+     * @return true if model loaded successfully
+     */
+    public static boolean loadModelFromFd(int fd, int nCtx, int nThreads) {
+        return loadModelFromFd(fd, new EngineConfig.Builder()
+                .contextSize(nCtx)
+                .threads(nThreads)
+                .build());
+    }
+    
+    /**
+     * Load GGUF model from an open file descriptor with explicit engine options
+     * 
+     * @param fd Readable file descriptor of the .gguf file
+     * @param config Context size, threads, batch sizes, KV cache type etc.
+     * @return true if model loaded successfully
+     */
+    public static boolean loadModelFromFd(int fd, EngineConfig config) {
+        return loadModelFromFd(fd, -1, config);
+    }
+    
+    /**
+     * Load GGUF model and a draft model from open file descriptors
+     * 
+     * A model already loaded is unloaded first; see
+     * {@link #loadModelFromFd(int, int, EngineConfig, long, long)} to swap
+     * it out while it keeps serving.
+     * 
+     * @param fd Readable file descriptor of the .gguf file
+     * @param draftFd Readable file descriptor of the draft .gguf, or -1 for none
+     * @param config Context size, threads, batch sizes, KV cache type etc.
+     * @return true if model loaded successfully (with or without the draft)
+     */
+    public static boolean loadModelFromFd(int fd, int draftFd, EngineConfig config) {
+        unloadModel();
+        return loadModelFromFd(fd, draftFd, config, 0, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Load GGUF model from open file descriptors and swap it in while the
+     * current one keeps serving
+     * 
+     * @see #loadModel(String, String, EngineConfig, long, long)
+     */
+    public static boolean loadModelFromFd(int fd, int draftFd, EngineConfig config,
+                                          long estimatedBytes, long memoryLimit) {
+        try {
+            models.swap(() -> LlamaModel.loadFromFd(fd, draftFd, config), estimatedBytes, memoryLimit, null);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Holder of the default model, e.g. to swap in another one while the
+     * current one keeps serving
+     */
+    public static ModelManager getModelManager() {
+        return models;
+    }
+    
+    /**
+     * What the default model gives up under memory pressure, and at which
+     * onTrimMemory levels
+     */
+    public static MemoryPressurePolicy getMemoryPolicy() {
+        return memoryPolicy;
+    }
+    
+    /**
+     * The session behind the static API, or null if no model is loaded
+     */
+    public static LlamaSession getDefaultSession() {
+        return models.getSession();
+    }
     
     /**
      * Generate text completion for given prompt
      * 
+     * A prompt that starts like a recent one restores the shared part from
+     * the prefix cache and only prefills the rest; see
+     * {@link #getPrefixCacheStats()}.
+     * 
      * @param prompt Input text prompt
      * @param maxTokens Maximum number of tokens to generate
      * @return Generated text response
      */
-    public static native String generateToken(String prompt, int maxTokens);
+    public static String generateToken(String prompt, int maxTokens) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.generate(prompt, maxTokens);
+        }
+    }
+    
+    /**
+     * Generate text completion, sampled as params says. With
+     * {@link SamplingParams#GREEDY} or a fixed seed the same prompt gives
+     * the same completion, e.g. for benchmarking.
+     * 
+     * @param prompt Input text prompt
+     * @param params Sampling and maximum number of tokens to generate
+     * @return Generated text response
+     */
+    public static String generateToken(String prompt, SamplingParams params) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.generate(prompt, params);
+        }
+    }
+    
+    /**
+     * Generate text completion, streaming it to a listener as it is decoded
+     * 
+     * Text is delivered in small batches (a few tokens at a time) on the
+     * calling thread, never splitting a UTF-8 character.
+     * 
+     * @param prompt Input text prompt
+     * @param maxTokens Maximum number of tokens to generate
+     * @param listener Receives each newly generated chunk of text
+     * @return Full generated response
+     */
+    public static String generateStream(String prompt, int maxTokens, TextListener listener) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.generateStream(prompt, maxTokens, listener);
+        }
+    }
+    
+    /**
+     * Generate text completion sampled as params says, streaming it to a listener
+     * 
+     * @see #generateStream(String, int, TextListener)
+     */
+    public static String generateStream(String prompt, SamplingParams params, TextListener listener) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.generateStream(prompt, params, listener);
+        }
+    }
+    
+    /**
+     * Send a user message in the current conversation and generate a reply
+     * 
+     * The conversation stays in the KV cache between calls, so only the new
+     * message and its chat-template wrapping are processed each turn.
+     * {@link #generateToken} and {@link #generateStream} evict it, after which
+     * the next turn re-processes the whole conversation once.
+     * 
+     * @param message User message text
+     * @param maxTokens Maximum number of tokens to generate
+     * @param listener Receives streamed output, or null to only return the result
+     * @return Assistant reply
+     */
+    public static String chat(String message, int maxTokens, TextListener listener) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            memoryPolicy.restore(lease.session);
+            return lease.session.chat(message, maxTokens, listener);
+        }
+    }
+    
+    /**
+     * Send a user message in the current conversation, sampling the reply
+     * as params says. Parameters may change from one turn to the next.
+     * 
+     * @see #chat(String, int, TextListener)
+     */
+    public static String chat(String message, SamplingParams params, TextListener listener) {
+        return chat(message, null, params, listener);
+    }
+    
+    /**
+     * Send a user message led by context for this turn only, e.g. recalled
+     * earlier messages
+     * 
+     * @see LlamaSession#chat(String, String, SamplingParams, TextListener)
+     */
+    public static String chat(String message, String turnContext, SamplingParams params, TextListener listener) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            memoryPolicy.restore(lease.session);
+            return lease.session.chat(message, turnContext, params, listener);
+        }
+    }
+    
+    /**
+     * Split text into tokens of the loaded model, as a prompt is split
+     * (BOS added, special-token text left as text)
+     */
+    public static int[] tokenize(String text) {
+        return tokenize(text, true, false);
+    }
+
+    /** @see LlamaModel#tokenize */
+    public static int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.getModel().tokenize(text, addSpecial, parseSpecial);
+        }
+    }
+
+    /** Text of tokens of the loaded model, without BOS/EOS */
+    public static String detokenize(int[] tokens) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.getModel().detokenize(tokens, true, false);
+        }
+    }
+
+    /**
+     * Number of tokens text takes as a prompt, e.g. to check it fits the
+     * context before sending it
+     */
+    public static int countTokens(String text) {
+        return countTokens(text, true, false);
+    }
+
+    /** @see LlamaModel#countTokens */
+    public static int countTokens(String text, boolean addSpecial, boolean parseSpecial) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.getModel().countTokens(text, addSpecial, parseSpecial);
+        }
+    }
+
+    /**
+     * Format messages with the loaded model's chat template. Counted with
+     * parseSpecial set, the result gives the tokens a chat turn takes.
+     *
+     * @see LlamaModel#formatChat
+     */
+    public static String formatChat(String systemPrompt, String[] rolesAndContents, boolean addAssistant) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.getModel().formatChat(systemPrompt, rolesAndContents, addAssistant);
+        }
+    }
+
+    /**
+     * Embedding of text by the loaded model, for similarity search with
+     * {@link VectorIndex}
+     * 
+     * @see LlamaModel#embed(String)
+     */
+    public static float[] embed(String text) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.getModel().embed(text);
+        }
+    }
+
+    /** Dimensions of {@link #embed} vectors of the loaded model */
+    public static int getEmbeddingSize() {
+        try (ModelManager.Lease lease = models.acquire()) {
+            return lease.session.getModel().getEmbeddingSize();
+        }
+    }
+
+    /**
+     * Discard the current conversation and start a new one
+     * 
+     * Cells of the system prompt are kept when it is unchanged, so the
+     * first turn of the new conversation only processes the user message.
+     * 
+     * @param systemPrompt System prompt for the new conversation, or null for none
+     */
+    public static void resetConversation(String systemPrompt) {
+        try (ModelManager.Lease lease = models.acquire()) {
+            memoryPolicy.forget();
+            lease.session.resetConversation(systemPrompt);
+        }
+    }
+    
+    /**
+     * Save the current conversation and its KV cache to a file
+     * 
+     * The file is tagged with a fingerprint of the loaded model and is
+     * written atomically (temp file + rename).
+     * 
+     * @param path Absolute path of the session file
+     * @return true if the file was written
+     */
+    public static boolean saveSession(String path) {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            if (lease == null) {
+                return false;
+            }
+            return memoryPolicy.holdsSnapshot(lease.session, path) || lease.session.saveSession(path);
+        }
+    }
+    
+    /**
+     * Restore a conversation saved by {@link #saveSession}
+     * 
+     * Files written by a different model, an older file format, or that are
+     * truncated are rejected and leave the current conversation untouched.
+     * 
+     * @param path Absolute path of the session file
+     * @return true if the conversation was restored
+     */
+    public static boolean loadSession(String path) {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            memoryPolicy.forget();
+            return lease != null && lease.session.loadSession(path);
+        }
+    }
+    
+    /**
+     * Get the current conversation
+     * 
+     * @return Flat array of role/content pairs: [role0, content0, role1, content1, ...]
+     */
+    public static String[] getConversation() {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            return lease != null ? lease.session.getConversation() : new String[0];
+        }
+    }
+    
+    /**
+     * Receives incremental output from {@link #generateStream} and {@link #chat}
+     * without a copy per chunk
+     */
+    public interface TextListener {
+        /**
+         * Called from the generating thread with the text decoded since the
+         * previous call. The text is only valid during the call; copy what
+         * is kept, e.g. by appending it to a StringBuilder.
+         */
+        void onText(CharSequence text);
+    }
+    
+    /**
+     * Receives incremental output as Strings, one per chunk
+     */
+    public interface TokenListener extends TextListener {
+        /**
+         * Called from the generating thread with the text decoded since the
+         * previous call
+         */
+        void onTokens(String text);
+        
+        @Override
+        default void onText(CharSequence text) {
+            onTokens(text.toString());
+        }
+    }
+    
+    /**
+     * Stop the generation running on another thread
+     * 
+     * Takes effect within one token step, including in the middle of a
+     * prompt decode. The interrupted call returns the text produced so far.
+     * Safe to call from any thread, and a no-op when nothing is running.
+     */
+    public static void cancelGeneration() {
+        models.cancel();
+    }
     
     /**
      * Unload current model and free memory
+     * 
+     * A generation still running keeps the model until it returns; it is
+     * freed then.
      */
-    public static native void unloadModel();
+    public static void unloadModel() {
+        models.unload();
+    }
     
     /**
      * Get information about loaded model
      * 
+     * Includes the engine options in effect and the memory footprint of the
+     * weights and the KV cache.
+     * 
      * @return Model info string
      */
-    public static native String getModelInfo();
-    
+    public static String getModelInfo() {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            return lease != null ? lease.session.getModel().getInfo() : "No model loaded";
+        }
+    }
+
+    /**
+     * Hit rate and prefill tokens saved by the loaded model's prefix cache
+     * 
+     * @return Stats since the model was loaded, or null if none is loaded
+     */
+    public static PrefixCacheStats getPrefixCacheStats() {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            return lease != null ? lease.session.getModel().getPrefixCacheStats() : null;
+        }
+    }
+
+    /**
+     * @return CPU variant of the loaded native library, e.g. "dotprod",
+     *         "i8mm" or "avx2", or "baseline" for the generic build
+     */
+    public static String getCpuVariant() {
+        return cpuVariant;
+    }
+
+    /**
+     * Get timings of the most recent generateToken, generateStream or chat call
+     *
+     * @return Metrics, or null if nothing has been generated with the current model
+     */
+    public static InferenceMetrics getLastMetrics() {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            return lease != null ? lease.session.getLastMetrics() : null;
+        }
+    }
+
+    /**
+     * Get timings averaged over the recent requests (up to 32) of the current model
+     *
+     * @return Aggregate metrics, or null if nothing has been generated yet
+     */
+    public static InferenceMetrics getAverageMetrics() {
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            return lease != null ? lease.session.getAverageMetrics() : null;
+        }
+    }
+
+    // Handle-based natives behind LlamaModel and LlamaSession. Handles are
+    // native pointers; 0 means failure.
+
+    static native long nativeLoadModel(String modelPath, String draftModelPath, EngineConfig config);
+
+    static native long nativeLoadModelFromFd(int fd, int draftFd, EngineConfig config);
+
+    static native void nativeFreeModel(long model);
+
+    static native String nativeGetModelInfo(long model);
+
+    static native void nativeSetThreads(long model, int threads, int batchThreads, int[] cpus);
+
+    static native long nativeCreateSession(long model);
+
+    static native void nativeFreeSession(long session);
+
+    // Text moves as UTF-8 through the session's Utf8Pipe buffers; these
+    // return the reply's length in bytes, or -1 if the request did not start
+
+    static native int nativeGenerate(long session, ByteBuffer input, int inputLength,
+                                     ByteBuffer output, Utf8Pipe pipe, SamplingParams params, boolean stream);
+
+    static native int nativeChat(long session, ByteBuffer input, int inputLength, String turnContext,
+                                 ByteBuffer output, Utf8Pipe pipe, SamplingParams params, boolean stream);
+
+    static native void nativeResetConversation(long session, String systemPrompt);
+
+    static native boolean nativeSaveSession(long session, String path);
+
+    static native boolean nativeLoadSession(long session, String path);
+
+    static native String[] nativeGetConversation(long session);
+
+    static native void nativeCancel(long session);
+
+    static native double[] nativeGetMetrics(long session, boolean aggregate);
+
+    static native double[] nativeBenchmark(long session, int promptTokens, int genTokens);
+
+    static native boolean nativeReleaseMemory(long model, boolean releaseContext);
+
+    static native boolean nativeIsContextReleased(long model);
+
+    static native long[] nativeGetPrefixCacheStats(long model);
+
+    static native int[] nativeTokenize(long model, String text, boolean addSpecial, boolean parseSpecial);
+
+    static native String nativeDetokenize(long model, int[] tokens, boolean removeSpecial, boolean unparseSpecial);
+
+    static native int nativeCountTokens(long model, String text, boolean addSpecial, boolean parseSpecial);
+
+    static native String nativeFormatChat(long model, String systemPrompt, String[] rolesAndContents,
+                                          boolean addAssistant);
+
+    static native float[] nativeEmbed(long model, String[] texts);
+
+    static native int nativeGetEmbeddingSize(long model);
+
     /**
      * Check if a model is currently loaded
      */
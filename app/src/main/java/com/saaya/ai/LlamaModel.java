@@ -0,0 +1,312 @@
+package com.saaya.ai;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A loaded GGUF model: the weights plus one llama.cpp context shared by all
+ * of its sessions
+ *
+ * Each {@link LlamaSession} gets its own KV cache sequence of
+ * {@link EngineConfig#getContextSize()} cells, up to
+ * {@link EngineConfig#getMaxSessions()} at a time. Sessions generating on
+ * different threads are decoded together in one batch per step, so two
+ * concurrent chats cost little more than one.
+ */
+public final class LlamaModel implements AutoCloseable {
+    private EngineConfig config;
+    private final List<LlamaSession> sessions = new ArrayList<>();
+    private long handle;
+    // embed calls running without the lock; close waits for them
+    private int embedCalls;
+
+    private LlamaModel(long handle, EngineConfig config) {
+        this.handle = handle;
+        this.config = config;
+    }
+
+    /**
+     * Load GGUF model from file path
+     *
+     * @param modelPath Absolute path to .gguf model file
+     * @param config Context size, sessions, threads, batch sizes, KV cache type etc.
+     * @throws IOException if llama.cpp could not load the model or create its context
+     */
+    public static LlamaModel load(String modelPath, EngineConfig config) throws IOException {
+        return load(modelPath, null, config);
+    }
+
+    /**
+     * Load GGUF model with a small draft model for speculative decoding
+     *
+     * The draft proposes {@link EngineConfig#getDraftTokens()} tokens per
+     * step and the model verifies them in one batched decode. A draft that
+     * fails to load or whose vocabulary differs from the model's is dropped,
+     * and the model decodes normally. The acceptance rate is reported by
+     * {@link #getInfo()}.
+     *
+     * @param modelPath Absolute path to .gguf model file
+     * @param draftModelPath Absolute path to the draft .gguf, or null for none
+     * @param config Context size, sessions, threads, batch sizes, KV cache type etc.
+     * @throws IOException if llama.cpp could not load the model or create its context
+     */
+    public static LlamaModel load(String modelPath, String draftModelPath, EngineConfig config)
+            throws IOException {
+        long handle = LlamaCpp.nativeLoadModel(modelPath, draftModelPath, config);
+        if (handle == 0) {
+            throw new IOException("Failed to load model: " + modelPath);
+        }
+        return new LlamaModel(handle, config);
+    }
+
+    /**
+     * Load GGUF model from an open file descriptor, memory-mapping it in place
+     *
+     * The descriptor is only needed during the call and may be closed afterwards.
+     *
+     * @param fd Readable file descriptor of the .gguf file
+     * @param config Context size, sessions, threads, batch sizes, KV cache type etc.
+     * @throws IOException if llama.cpp could not load the model or create its context
+     */
+    public static LlamaModel loadFromFd(int fd, EngineConfig config) throws IOException {
+        return loadFromFd(fd, -1, config);
+    }
+
+    /**
+     * Load GGUF model and a draft model from open file descriptors
+     *
+     * @param fd Readable file descriptor of the .gguf file
+     * @param draftFd Readable file descriptor of the draft .gguf, or -1 for none
+     * @param config Context size, sessions, threads, batch sizes, KV cache type etc.
+     * @throws IOException if llama.cpp could not load the model or create its context
+     * @see #load(String, String, EngineConfig)
+     */
+    public static LlamaModel loadFromFd(int fd, int draftFd, EngineConfig config) throws IOException {
+        long handle = LlamaCpp.nativeLoadModelFromFd(fd, draftFd, config);
+        if (handle == 0) {
+            throw new IOException("Failed to load model from fd " + fd);
+        }
+        return new LlamaModel(handle, config);
+    }
+
+    public synchronized EngineConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Change the thread counts while loaded, e.g. after calibration
+     *
+     * @param threads Threads for single-token decode
+     * @param batchThreads Threads for prompt processing
+     * @param cpus Cores to pin the worker threads to, or null to let the
+     *             scheduler place them
+     */
+    public synchronized void setThreads(int threads, int batchThreads, int[] cpus) {
+        if (threads <= 0 || batchThreads <= 0) {
+            throw new IllegalArgumentException("Thread counts must be positive");
+        }
+        LlamaCpp.nativeSetThreads(checkOpen(), threads, batchThreads, cpus);
+        config = config.toBuilder().threads(threads).batchThreads(batchThreads).build();
+    }
+
+    /**
+     * Open a new conversation on this model
+     *
+     * @throws IllegalStateException if the model is closed or all
+     *         {@link EngineConfig#getMaxSessions()} sessions are open
+     */
+    public synchronized LlamaSession newSession() {
+        long session = LlamaCpp.nativeCreateSession(checkOpen());
+        if (session == 0) {
+            throw new IllegalStateException("All " + config.getMaxSessions() + " sessions are in use");
+        }
+        LlamaSession result = new LlamaSession(this, session);
+        sessions.add(result);
+        return result;
+    }
+
+    /**
+     * Free what the model can rebuild: the draft model's cache, the
+     * embedding context, unused heap and the prefix cache's memory (moved
+     * to disk if it has a directory). Sessions keep their caches.
+     *
+     * @return false if a request is running, in which case nothing is freed
+     */
+    public synchronized boolean trimMemory() {
+        return LlamaCpp.nativeReleaseMemory(checkOpen(), false);
+    }
+
+    /**
+     * Free the KV cache and compute buffers of all sessions while keeping
+     * the weights mapped. The next request on any session recreates them;
+     * conversations are then re-prefilled from their transcripts unless
+     * restored with {@link LlamaSession#loadSession}.
+     *
+     * @return false if a request is running, in which case nothing is freed
+     */
+    public synchronized boolean releaseContext() {
+        return LlamaCpp.nativeReleaseMemory(checkOpen(), true);
+    }
+
+    /** Whether {@link #releaseContext} freed the context and no request has recreated it yet */
+    public synchronized boolean isContextReleased() {
+        return LlamaCpp.nativeIsContextReleased(checkOpen());
+    }
+
+    /**
+     * Hits, saved prefill tokens and size of the prefix cache shared by
+     * the model's sessions (see {@link EngineConfig.Builder#prefixCache})
+     */
+    public synchronized PrefixCacheStats getPrefixCacheStats() {
+        return new PrefixCacheStats(LlamaCpp.nativeGetPrefixCacheStats(checkOpen()));
+    }
+
+    /**
+     * Split text into the model's tokens. Uses only the vocabulary, so it
+     * does not wait for requests running on the model's sessions.
+     *
+     * @param addSpecial Add the BOS/EOS tokens the model expects at the start
+     *                   of a sequence
+     * @param parseSpecial Turn special-token text such as "&lt;|im_start|&gt;"
+     *                     into those tokens instead of plain text
+     */
+    public synchronized int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        return LlamaCpp.nativeTokenize(checkOpen(), text, addSpecial, parseSpecial);
+    }
+
+    /**
+     * Text of tokens
+     *
+     * @param removeSpecial Drop BOS/EOS tokens
+     * @param unparseSpecial Render special tokens as their text instead of
+     *                       leaving them out
+     */
+    public synchronized String detokenize(int[] tokens, boolean removeSpecial, boolean unparseSpecial) {
+        return LlamaCpp.nativeDetokenize(checkOpen(), tokens, removeSpecial, unparseSpecial);
+    }
+
+    /** Number of tokens {@link #tokenize} would return, without building the array */
+    public synchronized int countTokens(String text, boolean addSpecial, boolean parseSpecial) {
+        return LlamaCpp.nativeCountTokens(checkOpen(), text, addSpecial, parseSpecial);
+    }
+
+    /**
+     * Format messages with the model's chat template, the way chat turns
+     * are formatted
+     *
+     * @param systemPrompt Leading system message, or null for none
+     * @param rolesAndContents Alternating role ("user", "assistant", ...) and content
+     * @param addAssistant End with the opening of an assistant reply
+     */
+    public synchronized String formatChat(String systemPrompt, String[] rolesAndContents, boolean addAssistant) {
+        if (rolesAndContents.length % 2 != 0) {
+            throw new IllegalArgumentException("Roles and contents must come in pairs");
+        }
+        return LlamaCpp.nativeFormatChat(checkOpen(), systemPrompt, rolesAndContents, addAssistant);
+    }
+
+    /**
+     * Pooled embedding of text, scaled to unit length so the dot product of
+     * two embeddings is their cosine similarity
+     *
+     * Runs on a small context of its own (created by the first call, freed
+     * by {@link #trimMemory}) with mean pooling unless the model defines
+     * its own, so it does not wait for requests running on the model's
+     * sessions, and does not hold the model's lock meanwhile. Text beyond
+     * 512 tokens is ignored.
+     *
+     * @throws IllegalStateException if the model cannot produce embeddings
+     */
+    public float[] embed(String text) {
+        return embed(new String[] {text})[0];
+    }
+
+    /** Embeddings of several texts, one per text; see {@link #embed(String)} */
+    public float[][] embed(String[] texts) {
+        long model;
+        synchronized (this) {
+            model = checkOpen();
+            embedCalls++;
+        }
+        float[] flat;
+        try {
+            flat = LlamaCpp.nativeEmbed(model, texts);
+        } finally {
+            synchronized (this) {
+                if (--embedCalls == 0) {
+                    notifyAll();
+                }
+            }
+        }
+        if (flat == null) {
+            throw new IllegalStateException("Failed to compute embeddings");
+        }
+        int size = flat.length / Math.max(texts.length, 1);
+        float[][] result = new float[texts.length][];
+        for (int i = 0; i < texts.length; i++) {
+            result[i] = new float[size];
+            System.arraycopy(flat, i * size, result[i], 0, size);
+        }
+        return result;
+    }
+
+    /** Dimensions of {@link #embed} vectors */
+    public synchronized int getEmbeddingSize() {
+        return LlamaCpp.nativeGetEmbeddingSize(checkOpen());
+    }
+
+    /**
+     * Get information about the model
+     *
+     * Includes the engine options in effect and the memory footprint of the
+     * weights and the KV cache of all sessions.
+     */
+    public synchronized String getInfo() {
+        return LlamaCpp.nativeGetModelInfo(checkOpen());
+    }
+
+    public synchronized boolean isClosed() {
+        return handle == 0;
+    }
+
+    /**
+     * Close all sessions and free the model. None of them may be
+     * generating; cancel and wait for the generating threads first.
+     * Running {@link #embed} calls are waited for.
+     */
+    @Override
+    public synchronized void close() {
+        if (handle == 0) {
+            return;
+        }
+        long model = handle;
+        handle = 0;
+        boolean interrupted = false;
+        while (embedCalls > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (LlamaSession session : new ArrayList<>(sessions)) {
+            session.close();
+        }
+        LlamaCpp.nativeFreeModel(model);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void onSessionClosed(LlamaSession session) {
+        sessions.remove(session);
+    }
+
+    private long checkOpen() {
+        if (handle == 0) {
+            throw new IllegalStateException("Model is closed");
+        }
+        return handle;
+    }
+}
@@ -0,0 +1,216 @@
+package com.saaya.ai;
+
+/**
+ * One conversation on a {@link LlamaModel}, with its own KV cache sequence,
+ * samplers, chat history and metrics
+ *
+ * A session is used by one thread at a time, but different sessions of the
+ * same model may generate concurrently; their tokens are decoded in shared
+ * batches. {@link #cancel} may be called from any thread.
+ */
+public final class LlamaSession implements AutoCloseable {
+    private final LlamaModel model;
+    private volatile long handle;
+    private final Utf8Pipe pipe = new Utf8Pipe();
+
+    LlamaSession(LlamaModel model, long handle) {
+        this.model = model;
+        this.handle = handle;
+    }
+
+    public LlamaModel getModel() {
+        return model;
+    }
+
+    /**
+     * Send a user message in this conversation and generate a reply
+     *
+     * The conversation stays in the session's KV sequence between calls, so
+     * only the new message and its chat-template wrapping are processed each
+     * turn. {@link #generate} evicts it, after which the next turn
+     * re-processes the whole conversation once.
+     *
+     * @param message User message text
+     * @param maxTokens Maximum number of tokens to generate
+     * @param listener Receives streamed output, or null to only return the result
+     * @return Assistant reply
+     */
+    public String chat(String message, int maxTokens, LlamaCpp.TextListener listener) {
+        return chat(message, SamplingParams.DEFAULT.withMaxTokens(maxTokens), listener);
+    }
+
+    /**
+     * Send a user message, sampling the reply as params says
+     *
+     * @see #chat(String, int, LlamaCpp.TextListener)
+     */
+    public String chat(String message, SamplingParams params, LlamaCpp.TextListener listener) {
+        return chat(message, null, params, listener);
+    }
+
+    /**
+     * Send a user message led by context that only this turn sees
+     *
+     * The context is prefilled with the message but left out of the
+     * conversation: the next turn drops it from the KV cache and
+     * re-processes this turn without it, so contexts never accumulate.
+     *
+     * @param turnContext Text put before the message, or null for none
+     * @see #chat(String, int, LlamaCpp.TextListener)
+     */
+    public String chat(String message, String turnContext, SamplingParams params,
+                       LlamaCpp.TextListener listener) {
+        return transfer(true, message, turnContext, params, listener);
+    }
+
+    /**
+     * Generate text completion for given prompt
+     *
+     * @param prompt Input text prompt
+     * @param maxTokens Maximum number of tokens to generate
+     * @return Generated text response
+     */
+    public String generate(String prompt, int maxTokens) {
+        return generate(prompt, SamplingParams.DEFAULT.withMaxTokens(maxTokens));
+    }
+
+    /** Generate text completion, sampled as params says */
+    public String generate(String prompt, SamplingParams params) {
+        return transfer(false, prompt, null, params, null);
+    }
+
+    /**
+     * Generate text completion, streaming it to a listener as it is decoded
+     *
+     * @param prompt Input text prompt
+     * @param maxTokens Maximum number of tokens to generate
+     * @param listener Receives each newly generated chunk of text
+     * @return Full generated response
+     */
+    public String generateStream(String prompt, int maxTokens, LlamaCpp.TextListener listener) {
+        return generateStream(prompt, SamplingParams.DEFAULT.withMaxTokens(maxTokens), listener);
+    }
+
+    /** Generate text completion, sampled as params says, streaming it to a listener */
+    public String generateStream(String prompt, SamplingParams params, LlamaCpp.TextListener listener) {
+        return transfer(false, prompt, null, params, listener);
+    }
+
+    /**
+     * Discard the conversation and start a new one
+     *
+     * @param systemPrompt System prompt for the new conversation, or null for none
+     */
+    public void resetConversation(String systemPrompt) {
+        LlamaCpp.nativeResetConversation(checkOpen(), systemPrompt);
+    }
+
+    /**
+     * Save the conversation and its KV sequence to a file
+     *
+     * @param path Absolute path of the session file
+     * @return true if the file was written
+     */
+    public boolean saveSession(String path) {
+        return LlamaCpp.nativeSaveSession(checkOpen(), path);
+    }
+
+    /**
+     * Restore a conversation saved by {@link #saveSession} from any session
+     * of the same model
+     *
+     * @param path Absolute path of the session file
+     * @return true if the conversation was restored
+     */
+    public boolean loadSession(String path) {
+        return LlamaCpp.nativeLoadSession(checkOpen(), path);
+    }
+
+    /**
+     * @return Flat array of role/content pairs: [role0, content0, role1, content1, ...]
+     */
+    public String[] getConversation() {
+        return LlamaCpp.nativeGetConversation(checkOpen());
+    }
+
+    /**
+     * Stop this session's generation running on another thread. Other
+     * sessions of the model keep generating.
+     */
+    public void cancel() {
+        long session = handle;
+        if (session != 0) {
+            LlamaCpp.nativeCancel(session);
+        }
+    }
+
+    /**
+     * @return Metrics of the most recent request, or null if nothing has been generated
+     */
+    public InferenceMetrics getLastMetrics() {
+        double[] values = LlamaCpp.nativeGetMetrics(checkOpen(), false);
+        return values != null ? new InferenceMetrics(values) : null;
+    }
+
+    /**
+     * @return Metrics averaged over the recent requests (up to 32), or null
+     *         if nothing has been generated
+     */
+    public InferenceMetrics getAverageMetrics() {
+        double[] values = LlamaCpp.nativeGetMetrics(checkOpen(), true);
+        return values != null ? new InferenceMetrics(values) : null;
+    }
+
+    /**
+     * Time a synthetic prompt of promptTokens and genTokens decode steps,
+     * clearing the conversation cache
+     *
+     * @return {prefill ms, decode ms per token}, or null if decoding failed
+     */
+    public double[] benchmark(int promptTokens, int genTokens) {
+        return LlamaCpp.nativeBenchmark(checkOpen(), promptTokens, genTokens);
+    }
+
+    /**
+     * Free the session's KV sequence for a new session. Must not be called
+     * while it is generating.
+     */
+    @Override
+    public void close() {
+        long session;
+        synchronized (this) {
+            session = handle;
+            handle = 0;
+        }
+        if (session != 0) {
+            LlamaCpp.nativeFreeSession(session);
+            model.onSessionClosed(this);
+        }
+    }
+
+    // Run a request through the pipe: text in and out as UTF-8 in direct
+    // buffers, decoded on this thread as it streams
+    private String transfer(boolean chat, String text, String turnContext, SamplingParams params,
+                            LlamaCpp.TextListener listener) {
+        long session = checkOpen();
+        int length = pipe.encode(text);
+        pipe.begin(listener);
+        try {
+            int replyBytes = chat
+                    ? LlamaCpp.nativeChat(session, pipe.input(), length, turnContext,
+                            pipe.output, pipe, params, listener != null)
+                    : LlamaCpp.nativeGenerate(session, pipe.input(), length, pipe.output, pipe, params, listener != null);
+            return replyBytes >= 0 ? pipe.finish() : "";
+        } finally {
+            pipe.end();
+        }
+    }
+
+    private long checkOpen() {
+        long session = handle;
+        if (session == 0) {
+            throw new IllegalStateException("Session is closed");
+        }
+        return session;
+    }
+}
@@ -1,6 +1,7 @@
 package com.saaya.ai;
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -10,6 +11,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
@@ -30,39 +32,124 @@ import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "SaayaAI";
     private static final String PREFS_NAME = "SaayaPrefs";
     private static final String KEY_MODEL_PATH = "model_path";
+    private static final String KEY_SHOW_METRICS = "show_metrics";
+    private static final String METRICS_FILE = "metrics.json";
+    private static final String SESSION_FILE = "session.bin";
+    private static final String CALIBRATION_SESSION_FILE = "calibration-session.bin";
     private static final int PERMISSION_REQUEST_CODE = 100;
     
     // Model configuration
-    private static final int CONTEXT_SIZE = 2048;
+    private static final int DEFAULT_CONTEXT_SIZE = 2048;
+    private static final int MIN_CONTEXT_SIZE = 512;
+    private static final int MAX_CONTEXT_SIZE = 4096;
+    private static final long MEMORY_RESERVE_BYTES = 512L * 1024 * 1024;
+    private static final long SMALL_MODEL_BYTES = 1024L * 1024 * 1024;
+    private static final int SMALL_MODEL_MAX_THREADS = 4;
     private static final int MAX_TOKENS = 512;
+    private static final SamplingParams REPLY_SAMPLING = SamplingParams.DEFAULT.withMaxTokens(MAX_TOKENS);
+    // Room a message must leave in the context for the reply
+    private static final int MIN_REPLY_TOKENS = 128;
+    private static final long PREFIX_CACHE_DISK_BYTES = 256L * 1024 * 1024;
+    private static final String PREFIX_CACHE_DIR = "prefix-cache";
+    // Past messages recalled into a prompt: how many, how similar they must
+    // be to the new message, and how much of each is quoted
+    private static final String RECALL_FILE_PREFIX = "recall-";
+    private static final int RECALL_RESULTS = 3;
+    // Hits searched for, as those of the current conversation are skipped
+    private static final int RECALL_CANDIDATES = 8;
+    private static final float RECALL_MIN_SCORE = 0.5f;
+    private static final int RECALL_MAX_CHARS = 500;
+    private static final String SYSTEM_PROMPT = "You are Saaya, a helpful AI assistant.";
 
     // UI Components
     private RecyclerView chatRecyclerView;
     private EditText inputEditText;
     private ImageButton sendButton;
+    private ImageButton stopButton;
     private ProgressBar progressBar;
     private TextView statusText;
+    private TextView metricsText;
     private ChatAdapter chatAdapter;
 
-    // AI Model
+    // AI Model (a file path, or a content:// URI loaded in place)
     private String modelPath;
+    private EngineConfig engineConfig = new EngineConfig.Builder().contextSize(DEFAULT_CONTEXT_SIZE).build();
     private boolean isModelLoaded = false;
-    private ExecutorService executorService;
+    private InferenceScheduler scheduler;
     private Handler mainHandler;
+    private ModelImporter modelImporter;
+    private ThreadCalibrator threadCalibrator;
+    private volatile ChatHistoryStore chatHistory;
+    private volatile Recall recall;
+    private volatile boolean stopRequested = false;
+    // The model this activity published, the only one its teardown unloads
+    private volatile LlamaModel ownModel;
+    // Teardown pending when this activity was created, awaited by its loads
+    private CountDownLatch previousTeardown;
+
+    // Teardown of the last destroyed activity's model. A relaunch's first
+    // load waits for it, so the old lanes never save, unload or free the
+    // backend around the new model.
+    private static volatile CountDownLatch pendingTeardown;
+
+    // Stored messages waiting to be added to the recall index. Guarded by
+    // itself.
+    private final List<PendingRecall> recallPending = new ArrayList<>();
+    private boolean recallQueued = false;
+    private boolean showMetrics = false;
+
+    // Streamed reply text not shown yet, filled on the inference lane and
+    // moved into the chat list by one reused runnable, so streaming
+    // allocates nothing per chunk. Guarded by itself.
+    private final StringBuilder streamPending = new StringBuilder();
+    private boolean streamPosted = false;
+    private boolean streamStarted = false;
+    private int streamPosition;
+    private final Runnable streamDrain = this::drainStream;
 
     // File picker
     private ActivityResultLauncher<Intent> filePickerLauncher;
 
+    /** The loaded model's index of past messages, searched by embedding */
+    private static final class Recall {
+        final LlamaModel model;
+        final VectorIndex index;
+
+        Recall(LlamaModel model, VectorIndex index) {
+            this.model = model;
+            this.index = index;
+        }
+    }
+
+    /** A message for the recall index, with its embedding if already computed */
+    private static final class PendingRecall {
+        final ChatMessage message;
+        final Recall source;
+        final float[] vector;
+
+        PendingRecall(ChatMessage message, Recall source, float[] vector) {
+            this.message = message;
+            this.source = source;
+            this.vector = vector;
+        }
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -75,8 +162,10 @@ public class MainActivity extends AppCompatActivity {
         // Check if model path is already saved
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         modelPath = prefs.getString(KEY_MODEL_PATH, null);
+        threadCalibrator = new ThreadCalibrator(prefs, CpuTopology.read());
+        LlamaCpp.getMemoryPolicy().setSnapshotFile(new File(getFilesDir(), SESSION_FILE));
 
-        if (modelPath == null || !new File(modelPath).exists()) {
+        if (modelPath == null || !(isContentUri(modelPath) || new File(modelPath).exists())) {
             // First launch or model deleted - request permissions and show file picker
             checkAndRequestPermissions();
         } else {
@@ -89,8 +178,10 @@ public class MainActivity extends AppCompatActivity {
         chatRecyclerView = findViewById(R.id.chatRecyclerView);
         inputEditText = findViewById(R.id.inputEditText);
         sendButton = findViewById(R.id.sendButton);
+        stopButton = findViewById(R.id.stopButton);
         progressBar = findViewById(R.id.progressBar);
         statusText = findViewById(R.id.statusText);
+        metricsText = findViewById(R.id.metricsText);
 
         // Setup RecyclerView
         chatAdapter = new ChatAdapter();
@@ -98,10 +189,26 @@ public class MainActivity extends AppCompatActivity {
         layoutManager.setStackFromEnd(true);
         chatRecyclerView.setLayoutManager(layoutManager);
         chatRecyclerView.setAdapter(chatAdapter);
+        chatAdapter.setOnStreamFrameListener(() ->
+                chatRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1));
 
         // Setup send button
         sendButton.setOnClickListener(v -> sendMessage());
         
+        // Setup stop button
+        stopButton.setOnClickListener(v -> stopGeneration());
+        
+        // Debug overlay with inference metrics
+        showMetrics = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(KEY_SHOW_METRICS, false);
+        statusText.setOnLongClickListener(v -> {
+            toggleMetricsOverlay();
+            return true;
+        });
+        metricsText.setOnLongClickListener(v -> {
+            dumpMetrics();
+            return true;
+        });
+        
         // Add button to change model
         findViewById(R.id.changeModelButton).setOnClickListener(v -> {
             new AlertDialog.Builder(this)
@@ -114,8 +221,32 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initializeExecutor() {
-        executorService = Executors.newSingleThreadExecutor();
         mainHandler = new Handler(Looper.getMainLooper());
+        previousTeardown = pendingTeardown;
+        scheduler = new InferenceScheduler();
+        scheduler.setListener(this::onSchedulerChanged);
+        modelImporter = new ModelImporter(this);
+    }
+
+    /** Show work waiting behind the running task */
+    private void onSchedulerChanged(InferenceScheduler.State state, int queueDepth) {
+        Log.d(TAG, "Scheduler " + state + ", " + queueDepth + " queued");
+        if (queueDepth > 0 && state != InferenceScheduler.State.READY) {
+            showStatus(statusLabel(state) + " (" + queueDepth + " queued)");
+        }
+    }
+
+    private static String statusLabel(InferenceScheduler.State state) {
+        switch (state) {
+            case LOADING:
+                return "Loading AI model...";
+            case GENERATING:
+                return "Generating...";
+            case CANCELLING:
+                return "Stopping...";
+            default:
+                return "Waiting...";
+        }
     }
 
     private void setupFilePickerLauncher() {
@@ -213,64 +344,41 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void handleSelectedFile(Uri uri) {
-        showStatus("Copying model file...");
+        showStatus("Opening model file...");
         
-        executorService.execute(() -> {
+        // File work runs on the I/O lane, so chat keeps going meanwhile
+        scheduler.submitIo(() -> {
+            // Check the GGUF header rather than trusting the file name
             try {
-                // Get the original filename
-                String fileName = getFileName(uri);
-                if (fileName == null || !fileName.endsWith(".gguf")) {
-                    mainHandler.post(() -> {
-                        Toast.makeText(this, "Please select a .gguf file", 
-                                     Toast.LENGTH_SHORT).show();
-                        if (modelPath == null) {
-                            openFilePicker();
-                        }
-                    });
-                    return;
-                }
-
-                // Copy file to app's internal storage
-                File internalDir = new File(getFilesDir(), "models");
-                if (!internalDir.exists()) {
-                    internalDir.mkdirs();
-                }
-                
-                File destFile = new File(internalDir, fileName);
-                
-                // If file already exists and is the same, skip copying
-                if (destFile.exists() && destFile.length() > 0) {
-                    modelPath = destFile.getAbsolutePath();
-                    saveModelPath(modelPath);
-                    mainHandler.post(() -> loadModel(modelPath));
-                    return;
-                }
-
-                // Copy the file
-                InputStream inputStream = getContentResolver().openInputStream(uri);
-                FileOutputStream outputStream = new FileOutputStream(destFile);
-                
-                byte[] buffer = new byte[1024 * 1024]; // 1MB buffer
-                int length;
-                long totalBytes = 0;
-                
-                while ((length = inputStream.read(buffer)) > 0) {
-                    outputStream.write(buffer, 0, length);
-                    totalBytes += length;
-                    final long finalTotalBytes = totalBytes;
-                    
-                    // Update progress every 100MB
-                    if (totalBytes % (100 * 1024 * 1024) == 0) {
-                        mainHandler.post(() -> 
-                            showStatus(String.format("Copied %.1f GB...", 
-                                     finalTotalBytes / (1024.0 * 1024.0 * 1024.0)))
-                        );
+                inspectModel(uri.toString());
+            } catch (IOException e) {
+                Log.w(TAG, "Rejected model file", e);
+                mainHandler.post(() -> {
+                    Toast.makeText(this, "Please select a valid .gguf model: " + e.getMessage(), 
+                                 Toast.LENGTH_LONG).show();
+                    if (modelPath == null) {
+                        openFilePicker();
                     }
-                }
-                
-                inputStream.close();
-                outputStream.close();
+                });
+                return;
+            }
+            
+            String fileName = getFileName(uri);
+            if (fileName == null || !fileName.endsWith(".gguf")) {
+                fileName = "model.gguf";
+            }
+
+            if (modelImporter.persistAccess(uri)) {
+                // Zero-copy: remember the document and load it in place
+                modelPath = uri.toString();
+                saveModelPath(modelPath);
+                mainHandler.post(() -> loadModel(modelPath));
+                return;
+            }
 
+            // No lasting access to the document - copy it into app storage
+            try {
+                File destFile = importModelCopy(uri, fileName);
                 modelPath = destFile.getAbsolutePath();
                 saveModelPath(modelPath);
 
@@ -293,6 +401,209 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Copy a document into app storage. Resumes an interrupted copy and
+     * verifies the result. Must run off the main thread.
+     */
+    private File importModelCopy(Uri uri, String fileName) throws IOException {
+        File internalDir = new File(getFilesDir(), "models");
+        if (!internalDir.exists()) {
+            internalDir.mkdirs();
+        }
+        
+        mainHandler.post(() -> showStatus("Copying model file..."));
+        
+        return modelImporter.importCopy(uri, new File(internalDir, fileName), (copied, total) -> {
+            final double gb = 1024.0 * 1024.0 * 1024.0;
+            final String progress = total > 0
+                    ? String.format("Copying model file... %.1f / %.1f GB", copied / gb, total / gb)
+                    : String.format("Copying model file... %.1f GB", copied / gb);
+            mainHandler.post(() -> showStatus(progress));
+        });
+    }
+
+    /**
+     * Read the GGUF header of a model file or document
+     * 
+     * @return Model metadata, or null if the document cannot be inspected
+     *         without copying it (e.g. it is not seekable)
+     * @throws IOException if the file is not a valid GGUF model
+     */
+    private GgufInfo inspectModel(String path) throws IOException {
+        if (!isContentUri(path)) {
+            return GgufInfo.read(new File(path));
+        }
+        try (ParcelFileDescriptor pfd = modelImporter.openForDirectLoad(Uri.parse(path));
+             FileInputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+            if (pfd.getStatSize() < 0) {
+                return null;
+            }
+            return GgufInfo.read(in.getChannel());
+        }
+    }
+
+    /**
+     * Pick engine options for the device: the largest context up to the
+     * model's trained length (and MAX_CONTEXT_SIZE) whose KV cache fits next
+     * to the weights in available RAM. An f16 cache is preferred; when it
+     * would force a smaller context, the cache is quantized to q8_0 (with
+     * flash attention, which a quantized V cache requires) first.
+     */
+    private EngineConfig planEngineConfig(GgufInfo info) throws IOException {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        
+        double q8 = EngineConfig.KvCacheType.Q8_0.bytesPerElement;
+        long minimum = info.tensorBytes + info.estimateKvCacheBytes(MIN_CONTEXT_SIZE, q8);
+        if (memoryInfo.totalMem > 0 && minimum > memoryInfo.totalMem) {
+            throw new IOException(String.format("Model needs %.1f GB but the device has %.1f GB",
+                    minimum / 1e9, memoryInfo.totalMem / 1e9));
+        }
+        
+        long budget = memoryInfo.availMem - info.tensorBytes - MEMORY_RESERVE_BYTES;
+        int target = info.contextLength > 0
+                ? (int) Math.min(info.contextLength, MAX_CONTEXT_SIZE)
+                : DEFAULT_CONTEXT_SIZE;
+        
+        EngineConfig.KvCacheType kvType = EngineConfig.KvCacheType.F16;
+        if (info.estimateKvCacheBytes(target, kvType.bytesPerElement) > budget) {
+            kvType = EngineConfig.KvCacheType.Q8_0;
+        }
+        int nCtx = target;
+        while (nCtx > MIN_CONTEXT_SIZE && info.estimateKvCacheBytes(nCtx, kvType.bytesPerElement) > budget) {
+            nCtx /= 2;
+        }
+        nCtx = Math.max(MIN_CONTEXT_SIZE, nCtx);
+        
+        Log.i(TAG, String.format("Context %d: %s KV cache %.0f MB, %.0f MB available",
+                nCtx, kvType, info.estimateKvCacheBytes(nCtx, kvType.bytesPerElement) / 1e6,
+                memoryInfo.availMem / 1e6));
+        
+        ThreadCalibrator.Plan threads = chooseThreads(info);
+        return new EngineConfig.Builder()
+                .contextSize(nCtx)
+                .threads(threads.threads)
+                .batchThreads(threads.batchThreads)
+                .kvCacheType(kvType)
+                .flashAttention(kvType != EngineConfig.KvCacheType.F16)
+                .prefixCacheDisk(prefixCacheDir(), PREFIX_CACHE_DISK_BYTES)
+                .build();
+    }
+
+    /**
+     * Where prompt prefix snapshots go once they leave memory. The cache
+     * directory, so the system may reclaim it when storage runs low.
+     */
+    private String prefixCacheDir() {
+        File dir = new File(getCacheDir(), PREFIX_CACHE_DIR);
+        return dir.isDirectory() || dir.mkdirs() ? dir.getAbsolutePath() : null;
+    }
+
+    /**
+     * The plan calibrated earlier for this model on this device, or the
+     * performance cores for decode and all cores for prefill. Small models
+     * are dominated by thread synchronization, not bandwidth, so until
+     * calibrated they get fewer threads.
+     */
+    private ThreadCalibrator.Plan chooseThreads(GgufInfo info) {
+        ThreadCalibrator.Plan cached = threadCalibrator.getCached(modelKey(info));
+        if (cached != null) {
+            return cached;
+        }
+        ThreadCalibrator.Plan plan = threadCalibrator.defaultPlan();
+        if (info.tensorBytes < SMALL_MODEL_BYTES) {
+            return new ThreadCalibrator.Plan(Math.min(plan.threads, SMALL_MODEL_MAX_THREADS),
+                    Math.min(plan.batchThreads, SMALL_MODEL_MAX_THREADS), null);
+        }
+        return plan;
+    }
+
+    /**
+     * Apply the cached thread plan for the model (pinning is only possible
+     * once it is loaded), or calibrate one on its first load on this device.
+     * A hot swap keeps the {@link #chooseThreads} plan the model was loaded
+     * with, as calibrating next to a running chat would time both.
+     *
+     * @return Whether the model still needs calibrating
+     */
+    private boolean tuneThreads(GgufInfo info, LlamaSession session, boolean hot) {
+        String key = modelKey(info);
+        ThreadCalibrator.Plan cached = threadCalibrator.getCached(key);
+        if (cached != null) {
+            cached.applyTo(session.getModel());
+            return false;
+        }
+        if (hot) {
+            return true;
+        }
+        mainHandler.post(() -> showStatus("Tuning threads for this device..."));
+        ThreadCalibrator.Plan plan = threadCalibrator.calibrate(session, key);
+        Log.i(TAG, "Thread plan: " + plan);
+        return false;
+    }
+
+    /**
+     * Calibrate a swapped-in model's threads once the inference lane has
+     * nothing more urgent to run. Calibration clears the session's cache,
+     * so its conversation is saved before and restored after.
+     */
+    private void scheduleCalibration(LlamaModel model, String key) {
+        scheduler.submit(InferenceScheduler.Priority.LOW, "calibrate", () -> {
+            try (ModelManager.Lease lease = LlamaCpp.getModelManager().tryAcquire()) {
+                if (lease == null || lease.session.getModel() != model || threadCalibrator.getCached(key) != null) {
+                    return;
+                }
+                LlamaSession session = lease.session;
+                LlamaCpp.getMemoryPolicy().restore(session);
+                File saved = new File(getCacheDir(), CALIBRATION_SESSION_FILE);
+                boolean kept = session.saveSession(saved.getAbsolutePath());
+                ThreadCalibrator.Plan plan = threadCalibrator.calibrate(session, key);
+                Log.i(TAG, "Thread plan: " + plan);
+                if (!kept || !session.loadSession(saved.getAbsolutePath())) {
+                    Log.w(TAG, "Conversation not kept across calibration, starting over");
+                    session.resetConversation(SYSTEM_PROMPT);
+                }
+                saved.delete();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Thread calibration failed", e);
+            }
+        });
+    }
+
+    private static String modelKey(GgufInfo info) {
+        return info.name + "_" + info.getQuantization() + "_" + info.fileSize;
+    }
+
+    private static boolean isContentUri(String path) {
+        return path.startsWith("content://");
+    }
+
+    /**
+     * Load a document in place through its file descriptor, falling back to
+     * a verified copy if the provider's file cannot be mapped. Must run off
+     * the main thread.
+     */
+    private LlamaModel loadModelFromUri(Uri uri, EngineConfig config) throws IOException {
+        try (ParcelFileDescriptor pfd = modelImporter.openForDirectLoad(uri)) {
+            return LlamaModel.loadFromFd(pfd.getFd(), config);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot open model document in place", e);
+        }
+        
+        Log.w(TAG, "In-place load failed, importing a copy instead");
+        String fileName = getFileName(uri);
+        if (fileName == null || !fileName.endsWith(".gguf")) {
+            fileName = "model.gguf";
+        }
+        File destFile = importModelCopy(uri, fileName);
+        modelPath = destFile.getAbsolutePath();
+        saveModelPath(modelPath);
+        
+        mainHandler.post(() -> showStatus("Loading AI model..."));
+        return LlamaModel.load(modelPath, config);
+    }
+
     private String getFileName(Uri uri) {
         String result = null;
         if (uri.getScheme().equals("content")) {
@@ -326,60 +637,200 @@ public class MainActivity extends AppCompatActivity {
         prefs.edit().putString(KEY_MODEL_PATH, path).apply();
     }
 
+    /**
+     * Load a model and make it the one chat uses. With a model already
+     * loaded, the new one loads on the I/O lane while chat goes on, and is
+     * swapped in once warmed up; the old one is freed when its running
+     * request ends. If both would not fit in memory, the old model is
+     * unloaded first instead.
+     */
     private void loadModel(String path) {
         showStatus("Loading AI model...");
+        if (isModelLoaded) {
+            scheduler.submitSwap(() -> openModel(path, true));
+            return;
+        }
         setInputEnabled(false);
+        scheduler.submitLoad(() -> openModel(path, false));
+    }
 
-        executorService.execute(() -> {
-            try {
+    /**
+     * @param hot Swap the model in while the current one keeps serving
+     * @return Whether the model is loaded
+     */
+    private boolean openModel(String path, boolean hot) {
+        awaitTeardown(previousTeardown);
+        try {
+            if (!hot) {
                 Log.d(TAG, "Initializing llama.cpp backend...");
                 LlamaCpp.initBackend();
-                
-                Log.d(TAG, "Loading model from: " + path);
-                int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
-                
-                boolean success = LlamaCpp.loadModel(path, CONTEXT_SIZE, numThreads);
-                
-                if (success) {
-                    isModelLoaded = true;
-                    LlamaCpp.setLoaded(true);
-                    
-                    String modelInfo = LlamaCpp.getModelInfo();
-                    Log.i(TAG, "Model loaded: " + modelInfo);
-                    
-                    mainHandler.post(() -> {
-                        showStatus("Model loaded successfully! Ready to chat.");
-                        setInputEnabled(true);
-                        Toast.makeText(this, "AI Model loaded - Ready!", Toast.LENGTH_SHORT).show();
-                    });
-                } else {
-                    throw new RuntimeException("Failed to load model - llama.cpp returned false");
+            }
+            
+            // Validate and size the model from its header before any
+            // native allocation happens
+            GgufInfo info = inspectModel(path);
+            final EngineConfig config;
+            long estimatedBytes = 0;
+            if (info != null) {
+                Log.i(TAG, "Model header: " + info);
+                config = planEngineConfig(info);
+                estimatedBytes = info.tensorBytes + info.estimateKvCacheBytes(
+                        config.getContextSize() * config.getMaxSessions(), config.getKvBytesPerElement())
+                        + config.getPrefixCacheBytes();
+                final String summary = info.getQuantization() + ", context "
+                        + config.getContextSize();
+                mainHandler.post(() -> showStatus("Loading AI model (" + summary + ")..."));
+            } else {
+                config = new EngineConfig.Builder().contextSize(DEFAULT_CONTEXT_SIZE).build();
+            }
+            Log.i(TAG, "Engine: " + config);
+            
+            ModelManager models = LlamaCpp.getModelManager();
+            long memoryLimit = hot ? swapMemoryLimit() : Long.MAX_VALUE;
+            // An unsized model cannot be checked, so it never loads next
+            // to the current one
+            if (hot && (info == null || !models.fits(estimatedBytes, memoryLimit))) {
+                Log.w(TAG, info == null
+                        ? "Model size unknown, unloading the current one first"
+                        : "Models would not fit together, unloading the current one first");
+                mainHandler.post(() -> {
+                    setInputEnabled(false);
+                    scheduler.submitLoad(() -> openModel(path, false));
+                });
+                return false;
+            }
+            
+            Log.d(TAG, "Loading model from: " + path);
+            ModelManager.Loader loader = isContentUri(path)
+                    ? () -> loadModelFromUri(Uri.parse(path), config)
+                    : () -> LlamaModel.load(path, config);
+            
+            // Resume the previous conversation if it was saved for this
+            // model, before the new session takes any request
+            final boolean[] resumed = {false};
+            final boolean[] calibrate = {false};
+            ModelManager.Preparer preparer = session -> {
+                if (info != null) {
+                    calibrate[0] = tuneThreads(info, session, hot);
                 }
+                File sessionFile = new File(getFilesDir(), SESSION_FILE);
+                resumed[0] = sessionFile.exists() && session.loadSession(sessionFile.getAbsolutePath());
+                if (!resumed[0]) {
+                    sessionFile.delete();
+                    session.resetConversation(SYSTEM_PROMPT);
+                }
+                // Last, under the swap lock, so a teardown waiting on the
+                // swap finds it, and a failed prepare leaves it unset
+                ownModel = session.getModel();
+            };
+            if (!hot) {
+                LlamaCpp.unloadModel();
+            }
+            models.swap(loader, estimatedBytes, memoryLimit, preparer);
+            engineConfig = models.getModel().getConfig();
+            if (calibrate[0]) {
+                scheduleCalibration(models.getModel(), modelKey(info));
+            }
+            final boolean restored = resumed[0];
+            
+            // The chat list shows the stored history of the
+            // conversation the model resumed, read a page at a time
+            if (chatHistory == null) {
+                chatHistory = ChatHistoryStore.open(this);
+            }
+            final ChatHistoryStore history = chatHistory;
+            if (!restored) {
+                history.startConversation();
+            }
+            openRecall(models.getModel(), info != null ? modelKey(info) : path);
+            
+            isModelLoaded = true;
+            LlamaCpp.setLoaded(true);
+            
+            String modelInfo = LlamaCpp.getModelInfo();
+            Log.i(TAG, "Model loaded: " + modelInfo);
+            
+            mainHandler.post(() -> {
+                chatAdapter.attachStore(history);
+                if (restored) {
+                    chatAdapter.loadLatest();
+                } else if (hot) {
+                    chatAdapter.clearMessages();
+                }
+                showStatus("Model loaded successfully! Ready to chat.");
+                setInputEnabled(true);
+                Toast.makeText(this, "AI Model loaded - Ready!", Toast.LENGTH_SHORT).show();
+            });
+            return true;
 
-            } catch (Exception e) {
-                Log.e(TAG, "Error loading model", e);
-                isModelLoaded = false;
-                LlamaCpp.setLoaded(false);
-                
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading model", e);
+            if (hot && LlamaCpp.getDefaultSession() != null) {
+                // The current model is untouched and keeps serving
                 mainHandler.post(() -> {
-                    showStatus("Error loading model: " + e.getMessage());
-                    Toast.makeText(this, "Failed to load model: " + e.getMessage(), 
+                    showStatus("Ready");
+                    setInputEnabled(true);
+                    Toast.makeText(this, "Could not switch model: " + e.getMessage(),
                                  Toast.LENGTH_LONG).show();
-                    
-                    // Offer to select a different file
-                    new AlertDialog.Builder(this)
-                        .setTitle("Model Loading Failed")
-                        .setMessage("The model file could not be loaded. Would you like to select a different file?")
-                        .setPositiveButton("Yes", (dialog, which) -> {
-                            modelPath = null;
-                            openFilePicker();
-                        })
-                        .setNegativeButton("Exit", (dialog, which) -> finish())
-                        .setCancelable(false)
-                        .show();
                 });
+                return false;
             }
-        });
+            isModelLoaded = false;
+            LlamaCpp.setLoaded(false);
+            
+            mainHandler.post(() -> {
+                showStatus("Error loading model: " + e.getMessage());
+                Toast.makeText(this, "Failed to load model: " + e.getMessage(), 
+                             Toast.LENGTH_LONG).show();
+                
+                // Offer to select a different file
+                new AlertDialog.Builder(this)
+                    .setTitle("Model Loading Failed")
+                    .setMessage("The model file could not be loaded. Would you like to select a different file?")
+                    .setPositiveButton("Yes", (dialog, which) -> {
+                        modelPath = null;
+                        openFilePicker();
+                    })
+                    .setNegativeButton("Exit", (dialog, which) -> finish())
+                    .setCancelable(false)
+                    .show();
+            });
+            return false;
+        }
+    }
+
+    /**
+     * Open the model's index of past messages, replacing the previous
+     * model's. Each model has its own, as embeddings of different models
+     * cannot be compared. Messages stored before the index existed are not
+     * added to it.
+     */
+    private void openRecall(LlamaModel model, String key) {
+        Recall previous = recall;
+        recall = null;
+        if (previous != null) {
+            previous.index.close();
+        }
+        File file = new File(getFilesDir(), RECALL_FILE_PREFIX + Integer.toHexString(key.hashCode()) + ".idx");
+        try {
+            VectorIndex index = VectorIndex.open(file, model.getEmbeddingSize(), key.hashCode());
+            recall = new Recall(model, index);
+            Log.i(TAG, "Recall index: " + index.size() + " messages");
+        } catch (IOException e) {
+            Log.w(TAG, "Recall disabled, cannot open " + file, e);
+        }
+    }
+
+    /**
+     * Memory the current and the next model may use together during a hot
+     * swap: all RAM minus what the system keeps free before it starts
+     * killing apps, and a reserve for the rest of the app
+     */
+    private long swapMemoryLimit() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return memoryInfo.totalMem - memoryInfo.threshold - MEMORY_RESERVE_BYTES;
     }
 
     private void sendMessage() {
@@ -395,86 +846,511 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        // Add user message to chat
-        chatAdapter.addMessage(new ChatMessage(userMessage, true));
+        // Add user message to chat; it is indexed for recall once the reply is done
+        ChatMessage userChatMessage = new ChatMessage(userMessage, true);
+        chatAdapter.addMessage(userChatMessage);
+        appendToHistory(userChatMessage);
         chatRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1);
         
         // Clear input
         inputEditText.setText("");
         setInputEnabled(false);
+        stopRequested = false;
+        setGenerating(true);
         showStatus("Thinking...");
 
         // Add placeholder for AI response
-        chatAdapter.addMessage(new ChatMessage("Thinking...", false));
+        final ChatMessage aiMessage = new ChatMessage("Thinking...", false);
+        chatAdapter.addMessage(aiMessage);
         final int aiMessagePosition = chatAdapter.getItemCount() - 1;
 
-        // Generate response in background
-        executorService.execute(() -> {
+        // Generate response in background, streaming text into the placeholder.
+        // A model load submitted meanwhile drops it before it starts.
+        scheduler.submitGeneration(() -> {
+            // The message's embedding, computed for recall and kept for
+            // indexing it once the reply is done
+            Recall source = recall;
+            float[] queryVector = null;
             try {
+                if (stopRequested) {
+                    mainHandler.post(() -> finishGeneration("Stopped", "(stopped)"));
+                    return;
+                }
                 Log.d(TAG, "Generating response for: " + userMessage);
                 
-                // Call native llama.cpp inference
-                String response = LlamaCpp.generateToken(userMessage, MAX_TOKENS);
+                // Reject a message that cannot fit the context even on its
+                // own, before the engine spends a prefill on it
+                int messageTokens = countPromptTokens(userMessage);
+                int contextSize = engineConfig.getContextSize();
+                if (messageTokens + MIN_REPLY_TOKENS > contextSize) {
+                    Log.w(TAG, "Message of " + messageTokens + " tokens does not fit " + contextSize);
+                    mainHandler.post(() -> finishGeneration("Message too long", "(message too long: "
+                            + messageTokens + " tokens, limit " + (contextSize - MIN_REPLY_TOKENS) + ")"));
+                    return;
+                }
+                
+                // Lead this turn only with relevant messages of earlier
+                // conversations, if they fit next to what the context
+                // already holds without shifting out any turn
+                queryVector = embedForRecall(source, userMessage);
+                String recalled = queryVector != null ? recallFor(source, queryVector) : null;
+                if (recalled != null) {
+                    InferenceMetrics last = LlamaCpp.getLastMetrics();
+                    int used = last != null ? last.kvCellsUsed : 0;
+                    int recallTokens = countPromptTokens(recalled + userMessage) - messageTokens;
+                    if (used + messageTokens + recallTokens + MIN_REPLY_TOKENS > contextSize) {
+                        Log.d(TAG, "Recalled messages (" + recallTokens + " tokens) do not fit, left out");
+                        recalled = null;
+                    }
+                }
+                
+                synchronized (streamPending) {
+                    streamPending.setLength(0);
+                    streamStarted = false;
+                    streamPosition = aiMessagePosition;
+                }
+                
+                // Call native llama.cpp inference (conversation stays in the KV cache)
+                String response = LlamaCpp.chat(userMessage, recalled, REPLY_SAMPLING, text -> {
+                    synchronized (streamPending) {
+                        streamPending.append(text);
+                        if (streamPosted) {
+                            return;
+                        }
+                        streamPosted = true;
+                    }
+                    mainHandler.post(streamDrain);
+                });
+                
+                final InferenceMetrics metrics = LlamaCpp.getLastMetrics();
+                mainHandler.post(() -> updateMetricsOverlay(metrics));
                 
-                if (response != null && !response.isEmpty()) {
+                if (stopRequested) {
+                    boolean empty = response == null || response.isEmpty();
                     mainHandler.post(() -> {
-                        chatAdapter.updateLastMessage(response);
-                        chatRecyclerView.scrollToPosition(aiMessagePosition);
-                        showStatus("Ready");
-                        setInputEnabled(true);
+                        finishGeneration("Stopped", empty ? "(stopped)" : null);
+                        if (!empty) {
+                            saveToHistory(aiMessage);
+                        }
                     });
-                } else {
+                    return;
+                }
+                
+                if (response == null || response.isEmpty()) {
                     throw new RuntimeException("Model returned empty response");
                 }
 
-
                 mainHandler.post(() -> {
-                    setInputEnabled(true);
-                    showStatus("Ready");
+                    chatRecyclerView.scrollToPosition(aiMessagePosition);
+                    finishGeneration("Ready", null);
+                    saveToHistory(aiMessage);
                 });
 
             } catch (Exception e) {
                 Log.e(TAG, "Error generating response", e);
                 mainHandler.post(() -> {
-                    chatAdapter.updateLastMessage("Error: " + e.getMessage());
-                    setInputEnabled(true);
-                    showStatus("Error occurred");
+                    finishGeneration("Error occurred", "Error: " + e.getMessage());
                     Toast.makeText(this, "Error: " + e.getMessage(), 
                                  Toast.LENGTH_SHORT).show();
                 });
+            } finally {
+                queueForRecall(userChatMessage, source, queryVector);
+            }
+        }, () -> {
+            queueForRecall(userChatMessage, null, null);
+            finishGeneration(stopRequested ? "Stopped" : "Busy", "(not sent)");
+            if (scheduler.isModelChanging()) {
+                setInputEnabled(false);
             }
         });
     }
 
+    /**
+     * Show the streamed text that arrived since the last call. The first
+     * chunk of a reply replaces "Thinking...", later ones are appended.
+     */
+    private void drainStream() {
+        synchronized (streamPending) {
+            streamPosted = false;
+            if (streamPending.length() == 0) {
+                return;
+            }
+            if (!streamStarted) {
+                streamStarted = true;
+                chatAdapter.updateLastMessage(streamPending);
+                chatRecyclerView.scrollToPosition(streamPosition);
+                showStatus("Generating...");
+            } else {
+                // Shown and scrolled once per frame by the adapter
+                chatAdapter.appendToLastMessage(streamPending);
+            }
+            streamPending.setLength(0);
+        }
+    }
+
+    private void stopGeneration() {
+        stopRequested = true;
+        scheduler.cancelGeneration();
+        stopButton.setEnabled(false);
+        showStatus("Stopping...");
+    }
+
+    /**
+     * Restore the input controls after a generation ends
+     * 
+     * @param status Status bar text
+     * @param replacement Text to put in the AI bubble instead of what was streamed, or null
+     */
+    private void finishGeneration(String status, String replacement) {
+        if (replacement != null) {
+            chatAdapter.updateLastMessage(replacement);
+        }
+        setGenerating(false);
+        setInputEnabled(true);
+        showStatus(status);
+    }
+
+    /** Store a finished message; its text must not change afterwards */
+    private void appendToHistory(ChatMessage message) {
+        if (chatHistory != null) {
+            chatHistory.append(message);
+        }
+    }
+
+    /** Store a finished message and queue it for the recall index */
+    private void saveToHistory(ChatMessage message) {
+        appendToHistory(message);
+        queueForRecall(message, null, null);
+    }
+
+    /**
+     * Queue a stored message for the recall index
+     *
+     * @param source Recall whose model computed vector, or null
+     * @param vector The message's embedding, or null to compute it
+     */
+    private void queueForRecall(ChatMessage message, Recall source, float[] vector) {
+        if (chatHistory == null || recall == null) {
+            return;
+        }
+        synchronized (recallPending) {
+            recallPending.add(new PendingRecall(message, source, vector));
+            if (recallQueued) {
+                return;
+            }
+            recallQueued = true;
+        }
+        scheduler.submitIo(this::indexRecallPending);
+    }
+
+    /**
+     * Add the queued messages to the recall index, embedding those without
+     * a vector from the current model all in one call. Runs on the I/O
+     * lane: embeddings have a context of their own, so chat does not wait
+     * for them.
+     */
+    private void indexRecallPending() {
+        List<PendingRecall> batch;
+        synchronized (recallPending) {
+            recallQueued = false;
+            batch = new ArrayList<>(recallPending);
+            recallPending.clear();
+        }
+        Recall current = recall;
+        if (current == null || batch.isEmpty()) {
+            return;
+        }
+        List<PendingRecall> missing = new ArrayList<>();
+        for (PendingRecall pending : batch) {
+            if (pending.source != current || pending.vector == null) {
+                missing.add(pending);
+            }
+        }
+        try {
+            float[][] vectors = new float[0][];
+            if (!missing.isEmpty()) {
+                String[] texts = new String[missing.size()];
+                for (int i = 0; i < texts.length; i++) {
+                    texts[i] = missing.get(i).message.getMessage();
+                }
+                vectors = current.model.embed(texts);
+            }
+            int next = 0;
+            for (PendingRecall pending : batch) {
+                boolean computed = pending.source == current && pending.vector != null;
+                current.index.add(pending.message.getId(), computed ? pending.vector : vectors[next++]);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not index " + batch.size() + " messages for recall", e);
+        }
+    }
+
+    /** Embedding of message for a recall search, or null if there is no index or it failed */
+    private static float[] embedForRecall(Recall current, String message) {
+        if (current == null) {
+            return null;
+        }
+        try {
+            return current.model.embed(message);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Recall embedding failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Messages of earlier conversations most similar to the embedded
+     * message, quoted as context for its turn, or null if none is similar
+     * enough. The current conversation is left out; it is already in the
+     * context. Blocks on the history read.
+     */
+    private String recallFor(Recall current, float[] query) {
+        ChatHistoryStore history = chatHistory;
+        if (history == null || current.index.size() == 0) {
+            return null;
+        }
+        long[] ids;
+        try {
+            List<VectorIndex.Hit> hits = current.index.search(query, RECALL_CANDIDATES, RECALL_MIN_SCORE, null);
+            ids = new long[hits.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = hits.get(i).id;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Recall failed", e);
+            return null;
+        }
+        
+        // The best hits outside the current conversation, quoted in the
+        // order they were written
+        List<ChatMessage> messages = history.getEarlierMessages(ids);
+        if (messages.isEmpty()) {
+            return null;
+        }
+        messages = new ArrayList<>(messages.subList(0, Math.min(RECALL_RESULTS, messages.size())));
+        Collections.sort(messages, (a, b) -> Long.compare(a.getId(), b.getId()));
+        StringBuilder preamble = new StringBuilder("Earlier messages that may be relevant:\n");
+        for (ChatMessage recalled : messages) {
+            String text = recalled.getMessage();
+            if (text.length() > RECALL_MAX_CHARS) {
+                text = text.substring(0, RECALL_MAX_CHARS) + "...";
+            }
+            preamble.append(recalled.isUser() ? "User: " : "Assistant: ").append(text).append('\n');
+        }
+        Log.d(TAG, "Recalled " + messages.size() + " messages");
+        return preamble.append('\n').toString();
+    }
+
+    /** Tokens a chat turn with this user text takes, template included */
+    private static int countPromptTokens(String userText) {
+        return LlamaCpp.countTokens(LlamaCpp.formatChat(
+                SYSTEM_PROMPT, new String[]{"user", userText}, true), true, true);
+    }
+
     private void showStatus(String status) {
         statusText.setText(status);
         progressBar.setVisibility(status.contains("Loading") || status.contains("Copying") 
                                    ? View.VISIBLE : View.GONE);
     }
 
+    private void toggleMetricsOverlay() {
+        showMetrics = !showMetrics;
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putBoolean(KEY_SHOW_METRICS, showMetrics).apply();
+        if (!showMetrics) {
+            metricsText.setVisibility(View.GONE);
+            return;
+        }
+        metricsText.setText("No requests yet");
+        metricsText.setVisibility(View.VISIBLE);
+        if (isModelLoaded) {
+            scheduler.submit(InferenceScheduler.Priority.LOW, "metrics", () -> {
+                final InferenceMetrics metrics = LlamaCpp.getLastMetrics();
+                mainHandler.post(() -> updateMetricsOverlay(metrics));
+            });
+        }
+    }
+
+    private void updateMetricsOverlay(InferenceMetrics metrics) {
+        if (showMetrics && metrics != null) {
+            metricsText.setText(metrics.toOverlayString());
+            metricsText.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Write the last and averaged metrics, with the device and engine
+     * settings, to metrics.json in the app's external files directory
+     * (readable with adb) so runs can be compared across devices,
+     * quantizations and thread counts
+     */
+    private void dumpMetrics() {
+        if (!isModelLoaded) {
+            return;
+        }
+        File dir = getExternalFilesDir(null);
+        final File file = new File(dir != null ? dir : getFilesDir(), METRICS_FILE);
+        final String config = engineConfig.toString();
+        scheduler.submit(InferenceScheduler.Priority.LOW, "dump-metrics", () -> {
+            InferenceMetrics last = LlamaCpp.getLastMetrics();
+            InferenceMetrics average = LlamaCpp.getAverageMetrics();
+            if (last == null) {
+                return;
+            }
+            try (FileWriter writer = new FileWriter(file)) {
+                JSONObject json = new JSONObject()
+                        .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+                        .put("hardware", Build.HARDWARE)
+                        .put("sdk", Build.VERSION.SDK_INT)
+                        .put("model", LlamaCpp.getModelInfo())
+                        .put("engineConfig", config)
+                        .put("last", last.toJson())
+                        .put("average", average.toJson());
+                PrefixCacheStats prefixCache = LlamaCpp.getPrefixCacheStats();
+                if (prefixCache != null) {
+                    json.put("prefixCache", prefixCache.toJson());
+                }
+                writer.write(json.toString(2));
+                Log.i(TAG, "Metrics written to " + file);
+                mainHandler.post(() -> Toast.makeText(this, "Metrics saved to " + file,
+                        Toast.LENGTH_SHORT).show());
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Could not write metrics", e);
+            }
+        });
+    }
+
+    private void setGenerating(boolean generating) {
+        sendButton.setVisibility(generating ? View.GONE : View.VISIBLE);
+        stopButton.setVisibility(generating ? View.VISIBLE : View.GONE);
+        stopButton.setEnabled(generating);
+    }
+
     private void setInputEnabled(boolean enabled) {
         inputEditText.setEnabled(enabled);
         sendButton.setEnabled(enabled);
         sendButton.setAlpha(enabled ? 1.0f : 0.5f);
     }
 
+    /** Wait on a lane for a destroyed activity's model teardown, if any */
+    private static void awaitTeardown(CountDownLatch teardown) {
+        if (teardown == null) {
+            return;
+        }
+        try {
+            teardown.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the conversation and KV cache to disk. Runs on the inference lane
+     * so it never overlaps a generation, ahead of queued chat; a save still
+     * queued is replaced by the newer one.
+     */
+    private void saveSession() {
+        if (!isModelLoaded || scheduler == null) {
+            return;
+        }
+        final String sessionPath = new File(getFilesDir(), SESSION_FILE).getAbsolutePath();
+        scheduler.submit(InferenceScheduler.Priority.HIGH, "save-session", () -> {
+            if (LlamaCpp.isLoaded() && !LlamaCpp.saveSession(sessionPath)) {
+                Log.w(TAG, "Could not save session");
+            }
+        });
+    }
+
+    /**
+     * Under memory pressure, snapshot the conversation and give up engine
+     * memory as {@link MemoryPressurePolicy} decides, on the inference lane
+     * ahead of queued chat. Repeated signals coalesce into one task acting
+     * on the strongest.
+     */
+    private void relieveMemoryPressure() {
+        if (!isModelLoaded || scheduler == null) {
+            return;
+        }
+        scheduler.submit(InferenceScheduler.Priority.HIGH, "memory-pressure", () -> {
+            MemoryPressurePolicy.Pressure relieved = LlamaCpp.getMemoryPolicy().apply();
+            Log.i(TAG, "Memory pressure handled: " + relieved);
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (LlamaCpp.getMemoryPolicy().onTrimMemory(level)) {
+            relieveMemoryPressure();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        LlamaCpp.getMemoryPolicy().onPressure(MemoryPressurePolicy.Pressure.SEVERE);
+        relieveMemoryPressure();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        saveSession();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         
-        // Clean up model
-        if (isModelLoaded) {
-            try {
-                LlamaCpp.unloadModel();
-                LlamaCpp.freeBackend();
-            } catch (Exception e) {
-                Log.e(TAG, "Error unloading model", e);
+        // Stop any generation, then save and clean up the model once the
+        // worker has finished with it. Also queued without a model yet, as
+        // a load may still be queued or running.
+        stopRequested = true;
+        if (scheduler != null) {
+            scheduler.cancelGeneration();
+            saveSession();
+            isModelLoaded = false;
+            CountDownLatch previous = pendingTeardown;
+            CountDownLatch teardown = new CountDownLatch(1);
+            pendingTeardown = teardown;
+            boolean queued = scheduler.submitUnload(() -> {
+                try {
+                    awaitTeardown(previous);
+                    // A newer activity's model is left alone
+                    ModelManager models = LlamaCpp.getModelManager();
+                    if (models.unloadIf(ownModel) && models.getModel() == null) {
+                        LlamaCpp.setLoaded(false);
+                        LlamaCpp.freeBackend();
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Error unloading model", e);
+                } finally {
+                    teardown.countDown();
+                }
+            });
+            if (!queued) {
+                Log.w(TAG, "Model teardown not queued");
+                teardown.countDown();
             }
         }
         
-        // Shutdown executor
-        if (executorService != null) {
-            executorService.shutdown();
+        // The lanes save, unload and end on their own; the main thread
+        // never waits on native teardown or disk writes
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        
+        // Writes out any queued messages first. Replies still being
+        // posted from the lanes find no store and are not saved.
+        ChatHistoryStore history = chatHistory;
+        chatHistory = null;
+        if (history != null) {
+            history.close();
+        }
+        Recall current = recall;
+        recall = null;
+        if (current != null) {
+            current.index.close();
         }
     }
 }
@@ -0,0 +1,233 @@
+package com.saaya.ai;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * What the engine gives up when the system runs low on memory, so the app
+ * is less likely to be killed and loses nothing if it is
+ *
+ * onTrimMemory levels map to a {@link Pressure}, with separate thresholds
+ * for while the app is in the foreground (RUNNING_* levels) and in the
+ * background. Moderate pressure snapshots the conversation to disk and
+ * trims the engine's caches. Severe pressure also releases the context
+ * (KV cache and compute buffers) while the weights stay mapped; the next
+ * chat message recreates it and restores the conversation from the
+ * snapshot instead of re-processing it.
+ */
+public final class MemoryPressurePolicy {
+    private static final String TAG = "MemoryPressurePolicy";
+
+    public enum Pressure {
+        NONE,
+        /** Snapshot the conversation and trim caches */
+        MODERATE,
+        /** Snapshot the conversation and release the context */
+        SEVERE
+    }
+
+    private final ModelManager models;
+
+    // Guarded by this
+    private int runningModerateLevel = ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+    private int runningSevereLevel = ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+    private int backgroundModerateLevel = ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+    private int backgroundSevereLevel = ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+    private File snapshotFile;
+    private Pressure pending = Pressure.NONE;
+
+    // Model whose context was released with a snapshot to restore from.
+    // Guarded by releaseLock rather than this: the main thread records
+    // pressure under this, and must never wait on snapshot I/O.
+    private final Object releaseLock = new Object();
+    private LlamaModel released;
+
+    MemoryPressurePolicy(ModelManager models) {
+        this.models = models;
+    }
+
+    /**
+     * Set the onTrimMemory levels reached while in the foreground
+     * (TRIM_MEMORY_RUNNING_*) at which pressure is moderate and severe
+     */
+    public synchronized void setRunningThresholds(int moderateLevel, int severeLevel) {
+        checkThresholds(moderateLevel, severeLevel);
+        runningModerateLevel = moderateLevel;
+        runningSevereLevel = severeLevel;
+    }
+
+    /**
+     * Set the onTrimMemory levels reached while in the background
+     * (TRIM_MEMORY_UI_HIDDEN and above) at which pressure is moderate and
+     * severe
+     */
+    public synchronized void setBackgroundThresholds(int moderateLevel, int severeLevel) {
+        checkThresholds(moderateLevel, severeLevel);
+        backgroundModerateLevel = moderateLevel;
+        backgroundSevereLevel = severeLevel;
+    }
+
+    public synchronized int getRunningModerateLevel() {
+        return runningModerateLevel;
+    }
+
+    public synchronized int getRunningSevereLevel() {
+        return runningSevereLevel;
+    }
+
+    public synchronized int getBackgroundModerateLevel() {
+        return backgroundModerateLevel;
+    }
+
+    public synchronized int getBackgroundSevereLevel() {
+        return backgroundSevereLevel;
+    }
+
+    /**
+     * Where the conversation is saved under pressure, or null to keep no
+     * snapshot (a released context is then rebuilt by re-processing the
+     * conversation)
+     */
+    public synchronized void setSnapshotFile(File file) {
+        snapshotFile = file;
+    }
+
+    public synchronized File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /** Pressure an onTrimMemory level stands for, under the current thresholds */
+    public synchronized Pressure classify(int level) {
+        boolean background = level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+        int moderate = background ? backgroundModerateLevel : runningModerateLevel;
+        int severe = background ? backgroundSevereLevel : runningSevereLevel;
+        if (level >= severe) {
+            return Pressure.SEVERE;
+        }
+        return level >= moderate ? Pressure.MODERATE : Pressure.NONE;
+    }
+
+    /**
+     * Record an onTrimMemory level, to be acted on by {@link #apply()}
+     *
+     * @return Whether it calls for action
+     */
+    public boolean onTrimMemory(int level) {
+        return onPressure(classify(level));
+    }
+
+    /** Record pressure reported otherwise, e.g. SEVERE for onLowMemory */
+    public synchronized boolean onPressure(Pressure pressure) {
+        if (pressure.compareTo(pending) > 0) {
+            pending = pressure;
+        }
+        return pressure != Pressure.NONE;
+    }
+
+    /**
+     * Act on the strongest pressure recorded since the last call. Runs
+     * native work and file I/O outside the policy's lock, so pressure can
+     * still be recorded meanwhile; call it on the thread that drives the
+     * model, between requests.
+     *
+     * @return The pressure acted on, NONE if there was nothing to do or a
+     *         request was running
+     */
+    public Pressure apply() {
+        Pressure pressure;
+        File snapshot;
+        synchronized (this) {
+            pressure = pending;
+            pending = Pressure.NONE;
+            snapshot = snapshotFile;
+        }
+        if (pressure == Pressure.NONE) {
+            return pressure;
+        }
+        try (ModelManager.Lease lease = models.tryAcquire()) {
+            if (lease == null) {
+                return Pressure.NONE;
+            }
+            LlamaSession session = lease.session;
+            LlamaModel model = session.getModel();
+            boolean saved = !model.isContextReleased() && snapshot != null
+                    && session.saveSession(snapshot.getAbsolutePath());
+            boolean freed = pressure == Pressure.SEVERE ? model.releaseContext() : model.trimMemory();
+            if (!freed) {
+                Log.w(TAG, "Request running, " + pressure + " pressure not acted on");
+                return Pressure.NONE;
+            }
+            if (pressure == Pressure.SEVERE && saved) {
+                synchronized (releaseLock) {
+                    released = model;
+                }
+            }
+            Log.i(TAG, pressure + " pressure: " + (saved ? "snapshot saved, " : "")
+                    + (pressure == Pressure.SEVERE ? "context released" : "caches trimmed"));
+            return pressure;
+        }
+    }
+
+    /**
+     * Restore the conversation from the snapshot if its context was
+     * released. Called before each chat request; cheap otherwise.
+     */
+    void restore(LlamaSession session) {
+        LlamaModel model;
+        synchronized (releaseLock) {
+            model = released;
+            released = null;
+        }
+        if (model == null) {
+            return;
+        }
+        File snapshot = getSnapshotFile();
+        if (session.getModel() == model && snapshot != null
+                && session.loadSession(snapshot.getAbsolutePath())) {
+            Log.i(TAG, "Conversation restored after context release");
+        }
+    }
+
+    /**
+     * Whether path already holds the session's conversation, saved before
+     * its context was released; saving again now would drop the KV cache
+     * from the file
+     */
+    boolean holdsSnapshot(LlamaSession session, String path) {
+        synchronized (releaseLock) {
+            if (released != session.getModel()) {
+                return false;
+            }
+        }
+        File snapshot = getSnapshotFile();
+        return snapshot != null && snapshot.getAbsolutePath().equals(path);
+    }
+
+    /** The conversation was replaced, so the snapshot no longer applies to it */
+    void forget() {
+        synchronized (releaseLock) {
+            released = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        boolean isReleased;
+        synchronized (releaseLock) {
+            isReleased = released != null;
+        }
+        synchronized (this) {
+            return "running " + runningModerateLevel + "/" + runningSevereLevel
+                    + ", background " + backgroundModerateLevel + "/" + backgroundSevereLevel
+                    + (isReleased ? ", context released" : "");
+        }
+    }
+
+    private static void checkThresholds(int moderateLevel, int severeLevel) {
+        if (moderateLevel > severeLevel) {
+            throw new IllegalArgumentException("Moderate level above severe level");
+        }
+    }
+}
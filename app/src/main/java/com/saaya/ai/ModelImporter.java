@@ -0,0 +1,245 @@
+package com.saaya.ai;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Gets a picked .gguf document ready for llama.cpp
+ *
+ * The preferred path is zero-copy: the document is opened as a
+ * ParcelFileDescriptor and its fd handed to native code, which mmaps the
+ * file in place. When that is not possible the model is copied into app
+ * storage with kernel-side transfers, resuming an interrupted copy and
+ * verifying the result against the source.
+ */
+public class ModelImporter {
+    private static final String TAG = "ModelImporter";
+
+    // Copy in chunks so progress can be reported between transfers
+    private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+
+    // Sparse checksum: evenly spaced samples across the whole file
+    private static final int CHECKSUM_SAMPLES = 64;
+    private static final int CHECKSUM_SAMPLE_SIZE = 64 * 1024;
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String PARTIAL_INFO_SUFFIX = ".partial.info";
+
+    /**
+     * Receives copy progress from {@link #importCopy}
+     */
+    public interface ProgressListener {
+        /**
+         * @param copiedBytes Bytes of the destination file written so far
+         * @param totalBytes Source size, or -1 if unknown
+         */
+        void onProgress(long copiedBytes, long totalBytes);
+    }
+
+    private final Context context;
+
+    public ModelImporter(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Keep read access to a picked document across app restarts
+     *
+     * @return true if the permission was persisted
+     */
+    public boolean persistAccess(Uri uri) {
+        try {
+            context.getContentResolver().takePersistableUriPermission(uri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            return true;
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot persist access to " + uri, e);
+            return false;
+        }
+    }
+
+    /**
+     * Open a document for loading in place with {@link LlamaCpp#loadModelFromFd}
+     *
+     * The caller owns the descriptor and should close it once loading returns.
+     */
+    public ParcelFileDescriptor openForDirectLoad(Uri uri) throws IOException {
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        return pfd;
+    }
+
+    /**
+     * Copy a document into app storage, skipping the copy if an identical
+     * file is already there
+     *
+     * An interrupted copy of the same source is resumed where it stopped.
+     * The finished file is verified against the source before it is used.
+     *
+     * @param uri Source document
+     * @param destFile Final location of the model
+     * @param listener Progress callback, may be null
+     * @return destFile, complete and verified
+     */
+    public File importCopy(Uri uri, File destFile, ProgressListener listener) throws IOException {
+        File partialFile = new File(destFile.getPath() + PARTIAL_SUFFIX);
+        File partialInfoFile = new File(destFile.getPath() + PARTIAL_INFO_SUFFIX);
+
+        ParcelFileDescriptor pfd = openForDirectLoad(uri);
+        try (FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+             FileChannel source = in.getChannel()) {
+
+            long sourceSize = pfd.getStatSize();
+            if (sourceSize < 0) {
+                // Not a regular file (e.g. a pipe): no random access, so no
+                // resume and no sampled verification
+                return streamCopy(source, destFile, partialFile, listener);
+            }
+
+            long sourceChecksum = sampledChecksum(source, sourceSize);
+
+            // Reuse an earlier copy only if it really is the same file
+            if (destFile.exists() && destFile.length() == sourceSize
+                    && fileChecksum(destFile) == sourceChecksum) {
+                Log.i(TAG, "Model already imported: " + destFile);
+                return destFile;
+            }
+
+            // Resume only a partial copy made from this same source
+            String sourceId = sourceSize + ":" + sourceChecksum;
+            long offset = 0;
+            if (partialFile.exists() && sourceId.equals(readInfo(partialInfoFile))
+                    && partialFile.length() <= sourceSize) {
+                offset = partialFile.length();
+                Log.i(TAG, "Resuming import at " + offset + " of " + sourceSize + " bytes");
+            } else {
+                partialFile.delete();
+                writeInfo(partialInfoFile, sourceId);
+            }
+
+            try (FileOutputStream out = new FileOutputStream(partialFile, true);
+                 FileChannel dest = out.getChannel()) {
+                while (offset < sourceSize) {
+                    long count = Math.min(TRANSFER_CHUNK, sourceSize - offset);
+                    long transferred = source.transferTo(offset, count, dest);
+                    if (transferred <= 0) {
+                        throw new IOException("Copy stalled at " + offset + " bytes");
+                    }
+                    offset += transferred;
+                    if (listener != null) {
+                        listener.onProgress(offset, sourceSize);
+                    }
+                }
+                dest.force(false);
+            }
+
+            if (partialFile.length() != sourceSize || fileChecksum(partialFile) != sourceChecksum) {
+                partialFile.delete();
+                partialInfoFile.delete();
+                throw new IOException("Copied model does not match the source");
+            }
+
+            commit(partialFile, destFile);
+            partialInfoFile.delete();
+            return destFile;
+        } finally {
+            pfd.close();
+        }
+    }
+
+    private File streamCopy(FileChannel source, File destFile, File partialFile,
+                            ProgressListener listener) throws IOException {
+        long offset = 0;
+        try (FileOutputStream out = new FileOutputStream(partialFile);
+             FileChannel dest = out.getChannel()) {
+            long transferred;
+            while ((transferred = dest.transferFrom(source, offset, TRANSFER_CHUNK)) > 0) {
+                offset += transferred;
+                if (listener != null) {
+                    listener.onProgress(offset, -1);
+                }
+            }
+            dest.force(false);
+        }
+        if (offset == 0) {
+            partialFile.delete();
+            throw new IOException("Source is empty");
+        }
+        commit(partialFile, destFile);
+        return destFile;
+    }
+
+    private static void commit(File partialFile, File destFile) throws IOException {
+        destFile.delete();
+        if (!partialFile.renameTo(destFile)) {
+            throw new IOException("Cannot move " + partialFile + " to " + destFile);
+        }
+    }
+
+    private static long fileChecksum(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            return sampledChecksum(channel, file.length());
+        }
+    }
+
+    /**
+     * CRC32 over the size plus {@value #CHECKSUM_SAMPLES} evenly spaced
+     * samples (always including the head and tail). Reads a few MB
+     * regardless of file size, yet catches truncation and misplaced data.
+     */
+    static long sampledChecksum(FileChannel channel, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer sizeBytes = ByteBuffer.allocate(8).putLong(0, size);
+        crc.update(sizeBytes.array());
+
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_SAMPLE_SIZE);
+        long span = Math.max(0, size - CHECKSUM_SAMPLE_SIZE);
+        for (int i = 0; i < CHECKSUM_SAMPLES; i++) {
+            long position = span * i / (CHECKSUM_SAMPLES - 1);
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            crc.update(buffer.array(), 0, buffer.position());
+        }
+        return crc.getValue();
+    }
+
+    private static String readInfo(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeInfo(File file, String info) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(info);
+            writer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.saaya.ai;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Double-buffered holder of the active model and its session
+ *
+ * A replacement model is loaded, warmed up and prepared while the active
+ * one keeps serving, then published in one step. Callers use the model
+ * through a {@link Lease}; a replaced model is closed when its last lease
+ * is released, so a request in flight finishes on the model it started on.
+ */
+public final class ModelManager {
+    private static final String TAG = "ModelManager";
+
+    // Synthetic decode that touches every weight once, faulting the mmapped
+    // pages in before the model takes requests
+    private static final int WARMUP_PROMPT_TOKENS = 8;
+    private static final int WARMUP_DECODE_TOKENS = 1;
+
+    /** Loads the next model; runs on the thread calling {@link #swap} */
+    public interface Loader {
+        LlamaModel load() throws IOException;
+    }
+
+    /** Gets the new session ready (threads, restored conversation) before it is published */
+    public interface Preparer {
+        void prepare(LlamaSession session) throws IOException;
+    }
+
+    /**
+     * The active session, held for the duration of one request
+     */
+    public final class Lease implements AutoCloseable {
+        public final LlamaSession session;
+        private boolean released = false;
+
+        private Lease(LlamaSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ModelManager.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                release(session.getModel());
+            }
+        }
+    }
+
+    // Serializes swaps, so two loads never overlap
+    private final Object swapLock = new Object();
+
+    // Guarded by this; replaced models still in use map to their session
+    private LlamaModel model;
+    private LlamaSession session;
+    private long modelBytes;
+    private final Map<LlamaModel, Integer> leases = new IdentityHashMap<>();
+    private final Map<LlamaModel, LlamaSession> retired = new IdentityHashMap<>();
+
+    /**
+     * @throws IllegalStateException if no model is loaded
+     */
+    public synchronized Lease acquire() {
+        if (session == null) {
+            throw new IllegalStateException("No model loaded");
+        }
+        Integer count = leases.get(model);
+        leases.put(model, count == null ? 1 : count + 1);
+        return new Lease(session);
+    }
+
+    /**
+     * @return A lease on the active session, or null if no model is loaded
+     */
+    public synchronized Lease tryAcquire() {
+        return session != null ? acquire() : null;
+    }
+
+    public synchronized LlamaModel getModel() {
+        return model;
+    }
+
+    public synchronized LlamaSession getSession() {
+        return session;
+    }
+
+    /**
+     * Stop the requests running on the active model and on any replaced
+     * model still draining
+     */
+    public synchronized void cancel() {
+        if (session != null) {
+            session.cancel();
+        }
+        for (LlamaSession draining : retired.values()) {
+            draining.cancel();
+        }
+    }
+
+    /**
+     * Whether a model of estimatedBytes can be loaded next to the active one
+     *
+     * @param memoryLimit Bytes both models together may use
+     */
+    public synchronized boolean fits(long estimatedBytes, long memoryLimit) {
+        return modelBytes + estimatedBytes <= memoryLimit;
+    }
+
+    /**
+     * Load a model and make it the active one, without interrupting the
+     * active model until the new one is ready. Blocks for the whole load;
+     * call it from a background thread other than the one serving requests.
+     *
+     * @param estimatedBytes Estimated weights + KV cache of the new model
+     * @param memoryLimit Bytes both models together may use
+     * @param preparer Runs on the new session before it is published, or null
+     * @throws IOException if the models would not fit together (checked
+     *         before anything is loaded), or if loading or preparing fails;
+     *         the active model is untouched either way
+     */
+    public void swap(Loader loader, long estimatedBytes, long memoryLimit, Preparer preparer)
+            throws IOException {
+        synchronized (swapLock) {
+            swapLocked(loader, estimatedBytes, memoryLimit, preparer);
+        }
+    }
+
+    private void swapLocked(Loader loader, long estimatedBytes, long memoryLimit, Preparer preparer)
+            throws IOException {
+        if (!fits(estimatedBytes, memoryLimit)) {
+            throw new IOException(String.format("Not enough memory to swap models: %.1f GB + %.1f GB > %.1f GB",
+                    modelBytesNow() / 1e9, estimatedBytes / 1e9, memoryLimit / 1e9));
+        }
+
+        LlamaModel next = loader.load();
+        LlamaSession nextSession;
+        try {
+            nextSession = next.newSession();
+            if (nextSession.benchmark(WARMUP_PROMPT_TOKENS, WARMUP_DECODE_TOKENS) == null) {
+                Log.w(TAG, "Warm-up decode failed");
+            }
+            if (preparer != null) {
+                preparer.prepare(nextSession);
+            }
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            throw e;
+        }
+
+        LlamaModel previous;
+        LlamaSession previousSession;
+        synchronized (this) {
+            previous = model;
+            previousSession = session;
+            model = next;
+            session = nextSession;
+            modelBytes = estimatedBytes;
+        }
+        Log.i(TAG, "Swapped in new model");
+        retire(previous, previousSession);
+    }
+
+    /**
+     * Stop serving the active model. It is closed once its in-flight
+     * requests have released their leases. Waits for a swap in progress,
+     * so the model it publishes is the one unloaded.
+     */
+    public void unload() {
+        unloadActive(null);
+    }
+
+    /**
+     * Unload the active model only if it is expected, e.g. the one the
+     * caller published, leaving one swapped in by someone else since
+     *
+     * @return Whether expected was the active model
+     */
+    public boolean unloadIf(LlamaModel expected) {
+        return expected != null && unloadActive(expected);
+    }
+
+    // expected null unloads whichever model is active
+    private boolean unloadActive(LlamaModel expected) {
+        LlamaModel previous;
+        LlamaSession previousSession;
+        synchronized (swapLock) {
+            synchronized (this) {
+                if (expected != null && model != expected) {
+                    return false;
+                }
+                previous = model;
+                previousSession = session;
+                model = null;
+                session = null;
+                modelBytes = 0;
+            }
+        }
+        retire(previous, previousSession);
+        return true;
+    }
+
+    private synchronized long modelBytesNow() {
+        return modelBytes;
+    }
+
+    private void retire(LlamaModel previous, LlamaSession previousSession) {
+        if (previous == null) {
+            return;
+        }
+        synchronized (this) {
+            if (leases.containsKey(previous)) {
+                // Closed by the last lease
+                retired.put(previous, previousSession);
+                Log.i(TAG, "Previous model draining " + leases.get(previous) + " request(s)");
+                return;
+            }
+        }
+        previous.close();
+    }
+
+    // Caller holds the lock
+    private void release(LlamaModel leased) {
+        int count = leases.get(leased) - 1;
+        if (count > 0) {
+            leases.put(leased, count);
+            return;
+        }
+        leases.remove(leased);
+        if (retired.remove(leased) != null) {
+            leased.close();
+            Log.i(TAG, "Previous model released");
+        }
+    }
+}
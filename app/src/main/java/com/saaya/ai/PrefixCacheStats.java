@@ -0,0 +1,70 @@
+package com.saaya.ai;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Counters of a model's prefix cache, from {@link LlamaModel#getPrefixCacheStats}
+ *
+ * Counts are totals since the model was loaded; entry counts and bytes are
+ * a snapshot. An entry both in memory and on disk counts in both.
+ */
+public class PrefixCacheStats {
+    /** Generate requests that looked for a cached prefix */
+    public final long lookups;
+    /** Lookups that restored one */
+    public final long hits;
+    /** Prompt tokens restored from the cache instead of being prefilled */
+    public final long savedPrefillTokens;
+    public final long stored;
+    public final long evicted;
+    public final int memoryEntries;
+    public final long memoryBytes;
+    public final int diskEntries;
+    public final long diskBytes;
+
+    /**
+     * @param values Native layout: lookups, hits, saved tokens, stored, evicted,
+     *               memory entries, memory bytes, disk entries, disk bytes
+     */
+    PrefixCacheStats(long[] values) {
+        this.lookups = values[0];
+        this.hits = values[1];
+        this.savedPrefillTokens = values[2];
+        this.stored = values[3];
+        this.evicted = values[4];
+        this.memoryEntries = (int) values[5];
+        this.memoryBytes = values[6];
+        this.diskEntries = (int) values[7];
+        this.diskBytes = values[8];
+    }
+
+    public double getHitRate() {
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        return new JSONObject()
+                .put("lookups", lookups)
+                .put("hits", hits)
+                .put("hitRate", getHitRate())
+                .put("savedPrefillTokens", savedPrefillTokens)
+                .put("stored", stored)
+                .put("evicted", evicted)
+                .put("memoryEntries", memoryEntries)
+                .put("memoryBytes", memoryBytes)
+                .put("diskEntries", diskEntries)
+                .put("diskBytes", diskBytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "PrefixCacheStats{hits=%d/%d (%.0f%%), saved=%d tokens, stored=%d, evicted=%d, "
+                        + "memory=%d (%d MB), disk=%d (%d MB)}",
+                hits, lookups, getHitRate() * 100, savedPrefillTokens, stored, evicted,
+                memoryEntries, memoryBytes / (1024 * 1024), diskEntries, diskBytes / (1024 * 1024));
+    }
+}
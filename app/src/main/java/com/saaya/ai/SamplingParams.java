@@ -0,0 +1,204 @@
+package com.saaya.ai;
+
+/**
+ * How one request picks its tokens: temperature, truncation, repetition
+ * penalties, seed and reply length
+ *
+ * Fields are read directly by the native layer, so keep their names and
+ * types in sync with read_sampling_params() in llama-android.cpp. Each
+ * session caches the llama.cpp sampler chain of the last few parameter
+ * sets it saw, so alternating between them builds nothing per request.
+ */
+public final class SamplingParams {
+
+    /** Seed that picks a fresh random seed for every request */
+    public static final int RANDOM_SEED = -1;
+
+    /** The sampling used before it was configurable: temp 0.7, top-k 40, top-p 0.9 */
+    public static final SamplingParams DEFAULT = new Builder().build();
+
+    /**
+     * Always the most likely token. Sampled by a plain argmax over the
+     * logits, without building or sorting the candidate list.
+     */
+    public static final SamplingParams GREEDY = new Builder().temperature(0).build();
+
+    private final float temperature;
+    private final int topK;
+    private final float topP;
+    private final float minP;
+    private final int penaltyLastN;
+    private final float repeatPenalty;
+    private final float frequencyPenalty;
+    private final float presencePenalty;
+    private final int seed;
+    private final int maxTokens;
+
+    private SamplingParams(Builder builder) {
+        this.temperature = builder.temperature;
+        this.topK = builder.topK;
+        this.topP = builder.topP;
+        this.minP = builder.minP;
+        this.penaltyLastN = builder.penaltyLastN;
+        this.repeatPenalty = builder.repeatPenalty;
+        this.frequencyPenalty = builder.frequencyPenalty;
+        this.presencePenalty = builder.presencePenalty;
+        this.seed = builder.seed;
+        this.maxTokens = builder.maxTokens;
+    }
+
+    public float getTemperature() {
+        return temperature;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public float getTopP() {
+        return topP;
+    }
+
+    public float getMinP() {
+        return minP;
+    }
+
+    public int getPenaltyLastN() {
+        return penaltyLastN;
+    }
+
+    public float getRepeatPenalty() {
+        return repeatPenalty;
+    }
+
+    public float getFrequencyPenalty() {
+        return frequencyPenalty;
+    }
+
+    public float getPresencePenalty() {
+        return presencePenalty;
+    }
+
+    public int getSeed() {
+        return seed;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /** Whether tokens are picked by argmax, with no chain at all */
+    public boolean isGreedy() {
+        return (temperature <= 0 || topK == 1) && !hasPenalties();
+    }
+
+    public boolean hasPenalties() {
+        return penaltyLastN != 0
+                && (repeatPenalty != 1.0f || frequencyPenalty != 0.0f || presencePenalty != 0.0f);
+    }
+
+    /** Same parameters with another reply length */
+    public SamplingParams withMaxTokens(int maxTokens) {
+        return maxTokens == this.maxTokens ? this : toBuilder().maxTokens(maxTokens).build();
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .temperature(temperature)
+                .topK(topK)
+                .topP(topP)
+                .minP(minP)
+                .penalties(penaltyLastN, repeatPenalty, frequencyPenalty, presencePenalty)
+                .seed(seed)
+                .maxTokens(maxTokens);
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingParams{temp=" + temperature + ", topK=" + topK + ", topP=" + topP + ", minP=" + minP
+                + ", penalties=" + penaltyLastN + "/" + repeatPenalty + "/" + frequencyPenalty + "/" + presencePenalty
+                + ", seed=" + (seed == RANDOM_SEED ? "random" : seed) + ", maxTokens=" + maxTokens + "}";
+    }
+
+    public static final class Builder {
+        private float temperature = 0.7f;
+        private int topK = 40;
+        private float topP = 0.9f;
+        private float minP = 0.0f;
+        private int penaltyLastN = 64;
+        private float repeatPenalty = 1.0f;
+        private float frequencyPenalty = 0.0f;
+        private float presencePenalty = 0.0f;
+        private int seed = RANDOM_SEED;
+        private int maxTokens = 512;
+
+        /** 0 or below for greedy decoding */
+        public Builder temperature(float temperature) {
+            this.temperature = temperature;
+            return this;
+        }
+
+        /** Keep the k most likely tokens; 0 for no limit */
+        public Builder topK(int topK) {
+            this.topK = topK;
+            return this;
+        }
+
+        /** Keep the most likely tokens up to this cumulative probability; 1 for no limit */
+        public Builder topP(float topP) {
+            this.topP = topP;
+            return this;
+        }
+
+        /** Drop tokens less likely than this fraction of the most likely one; 0 for no limit */
+        public Builder minP(float minP) {
+            this.minP = minP;
+            return this;
+        }
+
+        /**
+         * Penalize tokens seen in the last lastN generated tokens (-1 for
+         * the whole context). repeat divides their logits, 1 for none;
+         * frequency and presence are subtracted per occurrence and once,
+         * 0 for none.
+         */
+        public Builder penalties(int lastN, float repeat, float frequency, float presence) {
+            this.penaltyLastN = lastN;
+            this.repeatPenalty = repeat;
+            this.frequencyPenalty = frequency;
+            this.presencePenalty = presence;
+            return this;
+        }
+
+        /**
+         * Fixed seed for reproducible replies, or {@link #RANDOM_SEED}.
+         * The generator restarts from it at every request.
+         */
+        public Builder seed(int seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /** Longest reply in tokens */
+        public Builder maxTokens(int maxTokens) {
+            this.maxTokens = maxTokens;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException for parameters out of range
+         */
+        public SamplingParams build() {
+            if (topK < 0 || topP <= 0 || topP > 1 || minP < 0 || minP >= 1) {
+                throw new IllegalArgumentException("Truncation parameters out of range");
+            }
+            if (penaltyLastN < -1 || repeatPenalty <= 0) {
+                throw new IllegalArgumentException("Penalty parameters out of range");
+            }
+            if (maxTokens <= 0) {
+                throw new IllegalArgumentException("Max tokens must be positive");
+            }
+            return new SamplingParams(this);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.saaya.ai;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks decode and prefill thread counts for a model on this device by
+ * timing a few candidates, and remembers the choice
+ *
+ * Single-token decode is memory-bound and usually peaks with the
+ * performance cores alone; prefill is compute-bound and may gain from
+ * every core. Both are measured in the same short runs: llama.cpp uses the
+ * batch thread count for the prompt and the decode count for the tokens
+ * after it. Candidates that fit on the performance cores are pinned to
+ * them.
+ *
+ * Results are stored per CPU layout and model, so only the first load of a
+ * model on a device pays for calibration.
+ */
+public final class ThreadCalibrator {
+    private static final String TAG = "ThreadCalibrator";
+
+    private static final String KEY_PREFIX = "threads_";
+
+    // Small enough to stay well under a few seconds per candidate on a 7B model
+    private static final int PROMPT_TOKENS = 32;
+    private static final int DECODE_TOKENS = 4;
+
+    /**
+     * A thread plan for a model
+     */
+    public static final class Plan {
+        public final int threads;
+        public final int batchThreads;
+        /** Cores to pin the workers to, or null for no affinity */
+        public final int[] cpus;
+
+        Plan(int threads, int batchThreads, int[] cpus) {
+            this.threads = threads;
+            this.batchThreads = batchThreads;
+            this.cpus = cpus;
+        }
+
+        /** Apply to a loaded model */
+        public void applyTo(LlamaModel model) {
+            model.setThreads(threads, batchThreads, cpus);
+        }
+
+        String encode() {
+            StringBuilder sb = new StringBuilder().append(threads).append(';').append(batchThreads).append(';');
+            if (cpus != null) {
+                for (int i = 0; i < cpus.length; i++) {
+                    sb.append(i > 0 ? "," : "").append(cpus[i]);
+                }
+            }
+            return sb.toString();
+        }
+
+        static Plan decode(String value) {
+            String[] parts = value.split(";", -1);
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                int[] cpus = null;
+                if (!parts[2].isEmpty()) {
+                    String[] ids = parts[2].split(",");
+                    cpus = new int[ids.length];
+                    for (int i = 0; i < ids.length; i++) {
+                        cpus[i] = Integer.parseInt(ids[i]);
+                    }
+                }
+                return new Plan(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), cpus);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{threads=" + threads + ", batchThreads=" + batchThreads
+                    + ", cpus=" + Arrays.toString(cpus) + "}";
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final CpuTopology topology;
+
+    public ThreadCalibrator(SharedPreferences prefs, CpuTopology topology) {
+        this.prefs = prefs;
+        this.topology = topology;
+    }
+
+    /**
+     * Starting point before any calibration: every performance core for
+     * decode, every core for prefill, no pinning
+     */
+    public Plan defaultPlan() {
+        int fast = topology.getPerformanceCores().length;
+        return new Plan(Math.max(1, fast), topology.getCoreCount(), null);
+    }
+
+    /**
+     * @param modelKey Identifies the model file, e.g. name, size and quantization
+     * @return Stored plan for this device and model, or null
+     */
+    public Plan getCached(String modelKey) {
+        String value = prefs.getString(cacheKey(modelKey), null);
+        return value != null ? Plan.decode(value) : null;
+    }
+
+    /**
+     * Time the candidate plans on a session's model, apply and store the
+     * best. Takes a few seconds and clears the session's conversation cache;
+     * must not run while the model is generating.
+     */
+    public Plan calibrate(LlamaSession session, String modelKey) {
+        LlamaModel model = session.getModel();
+        int[] fast = topology.getPerformanceCores();
+        int all = topology.getCoreCount();
+
+        // Decode candidates around the performance core count, prefill up to all cores
+        List<Plan> candidates = new ArrayList<>();
+        int[] decodeCounts = {fast.length, Math.max(1, fast.length - 1), Math.min(all, fast.length + 1)};
+        int[] batchCounts = {all, fast.length, Math.max(1, all - 1)};
+        for (int i = 0; i < decodeCounts.length; i++) {
+            boolean pin = topology.isHeterogeneous()
+                    && Math.max(decodeCounts[i], batchCounts[i]) <= fast.length;
+            candidates.add(new Plan(decodeCounts[i], batchCounts[i], pin ? fast : null));
+        }
+
+        // Warm-up: fault the weights in, which would skew the first candidate
+        Plan best = defaultPlan();
+        if (session.benchmark(1, 1) == null) {
+            Log.w(TAG, "Calibration run failed, keeping " + best);
+            return best;
+        }
+
+        double bestPrefill = Double.MAX_VALUE;
+        double bestDecode = Double.MAX_VALUE;
+        int bestBatch = best.batchThreads;
+        Plan bestDecodePlan = best;
+        for (Plan candidate : candidates) {
+            candidate.applyTo(model);
+            double[] timing = session.benchmark(PROMPT_TOKENS, DECODE_TOKENS);
+            if (timing == null) {
+                continue;
+            }
+            Log.i(TAG, String.format(Locale.US, "%s: prefill %.1f ms, decode %.1f ms/token",
+                    candidate, timing[0], timing[1]));
+            if (timing[0] < bestPrefill) {
+                bestPrefill = timing[0];
+                bestBatch = candidate.batchThreads;
+            }
+            if (timing[1] < bestDecode) {
+                bestDecode = timing[1];
+                bestDecodePlan = candidate;
+            }
+        }
+
+        // Pinning is only kept when both counts fit on the performance cores
+        int[] cpus = bestDecodePlan.cpus != null && bestBatch <= fast.length ? fast : null;
+        best = new Plan(bestDecodePlan.threads, bestBatch, cpus);
+
+        best.applyTo(model);
+        prefs.edit().putString(cacheKey(modelKey), best.encode()).apply();
+        Log.i(TAG, "Calibrated " + modelKey + " on " + topology + ": " + best);
+        return best;
+    }
+
+    private String cacheKey(String modelKey) {
+        return KEY_PREFIX + topology.getSignature() + "_" + modelKey;
+    }
+}
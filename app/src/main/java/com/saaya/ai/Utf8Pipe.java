@@ -0,0 +1,132 @@
+package com.saaya.ai;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Text exchange between a session and native code, as UTF-8 in direct
+ * buffers both sides use in place
+ *
+ * Requests are encoded into {@link #input}. Generated text is written by
+ * native code into {@link #output} and handed over through
+ * {@link #onBytes}, which decodes it incrementally: a code point split
+ * across token pieces is held back until the rest arrives. The buffers,
+ * decoder and result builder are reused, so streaming allocates nothing
+ * per chunk. One request at a time, like the session that owns it.
+ */
+final class Utf8Pipe {
+    private static final int OUTPUT_BYTES = 4096;
+    private static final int MIN_INPUT_BYTES = 1024;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer input = ByteBuffer.allocateDirect(MIN_INPUT_BYTES);
+    final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BYTES);
+
+    // Decoded text of the current chunk, and of the whole reply
+    private final CharBuffer chars = CharBuffer.allocate(OUTPUT_BYTES);
+    private final StringBuilder text = new StringBuilder();
+    private LlamaCpp.TextListener listener;
+    private int held = 0;
+
+    ByteBuffer input() {
+        return input;
+    }
+
+    /**
+     * Encode a request into {@link #input}, growing it if needed
+     *
+     * @return Length in bytes
+     */
+    int encode(String request) {
+        int maxBytes = (int) (request.length() * encoder.maxBytesPerChar()) + 1;
+        if (input.capacity() < maxBytes) {
+            input = ByteBuffer.allocateDirect(Math.max(maxBytes, input.capacity() * 2));
+        }
+        input.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(request), input, true);
+        encoder.flush(input);
+        return input.position();
+    }
+
+    /** Start collecting a reply, streaming it to listener if non-null */
+    void begin(LlamaCpp.TextListener listener) {
+        this.listener = listener;
+        text.setLength(0);
+        decoder.reset();
+        held = 0;
+        output.clear();
+    }
+
+    /**
+     * Called from native code: output[0, end) holds new UTF-8 bytes after
+     * the ones held back by the previous call
+     *
+     * @return Bytes of an incomplete code point now held at the start of
+     *         output, where the next bytes are to be appended
+     */
+    int onBytes(int end) {
+        output.position(0);
+        output.limit(end);
+        decode(false);
+        output.compact();
+        held = output.position();
+        output.clear();
+        return held;
+    }
+
+    /**
+     * Finish the reply; bytes still held back are not valid UTF-8 and
+     * become U+FFFD
+     *
+     * @return The whole reply
+     */
+    String finish() {
+        output.position(0);
+        output.limit(held);
+        decode(true);
+        decoder.flush(chars);
+        deliver();
+        String reply = text.toString();
+        end();
+        return reply;
+    }
+
+    /** Drop the listener and the reply, also after a failed request */
+    void end() {
+        listener = null;
+        text.setLength(0);
+        held = 0;
+        output.clear();
+    }
+
+    private void decode(boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(output, chars, endOfInput);
+            deliver();
+        } while (result.isOverflow());
+    }
+
+    private void deliver() {
+        chars.flip();
+        if (chars.hasRemaining()) {
+            text.append(chars);
+            if (listener != null) {
+                listener.onText(chars);
+            }
+        }
+        chars.clear();
+    }
+}
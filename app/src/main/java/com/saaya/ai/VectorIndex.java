@@ -0,0 +1,269 @@
+package com.saaya.ai;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongPredicate;
+
+/**
+ * Embeddings keyed by ID in a memory-mapped file, searched by similarity
+ *
+ * Vectors are stored quantized to one signed byte per dimension with a
+ * scale per vector, a quarter of their float size, and appended in place,
+ * so adding one writes a single record and opening the index reads only
+ * its header. Search scans every record against the float query and keeps
+ * the k best in a heap; for the few thousand messages of a chat history
+ * that is a few milliseconds, with no index structure to rebuild.
+ *
+ * Layout (little endian): a 32-byte header (magic, version, dimensions,
+ * count, tag) followed by records of id, scale and the quantized vector.
+ * The count is written after the record it covers, so a record torn by a
+ * crash is simply not counted.
+ */
+public final class VectorIndex implements Closeable {
+    private static final String TAG = "VectorIndex";
+
+    private static final int MAGIC = 0x49564153; // "SAVI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int COUNT_OFFSET = 12;
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** One search result */
+    public static final class Hit {
+        public final long id;
+        /** Cosine similarity to the query, for unit-length vectors */
+        public final float score;
+
+        Hit(long id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return "Hit{id=" + id + ", score=" + score + "}";
+        }
+    }
+
+    private final File file;
+    private final int dimensions;
+    private final int recordBytes;
+    private final byte[] scratch;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int count;
+    private int capacity;
+
+    private VectorIndex(File file, int dimensions) {
+        this.file = file;
+        this.dimensions = dimensions;
+        this.recordBytes = 12 + dimensions;
+        this.scratch = new byte[dimensions];
+    }
+
+    /**
+     * Open or create an index file. A file written for other dimensions or
+     * another tag (e.g. by a different model, whose embeddings are not
+     * comparable) is cleared.
+     *
+     * @param dimensions Length of the vectors, e.g. {@link LlamaModel#getEmbeddingSize()}
+     * @param tag Identifies where the vectors come from
+     */
+    public static VectorIndex open(File file, int dimensions, long tag) throws IOException {
+        if (dimensions <= 0) {
+            throw new IllegalArgumentException("Dimensions must be positive");
+        }
+        VectorIndex index = new VectorIndex(file, dimensions);
+        index.raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = index.raf.length();
+            int stored = length >= HEADER_BYTES ? index.readHeader(length, tag) : -1;
+            if (stored < 0) {
+                if (length > 0) {
+                    Log.i(TAG, "Resetting index " + file.getName());
+                }
+                index.map(INITIAL_CAPACITY);
+                index.writeHeader(tag);
+            } else {
+                index.count = stored;
+            }
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+        return index;
+    }
+
+    /** Number of vectors stored */
+    public synchronized int size() {
+        return count;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Append a vector. IDs are not checked for uniqueness; adding one
+     * twice makes it show up twice in results.
+     */
+    public synchronized void add(long id, float[] vector) throws IOException {
+        checkOpen();
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+        }
+        if (count == capacity) {
+            map(capacity * 2);
+        }
+        float max = 0;
+        for (float v : vector) {
+            max = Math.max(max, Math.abs(v));
+        }
+        float scale = max / 127;
+        float inverse = max > 0 ? 127 / max : 0;
+        for (int i = 0; i < dimensions; i++) {
+            scratch[i] = (byte) Math.round(vector[i] * inverse);
+        }
+
+        int offset = HEADER_BYTES + count * recordBytes;
+        buffer.putLong(offset, id);
+        buffer.putFloat(offset + 8, scale);
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 12);
+        record.put(scratch);
+        count++;
+        buffer.putInt(COUNT_OFFSET, count);
+    }
+
+    /**
+     * The k vectors most similar to query, best first
+     *
+     * @param minScore Leave out vectors scoring below this
+     * @param accept Which IDs may be returned, or null for all
+     */
+    public synchronized List<Hit> search(float[] query, int k, float minScore, LongPredicate accept) {
+        checkOpen();
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + query.length);
+        }
+        if (k <= 0 || count == 0) {
+            return Collections.emptyList();
+        }
+        // Lowest score on top, so it is the one replaced
+        PriorityQueue<Hit> best = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a.score, b.score));
+        ByteBuffer records = buffer.duplicate();
+        for (int r = 0; r < count; r++) {
+            int offset = HEADER_BYTES + r * recordBytes;
+            long id = buffer.getLong(offset);
+            if (accept != null && !accept.test(id)) {
+                continue;
+            }
+            records.position(offset + 12);
+            records.get(scratch);
+            float dot = 0;
+            for (int i = 0; i < dimensions; i++) {
+                dot += scratch[i] * query[i];
+            }
+            float score = dot * buffer.getFloat(offset + 8);
+            if (score < minScore || (best.size() == k && score <= best.peek().score)) {
+                continue;
+            }
+            best.add(new Hit(id, score));
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+        List<Hit> hits = new ArrayList<>(best);
+        Collections.sort(hits, (a, b) -> Float.compare(b.score, a.score));
+        return hits;
+    }
+
+    /** Remove every vector, keeping the file */
+    public synchronized void clear() {
+        checkOpen();
+        count = 0;
+        buffer.putInt(COUNT_OFFSET, 0);
+    }
+
+    /** Write the mapped pages to disk, e.g. before the app may be killed */
+    public synchronized void flush() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (raf == null) {
+            return;
+        }
+        flush();
+        buffer = null;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close " + file.getName(), e);
+        }
+        raf = null;
+    }
+
+    /**
+     * Validate the header against the file
+     *
+     * @return Stored vector count, or -1 if the file cannot be used
+     */
+    private int readHeader(long length, long tag) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        raf.getChannel().read(header, 0);
+        int stored = header.getInt(COUNT_OFFSET);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != dimensions
+                || header.getLong(16) != tag || stored < 0
+                || HEADER_BYTES + (long) stored * recordBytes > length) {
+            return -1;
+        }
+        map(Math.max((int) ((length - HEADER_BYTES) / recordBytes), INITIAL_CAPACITY));
+        return stored;
+    }
+
+    private void writeHeader(long tag) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, dimensions);
+        buffer.putLong(16, tag);
+        count = 0;
+        buffer.putInt(COUNT_OFFSET, 0);
+    }
+
+    /** Map the file sized for capacity records, growing it if needed */
+    private void map(int capacity) throws IOException {
+        long size = HEADER_BYTES + (long) capacity * recordBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Index " + file.getName() + " is full");
+        }
+        if (raf.length() < size) {
+            raf.setLength(size);
+        }
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+    }
+
+    private void checkOpen() {
+        if (raf == null) {
+            throw new IllegalStateException("Index is closed");
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.saaya.ai.bench;
+
+import com.saaya.ai.BatchRunner;
+import com.saaya.ai.EngineConfig;
+import com.saaya.ai.InferenceMetrics;
+import com.saaya.ai.LlamaCpp;
+import com.saaya.ai.LlamaModel;
+import com.saaya.ai.SamplingParams;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the JNI glue in llama-android.cpp, run on the host
+ * against the tiny model from {@link TinyModelWriter}
+ *
+ * The model is small enough that llama.cpp compute is cheap, so changes in
+ * these numbers mostly reflect the wrapper: loading, tokenization, batch
+ * handling, the sampling loop and the JNI upcalls of streaming.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LlamaCppBenchmark {
+    private static final String MODEL_PATH = System.getProperty("saaya.testModel");
+
+    private static final int DECODE_TOKENS = 64;
+
+    private static final int BATCH_PROMPTS = 16;
+
+    // ~1000 byte-fallback tokens, i.e. several n_batch slices
+    private static final String LONG_PROMPT;
+
+    static {
+        StringBuilder prompt = new StringBuilder();
+        while (prompt.length() < 1000) {
+            prompt.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        LONG_PROMPT = prompt.toString();
+    }
+
+    // Prefix cache budget of the cached-prefill benchmark
+    private static final long PREFIX_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Without a prefix cache, so repeated prompts are prefilled every time;
+     * {@link #prefillCached} measures a cache hit on its own
+     */
+    static EngineConfig engineConfig() {
+        return new EngineConfig.Builder()
+                .contextSize(2048)
+                .threads(2)
+                .batchSize(256)
+                .microBatchSize(256)
+                .prefixCache(0)
+                .build();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Backend {
+        @Setup(Level.Trial)
+        public void init() {
+            if (MODEL_PATH == null) {
+                throw new IllegalStateException("Run through :benchmark:jmh (saaya.testModel not set)");
+            }
+            LlamaCpp.initBackend();
+        }
+
+        @TearDown(Level.Trial)
+        public void free() {
+            LlamaCpp.freeBackend();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LoadedModel extends Backend {
+        @Setup(Level.Trial)
+        public void load() {
+            if (!LlamaCpp.loadModel(MODEL_PATH, config())) {
+                throw new IllegalStateException("Could not load " + MODEL_PATH);
+            }
+        }
+
+        EngineConfig config() {
+            return engineConfig();
+        }
+
+        @TearDown(Level.Trial)
+        public void unload() {
+            LlamaCpp.unloadModel();
+        }
+    }
+
+    /** The default model with a prefix cache, warmed with the long prompt */
+    @State(Scope.Benchmark)
+    public static class CachedModel extends LoadedModel {
+        @Override
+        EngineConfig config() {
+            return engineConfig().toBuilder().prefixCache(PREFIX_CACHE_BYTES).build();
+        }
+
+        @Setup(Level.Trial)
+        public void warm() {
+            LlamaCpp.generateToken(LONG_PROMPT, 1);
+        }
+    }
+
+    /**
+     * A model with several session slots, for the batch benchmark. With one
+     * slot BatchRunner degenerates to the sequential path.
+     */
+    @State(Scope.Benchmark)
+    public static class SessionModel extends Backend {
+        @Param({"1", "4"})
+        public int sessions;
+
+        LlamaModel model;
+        String prompts;
+
+        @Setup(Level.Trial)
+        public void load() throws IOException {
+            model = LlamaModel.load(MODEL_PATH, engineConfig().toBuilder()
+                    .contextSize(512)
+                    .maxSessions(sessions)
+                    .build());
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < BATCH_PROMPTS; i++) {
+                lines.append("{\"id\":").append(i)
+                        .append(",\"prompt\":\"Prompt number ").append(i).append("\"}\n");
+            }
+            prompts = lines.toString();
+        }
+
+        @TearDown(Level.Trial)
+        public void unload() {
+            model.close();
+        }
+    }
+
+    /**
+     * Tokens decoded per second by the decode benchmarks, taken from the
+     * native metrics so prefill and early EOS do not skew it
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class DecodeCounters {
+        public long generatedTokens;
+        public double decodeMs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            generatedTokens = 0;
+            decodeMs = 0;
+        }
+
+        public double msPerToken() {
+            return generatedTokens > 0 ? decodeMs / generatedTokens : 0;
+        }
+
+        void record() {
+            InferenceMetrics metrics = LlamaCpp.getLastMetrics();
+            if (metrics != null) {
+                generatedTokens += (long) metrics.generatedTokens;
+                decodeMs += metrics.decodeMs;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean loadModel(Backend backend) {
+        boolean loaded = LlamaCpp.loadModel(MODEL_PATH, engineConfig());
+        LlamaCpp.unloadModel();
+        return loaded;
+    }
+
+    /** Tokenize and prefill a long prompt, then sample a single token */
+    @Benchmark
+    public String prefill(LoadedModel model) {
+        return LlamaCpp.generateToken(LONG_PROMPT, 1);
+    }
+
+    /**
+     * The long prompt again with its prefix cached: restore the KV state,
+     * decode the last token and sample one
+     */
+    @Benchmark
+    public String prefillCached(CachedModel model) {
+        return LlamaCpp.generateToken(LONG_PROMPT, 1);
+    }
+
+    @Benchmark
+    public String decode(LoadedModel model, DecodeCounters counters) {
+        String response = LlamaCpp.generateToken("Hello", DECODE_TOKENS);
+        counters.record();
+        return response;
+    }
+
+    /**
+     * Same work as {@link #decode} with argmax sampling; the difference is
+     * what the sampler chain costs per token
+     */
+    @Benchmark
+    public String decodeGreedy(LoadedModel model, DecodeCounters counters) {
+        String response = LlamaCpp.generateToken("Hello", SamplingParams.GREEDY.withMaxTokens(DECODE_TOKENS));
+        counters.record();
+        return response;
+    }
+
+    /**
+     * A JSONL file of prompts through BatchRunner; compare sessions=1
+     * (sequential) against sessions=4 (continuous batching)
+     */
+    @Benchmark
+    public BatchRunner.Summary batch(SessionModel model, DecodeCounters counters) throws IOException {
+        BatchRunner.Summary summary = new BatchRunner(model.model, DECODE_TOKENS)
+                .run(new StringReader(model.prompts), new StringWriter());
+        counters.generatedTokens += summary.generatedTokens;
+        return summary;
+    }
+
+    /** Same work as {@link #decode}, delivered through the TextListener upcalls */
+    @Benchmark
+    public String decodeStreaming(LoadedModel model, DecodeCounters counters) {
+        final int[] chunks = {0};
+        String response = LlamaCpp.generateStream("Hello", DECODE_TOKENS, text -> chunks[0]++);
+        counters.record();
+        return response;
+    }
+}
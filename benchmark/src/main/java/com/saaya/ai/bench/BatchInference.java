@@ -0,0 +1,43 @@
+package com.saaya.ai.bench;
+
+import com.saaya.ai.BatchRunner;
+import com.saaya.ai.EngineConfig;
+import com.saaya.ai.LlamaCpp;
+import com.saaya.ai.LlamaModel;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command-line front end of {@link BatchRunner} for the host build
+ *
+ * Usage: BatchInference &lt;model.gguf&gt; &lt;input.jsonl&gt; &lt;output.jsonl&gt;
+ *        [sessions] [maxTokens] [promptField]
+ */
+public class BatchInference {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: BatchInference <model.gguf> <input.jsonl> <output.jsonl>"
+                    + " [sessions] [maxTokens] [promptField]");
+            System.exit(2);
+        }
+        int sessions = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int maxTokens = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+        String promptField = args.length > 5 ? args[5] : "prompt";
+
+        EngineConfig config = new EngineConfig.Builder()
+                .contextSize(2048)
+                .maxSessions(sessions)
+                .build();
+
+        LlamaCpp.initBackend();
+        try (LlamaModel model = LlamaModel.load(args[0], config)) {
+            BatchRunner runner = new BatchRunner(model, maxTokens).promptField(promptField);
+            BatchRunner.Summary summary = runner.run(new File(args[1]), new File(args[2]));
+            System.out.println(summary);
+        } finally {
+            LlamaCpp.freeBackend();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.saaya.ai.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a tiny random-weight llama GGUF for the host benchmarks
+ *
+ * Two layers of 64-wide F32 weights and a byte-fallback SentencePiece
+ * vocabulary (3 control tokens + 256 byte tokens): well under 1 MB, loads
+ * in milliseconds, yet exercises the same llama.cpp paths as a real model.
+ * Weights come from a fixed seed, so the file is identical on every build.
+ *
+ * Usage: TinyModelWriter &lt;output.gguf&gt;
+ */
+public class TinyModelWriter {
+    private static final int GGUF_MAGIC = 0x46554747; // "GGUF" little-endian
+    private static final int GGUF_VERSION = 3;
+    private static final int ALIGNMENT = 32;
+
+    // GGUF metadata value types
+    private static final int TYPE_UINT32 = 4;
+    private static final int TYPE_INT32 = 5;
+    private static final int TYPE_FLOAT32 = 6;
+    private static final int TYPE_STRING = 8;
+    private static final int TYPE_ARRAY = 9;
+
+    private static final int GGML_TYPE_F32 = 0;
+
+    // SentencePiece token types
+    private static final int TOKEN_UNKNOWN = 2;
+    private static final int TOKEN_CONTROL = 3;
+    private static final int TOKEN_BYTE = 6;
+
+    private static final int N_EMBD = 64;
+    private static final int N_HEAD = 4;
+    private static final int N_FF = 128;
+    private static final int N_LAYER = 2;
+    private static final int N_CTX_TRAIN = 2048;
+    private static final long SEED = 42;
+
+    private static class Tensor {
+        final String name;
+        final long[] dims;
+        final boolean ones;
+
+        Tensor(String name, boolean ones, long... dims) {
+            this.name = name;
+            this.dims = dims;
+            this.ones = ones;
+        }
+
+        long elements() {
+            long n = 1;
+            for (long d : dims) {
+                n *= d;
+            }
+            return n;
+        }
+
+        long bytes() {
+            return elements() * 4;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TinyModelWriter <output.gguf>");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        write(file);
+        System.out.println("Wrote " + file + " (" + file.length() + " bytes)");
+    }
+
+    public static void write(File file) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        tokens.add("<unk>");
+        types.add(TOKEN_UNKNOWN);
+        tokens.add("<s>");
+        types.add(TOKEN_CONTROL);
+        tokens.add("</s>");
+        types.add(TOKEN_CONTROL);
+        for (int b = 0; b < 256; b++) {
+            tokens.add(String.format("<0x%02X>", b));
+            types.add(TOKEN_BYTE);
+        }
+        int nVocab = tokens.size();
+
+        List<Tensor> tensors = new ArrayList<>();
+        tensors.add(new Tensor("token_embd.weight", false, N_EMBD, nVocab));
+        tensors.add(new Tensor("output_norm.weight", true, N_EMBD));
+        tensors.add(new Tensor("output.weight", false, N_EMBD, nVocab));
+        for (int i = 0; i < N_LAYER; i++) {
+            String blk = "blk." + i + ".";
+            tensors.add(new Tensor(blk + "attn_norm.weight", true, N_EMBD));
+            tensors.add(new Tensor(blk + "attn_q.weight", false, N_EMBD, N_EMBD));
+            tensors.add(new Tensor(blk + "attn_k.weight", false, N_EMBD, N_EMBD));
+            tensors.add(new Tensor(blk + "attn_v.weight", false, N_EMBD, N_EMBD));
+            tensors.add(new Tensor(blk + "attn_output.weight", false, N_EMBD, N_EMBD));
+            tensors.add(new Tensor(blk + "ffn_norm.weight", true, N_EMBD));
+            tensors.add(new Tensor(blk + "ffn_gate.weight", false, N_EMBD, N_FF));
+            tensors.add(new Tensor(blk + "ffn_up.weight", false, N_EMBD, N_FF));
+            tensors.add(new Tensor(blk + "ffn_down.weight", false, N_FF, N_EMBD));
+        }
+
+        Writer header = new Writer();
+        header.u32(GGUF_MAGIC);
+        header.u32(GGUF_VERSION);
+        header.u64(tensors.size());
+        header.u64(15);
+
+        header.kvString("general.architecture", "llama");
+        header.kvString("general.name", "saaya-bench-tiny");
+        header.kvU32("general.file_type", 0);
+        header.kvU32("general.alignment", ALIGNMENT);
+        header.kvU32("llama.context_length", N_CTX_TRAIN);
+        header.kvU32("llama.embedding_length", N_EMBD);
+        header.kvU32("llama.block_count", N_LAYER);
+        header.kvU32("llama.feed_forward_length", N_FF);
+        header.kvU32("llama.attention.head_count", N_HEAD);
+        header.kvU32("llama.attention.head_count_kv", N_HEAD);
+        header.kvF32("llama.attention.layer_norm_rms_epsilon", 1e-5f);
+        header.kvString("tokenizer.ggml.model", "llama");
+
+        header.key("tokenizer.ggml.tokens");
+        header.u32(TYPE_ARRAY);
+        header.u32(TYPE_STRING);
+        header.u64(nVocab);
+        for (String token : tokens) {
+            header.string(token);
+        }
+
+        header.key("tokenizer.ggml.scores");
+        header.u32(TYPE_ARRAY);
+        header.u32(TYPE_FLOAT32);
+        header.u64(nVocab);
+        for (int i = 0; i < nVocab; i++) {
+            header.f32(0f);
+        }
+
+        header.key("tokenizer.ggml.token_type");
+        header.u32(TYPE_ARRAY);
+        header.u32(TYPE_INT32);
+        header.u64(nVocab);
+        for (int type : types) {
+            header.u32(type);
+        }
+
+        long offset = 0;
+        for (Tensor tensor : tensors) {
+            header.string(tensor.name);
+            header.u32(tensor.dims.length);
+            for (long d : tensor.dims) {
+                header.u64(d);
+            }
+            header.u32(GGML_TYPE_F32);
+            header.u64(offset);
+            offset = align(offset + tensor.bytes());
+        }
+        header.pad();
+
+        Random random = new Random(SEED);
+        try (FileOutputStream out = new FileOutputStream(file);
+             FileChannel channel = out.getChannel()) {
+            header.writeTo(channel);
+            for (Tensor tensor : tensors) {
+                ByteBuffer data = ByteBuffer.allocate((int) align(tensor.bytes()))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (long i = 0; i < tensor.elements(); i++) {
+                    data.putFloat(tensor.ones ? 1f : (float) (random.nextGaussian() * 0.02));
+                }
+                data.clear();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Little-endian header buffer that grows as needed
+     */
+    private static class Writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        private void ensure(int n) {
+            if (buffer.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+
+        void u32(int value) {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void u64(long value) {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void f32(float value) {
+            ensure(4);
+            buffer.putFloat(value);
+        }
+
+        void string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            u64(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void key(String key) {
+            string(key);
+        }
+
+        void kvString(String key, String value) {
+            key(key);
+            u32(TYPE_STRING);
+            string(value);
+        }
+
+        void kvU32(String key, int value) {
+            key(key);
+            u32(TYPE_UINT32);
+            u32(value);
+        }
+
+        void kvF32(String key, float value) {
+            key(key);
+            u32(TYPE_FLOAT32);
+            f32(value);
+        }
+
+        void pad() {
+            int padding = (int) (align(buffer.position()) - buffer.position());
+            ensure(padding);
+            buffer.put(new byte[padding]);
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}